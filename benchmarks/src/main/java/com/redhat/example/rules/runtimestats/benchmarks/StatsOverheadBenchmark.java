@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.command.Command;
+import org.kie.api.command.KieCommands;
+import org.kie.api.runtime.ExecutionResults;
+import org.kie.api.runtime.StatelessKieSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.example.rules.fact.Message;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+
+/**
+ * Throughput of a batch of the sample KieBases with each StatsType registered.<BR>
+ * NONE registers no listener, so the difference to NONE is the overhead of the stats.
+ * Run with the gc profiler to get the allocation of the stats per batch.
+ *
+ * @author okuniyas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class StatsOverheadBenchmark {
+	private static final String PROCESS_NAME = "com.sample.bpmn.hello";
+
+	@Param({ "rules", "rules_with_accumulate",
+		"rules_with_right_salience", "rules_with_accumulate_and_right_salience" })
+	public String kieBaseName;
+
+	@Param({ "NONE", "NOOP", "EXECUTION_COUNT", "ACTIVATION", "EXECUTION_SEQUENCE", "RULE_LATENCY",
+		"RULE_ALLOCATION", "RULE_CPU_TIME" })
+	public String statsType;
+
+	// messages inserted by a batch
+	@Param({ "100" })
+	public int messages;
+
+	private final RuleRuntimeStatsService statsService = RuleRuntimeStatsService.Factory.get();
+	private KieBase kieBase;
+	private KieCommands kieCommands;
+	private StatsType type;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		KieServices ks = KieServices.Factory.get();
+		kieBase = ks.newKieClasspathContainer().getKieBase(kieBaseName);
+		kieCommands = ks.getCommands();
+		type = "NONE".equals(statsType) ? null : StatsType.valueOf(statsType);
+	}
+
+	// the counters of the stats grow with the executions
+	@TearDown(Level.Iteration)
+	public void clearStats() {
+		statsService.clearAllStats();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		statsService.unregisterAllSessions();
+		statsService.clearAllStats();
+	}
+
+	@Benchmark
+	public ExecutionResults execute() {
+		// the messages are changed by the rules, so they are created for each batch
+		List<Message> list = new ArrayList<Message>(messages);
+		for (int m=0; m<messages; m++) {
+			Message message = new Message();
+			message.setMessage("Hello World " + m);
+			message.setStatus(Message.HELLO);
+			list.add(message);
+		}
+		List<Command<?>> commands = new ArrayList<Command<?>>();
+		commands.add(kieCommands.newInsertElements(list));
+		commands.add(kieCommands.newStartProcess(PROCESS_NAME));
+		commands.add(kieCommands.newFireAllRules());
+
+		StatelessKieSession kieSession = kieBase.newStatelessKieSession();
+		if (type != null) {
+			statsService.registerSession(kieSession, type);
+		}
+		return kieSession.execute(kieCommands.newBatchExecution(commands));
+	}
+}
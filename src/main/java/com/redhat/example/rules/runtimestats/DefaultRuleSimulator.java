@@ -20,30 +20,43 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.WriterOutputStream;
 import org.apache.commons.lang3.StringUtils;
-import org.drools.core.io.impl.ReaderInputStream;
 import org.kie.api.KieBase;
 import org.kie.internal.concurrent.ExecutorProviderFactory;
 import org.kie.internal.conf.ConstraintJittingThresholdOption;
 
 import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService.CommandsFactory;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+import com.redhat.example.rules.runtimestats.impl.CommandLog;
+import com.redhat.example.rules.runtimestats.impl.TrialComparison;
+import com.redhat.example.rules.runtimestats.impl.UnifiedDiff;
+import com.redhat.example.rules.runtimestats.impl.VariantRanking;
+import com.redhat.example.rules.runtimestats.impl.WarmupMonitor;
 
 /**
  * Default Rule Simulator
@@ -60,15 +73,44 @@ public class DefaultRuleSimulator implements RuleSimulator {
 			"result_facts_comparison",
 		};
 	public static final String EXTENSION = "json";
+	public static final String SNAPSHOT_EXTENSION = "snapshot";
+	public static final String WARMUP_NAME = "warmup";
+	public static final String VARIANTS_NAME = "variants";
+	public static final String BASE_NAME = "base_rules";
+	public static final String COMMAND_LOG_NAME = "commands";
+	public static final String COMMAND_LOG_EXTENSION = "log";
+	private static final String[] DIFF_NAMES =
+		{
+			"rule_runtime_stats",
+			"result_facts",
+		};
+	private static final String DIFF_EXTENSION = "diff";
 	
 	private KieBase baseRules = null;
 	private KieBase workingRules = null;
+	private final Map<String, KieBase> variantRules = new LinkedHashMap<String, KieBase>();
 	private String reportDir = null;
 	private int warmupSeconds = 30;
 	private int jittingThreads = -1;
+	private long sequenceSpillThreshold = 0;
+	private boolean concurrentExecution = false;
+	private int executionThreads = 1;
+	private boolean pooledSessions = false;
+	private boolean inputIsolation = false;
+	private boolean forceGc = false;
+	private long gcSettleMillis = 1000;
+	private boolean factFingerprint = false;
+	private boolean workingMemorySnapshot = false;
+	private int trials = 1;
+	private boolean adaptiveWarmup = false;
+	private int warmupWindow = 10;
+	private double warmupCoefficientOfVariation = 0.05;
+	private double warmupCompilationRatio = 0.01;
 
 	RuleRuntimeCompareService ruleCompare =
 			RuleRuntimeCompareService.Factory.get();
+	RuleRuntimeStatsService statsService =
+			RuleRuntimeStatsService.Factory.get();
 
 	@Override
 	public KieBase getBaseRules() {
@@ -80,6 +122,11 @@ public class DefaultRuleSimulator implements RuleSimulator {
 		return workingRules;
 	}
 
+	@Override
+	public Map<String, KieBase> getVariantRules() {
+		return Collections.unmodifiableMap(variantRules);
+	}
+
 	@Override
 	public String getReportDir() {
 		return reportDir;
@@ -91,19 +138,25 @@ public class DefaultRuleSimulator implements RuleSimulator {
 			return;
 		}
 
-		int warmupSeconds = getWarmupSeconds()/StatsType.values().length;
-		// Warming up
-		for (StatsType statsType : StatsType.values()) {
-			warmup(commandsFactory, statsType, warmupSeconds);
+		// Warming up within warmupSeconds for all statsTypes.
+		// each statsType has its share of the time left,
+		// so the time saved by the adaptive warm up is shared by the rest.
+		int warmupSeconds = getWarmupSeconds();
+		if (warmupSeconds > 0) {
+			StatsType[] statsTypes = StatsType.values();
+			long endWarmupTime = System.currentTimeMillis() + warmupSeconds * 1000L;
+			for (int i=0; i<statsTypes.length; i++) {
+				long now = System.currentTimeMillis();
+				warmup(commandsFactory, statsTypes[i], now + (endWarmupTime - now) / (statsTypes.length - i), null);
+			}
 		}
 
 		// Skip warming up for each statsType
-		warmupSeconds = getWarmupSeconds();
 		setWarmupSeconds(-1);
 		
 		// Do Simulation
 		for (StatsType statsType : StatsType.values()) {
-			execute(commandsFactory, statsType);
+			executeToFiles(commandsFactory, statsType);
 		}
 		
 		// revert warmupSeconds
@@ -112,6 +165,19 @@ public class DefaultRuleSimulator implements RuleSimulator {
 
 	@Override
 	public String[] execute(CommandsFactory commandsFactory, StatsType statsType) {
+		File[] files = executeToFiles(commandsFactory, statsType);
+		if (files == null) {
+			return null;
+		}
+		String[] stats = new String[files.length];
+		for (int i=0; i<files.length; i++) {
+			stats[i] = FileUtils.loadFileAsString(files[i].getParentFile(), files[i].getName());
+		}
+		return stats;
+	}
+
+	@Override
+	public File[] executeToFiles(CommandsFactory commandsFactory, StatsType statsType) {
 		if (!isValidParameters()) {
 			return null;
 		}
@@ -119,80 +185,296 @@ public class DefaultRuleSimulator implements RuleSimulator {
 		// Warming up
 		warmup(commandsFactory, statsType, getWarmupSeconds());
 
-		// Execute comparison
-		String[] stats =
-				ruleCompare.compareExecution(
-						getBaseRules(),
-						getWorkingRules(),
-						commandsFactory,
-						statsType);
-		
-		// Write results
+		// Spill long execution sequence into the report directory
+		statsService.setSequenceSpill(getReportDir(), getSequenceSpillThreshold());
+		// Spill result facts into the report directory
+		ruleCompare.setFactFingerprint(isFactFingerprint() ? getReportDir() : null);
+
+		// Execute comparison and write results
 		File path = new File(getReportDir());
-		for (int i=0; i<stats.length; i++) {
-			File file;
+		File[] files = new File[FILE_NAMES.length];
+		for (int i=0; i<files.length; i++) {
 			if (i < 3) { // stats
-				file = new File(path,
+				files[i] = new File(path,
 						statsType.toString().toLowerCase() + "_" +
 								FILE_NAMES[i] + "." + EXTENSION);
 			} else { // facts
-				file = new File(path,
+				files[i] = new File(path,
 						FILE_NAMES[i] + "." + EXTENSION);
-				
 			}
-			FileWriter writer = null;
+		}
+		// Snapshot working memory next to the result facts
+		File[] snapshots = null;
+		if (isWorkingMemorySnapshot()) {
+			snapshots = new File[] {
+					new File(path, FILE_NAMES[3] + "." + SNAPSHOT_EXTENSION),
+					new File(path, FILE_NAMES[4] + "." + SNAPSHOT_EXTENSION) };
+			ruleCompare.setWorkingMemorySnapshot(snapshots[0], snapshots[1]);
+		} else {
+			ruleCompare.setWorkingMemorySnapshot(null, null);
+		}
+		if (statsType == StatsType.NOOP && getTrials() > 1) {
+			// repeat the timing comparison and compare the trials
+			TrialComparison trialComparison = new TrialComparison();
+			// the files of the working rules first
+			File[] swapped = { files[1], files[0], files[2], files[4], files[3], files[5] };
+			for (int trial=0; trial<getTrials(); trial++) {
+				// alternate the order not to bias the rules executed first or second,
+				// and execute the base rules first in the last trial to leave the files as usual
+				boolean workingFirst = (getTrials() - 1 - trial) % 2 == 1;
+				if (workingFirst) {
+					if (snapshots != null) {
+						ruleCompare.setWorkingMemorySnapshot(snapshots[1], snapshots[0]);
+					}
+					ruleCompare.compareExecution(
+							getWorkingRules(),
+							getBaseRules(),
+							commandsFactory,
+							statsType,
+							swapped);
+					if (snapshots != null) {
+						ruleCompare.setWorkingMemorySnapshot(snapshots[0], snapshots[1]);
+					}
+				} else {
+					ruleCompare.compareExecution(
+							getBaseRules(),
+							getWorkingRules(),
+							commandsFactory,
+							statsType,
+							files);
+				}
+				try {
+					trialComparison.addTrial(files[0], files[1]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 			try {
-				writer = new FileWriter(file);
-				writer.write(stats[i]);
+				trialComparison.writeInto(files[2]);
 			} catch (IOException e) {
-				stats = null;
 				e.printStackTrace();
-			} finally {
-				IOUtils.closeQuietly(writer);
 			}
+		} else {
+			ruleCompare.compareExecution(
+					getBaseRules(),
+					getWorkingRules(),
+					commandsFactory,
+					statsType,
+					files);
 		}
+		// Delete the spill files of the cleared stats
+		statsService.setSequenceSpill(null, 0);
+
 		// Copy report resources
 		copy_report_resources(path);
 		// Exec diff
-		execute_diff(path);
+		execute_diff(path, statsType);
 
-		return stats;
+		return files;
+	}
+
+	@Override
+	public File executeVariants(CommandsFactory commandsFactory, StatsType... statsTypes) {
+		if (getBaseRules() == null) {
+			System.err.println("ERROR: Base Rules is invalid");
+			return null;
+		}
+		if (variantRules.isEmpty()) {
+			System.err.println("ERROR: Variant Rules are not added");
+			return null;
+		}
+		File path = new File(getReportDir());
+		if (! FileUtils.ensureDirectoriesExists(path)) {
+			return null;
+		}
+		List<String> names = new ArrayList<String>(variantRules.keySet());
+		List<KieBase> kieBases = new ArrayList<KieBase>();
+		kieBases.add(getBaseRules());
+		kieBases.addAll(variantRules.values());
+		// the report of the base rules and each variant is in the directory of the variant
+		File[] dirs = new File[names.size()];
+		for (int i=0; i<dirs.length; i++) {
+			dirs[i] = new File(path, names.get(i));
+			if (! FileUtils.ensureDirectoriesExists(dirs[i])) {
+				return null;
+			}
+		}
+
+		// Spill long execution sequence into the report directory
+		statsService.setSequenceSpill(getReportDir(), getSequenceSpillThreshold());
+		// Spill result facts into the report directory
+		ruleCompare.setFactFingerprint(isFactFingerprint() ? getReportDir() : null);
+
+		VariantRanking ranking = new VariantRanking(BASE_NAME);
+		File[][] files = new File[kieBases.size()][];
+		try {
+			for (StatsType statsType : statsTypes) {
+				// Warming up all rules once
+				warmup(commandsFactory, statsType, getWarmupSeconds(), kieBases);
+
+				// the base rules are written into the directory of the first variant
+				String statsStr = statsType.toString().toLowerCase() + "_";
+				files[0] = new File[] {
+						new File(dirs[0], statsStr + FILE_NAMES[0] + "." + EXTENSION), null,
+						new File(dirs[0], FILE_NAMES[3] + "." + EXTENSION), null };
+				for (int i=0; i<dirs.length; i++) {
+					files[i + 1] = new File[] {
+							new File(dirs[i], statsStr + FILE_NAMES[1] + "." + EXTENSION),
+							new File(dirs[i], statsStr + FILE_NAMES[2] + "." + EXTENSION),
+							new File(dirs[i], FILE_NAMES[4] + "." + EXTENSION),
+							new File(dirs[i], FILE_NAMES[5] + "." + EXTENSION) };
+				}
+				ruleCompare.compareExecution(kieBases, commandsFactory, statsType, files);
+				for (int i=1; i<dirs.length; i++) {
+					FileUtils.copyFile(files[0][0], new File(dirs[i], files[0][0].getName()));
+					FileUtils.copyFile(files[0][2], new File(dirs[i], files[0][2].getName()));
+				}
+
+				ranking.addStats(BASE_NAME, statsType, files[0][0], null);
+				for (int i=0; i<dirs.length; i++) {
+					ranking.addStats(names.get(i), statsType, files[i + 1][0], files[i + 1][1]);
+				}
+			}
+			if (statsTypes.length > 0) {
+				for (int i=0; i<dirs.length; i++) {
+					ranking.addFactsComparison(names.get(i), files[i + 1][3]);
+				}
+			}
+
+			// Copy report resources and exec diff of each variant
+			for (File dir : dirs) {
+				copy_report_resources(dir);
+				execute_diff(dir, statsTypes);
+			}
+			File matrix = new File(path, VARIANTS_NAME + "." + EXTENSION);
+			ranking.writeTo(matrix);
+			return matrix;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			// Delete the spill files of the cleared stats
+			statsService.setSequenceSpill(null, 0);
+		}
+	}
+
+	@Override
+	public CommandsFactory recordCommands(CommandsFactory commandsFactory) {
+		File path = new File(getReportDir());
+		if (! FileUtils.ensureDirectoriesExists(path)) {
+			return null;
+		}
+		try {
+			return CommandLog.record(commandsFactory,
+					new File(path, COMMAND_LOG_NAME + "." + COMMAND_LOG_EXTENSION));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 
 	private void copy_report_resources(File path) {
 		FileUtils.copyResourcesRecursively(super.getClass().getResource("/report/report.html"), path);
-		FileUtils.copyResourcesRecursively(super.getClass().getResource("/report/mkdiff.sh"), path);
 		FileUtils.copyResourcesRecursively(super.getClass().getResource("/report/lib"), path);
 	}
 	
-	private void execute_diff(File path) {
-		String[] command = {"sh", "-c", "cd " + path.getPath() + " && sh < mkdiff.sh" };
+	// write the diff files of the facts and the stats types in parallel
+	private void execute_diff(File path, StatsType... statsTypes) {
+		List<File[]> diffs = new ArrayList<File[]>();
+		diffs.add(new File[] {
+				new File(path, FILE_NAMES[3] + "." + EXTENSION),
+				new File(path, FILE_NAMES[4] + "." + EXTENSION),
+				new File(path, DIFF_NAMES[1] + "." + DIFF_EXTENSION) });
+		for (StatsType statsType : statsTypes) {
+			String statsStr = statsType.toString().toLowerCase() + "_";
+			diffs.add(new File[] {
+					new File(path, statsStr + FILE_NAMES[0] + "." + EXTENSION),
+					new File(path, statsStr + FILE_NAMES[1] + "." + EXTENSION),
+					new File(path, statsStr + DIFF_NAMES[0] + "." + DIFF_EXTENSION) });
+		}
+		ExecutorService ex = Executors.newFixedThreadPool(
+				Math.min(diffs.size(), Runtime.getRuntime().availableProcessors()),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "rules-report-diff");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 		try {
-			Process p = Runtime.getRuntime().exec(command);
-			p.waitFor();
-		} catch (Exception e) {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final File[] diff : diffs) {
+				if (!diff[0].isFile() || !diff[1].isFile()) {
+					continue;
+				}
+				futures.add(ex.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						UnifiedDiff.diff(diff[0], diff[1], diff[2]);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			e.printStackTrace();
+		} finally {
+			ex.shutdownNow();
 		}
 	}
 
 	private void warmup(CommandsFactory commandsFactory, StatsType statsType, int warmupSeconds) {
+		warmup(commandsFactory, statsType, warmupSeconds, null);
+	}
+
+	private void warmup(CommandsFactory commandsFactory, StatsType statsType, int warmupSeconds,
+			List<KieBase> kieBases) {
 		if (warmupSeconds <= 0) {
 			return;
 		}
+		warmup(commandsFactory, statsType, System.currentTimeMillis() + warmupSeconds * 1000L, kieBases);
+	}
+
+	// warm up the base and the working rules, or the KieBases if not null, until endWarmupTime
+	private void warmup(CommandsFactory commandsFactory, StatsType statsType, long endWarmupTime,
+			List<KieBase> kieBases) {
+		long warmupMillis = endWarmupTime - System.currentTimeMillis();
+		if (warmupMillis <= 0) {
+			return;
+		}
 		
 		System.out.println("START Warming Up. stats: " + statsType.toString() +
-				" for " + warmupSeconds + " seconds.");
+				" for " + warmupMillis + " milliseconds.");
 		
 		String jittingThreshold =
 				System.getProperty(ConstraintJittingThresholdOption.PROPERTY_NAME);
 		System.setProperty(ConstraintJittingThresholdOption.PROPERTY_NAME, "1");
-		long endWarmupTime = System.currentTimeMillis() + warmupSeconds * 1000;
+		WarmupMonitor monitor = isAdaptiveWarmup() ?
+				new WarmupMonitor(getWarmupWindow(), getWarmupCoefficientOfVariation(), getWarmupCompilationRatio()) : null;
 		while (System.currentTimeMillis() < endWarmupTime) {
-			ruleCompare.compareExecutionForWarmup(
-					getBaseRules(),
-					getWorkingRules(),
-					commandsFactory,
-					statsType, endWarmupTime);
+			if (kieBases != null) {
+				ruleCompare.compareExecutionForWarmup(
+						kieBases,
+						commandsFactory,
+						statsType, endWarmupTime);
+			} else {
+				ruleCompare.compareExecutionForWarmup(
+						getBaseRules(),
+						getWorkingRules(),
+						commandsFactory,
+						statsType, endWarmupTime);
+			}
+			if (monitor != null && monitor.iterationDone()) {
+				break;
+			}
 		}
 		if (jittingThreshold == null) {
 			System.clearProperty(ConstraintJittingThresholdOption.PROPERTY_NAME);
@@ -200,8 +482,22 @@ public class DefaultRuleSimulator implements RuleSimulator {
 			System.setProperty(ConstraintJittingThresholdOption.PROPERTY_NAME, jittingThreshold);
 		}
 		
+		if (monitor != null) {
+			// save the warm up curve into the report directory
+			try {
+				monitor.writeTo(new File(getReportDir(),
+						statsType.toString().toLowerCase() + "_" + WARMUP_NAME + "." + EXTENSION));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			System.out.println("END   Warming Up. stats: " + statsType.toString() +
+					(monitor.isSteady() ? " steady" : " not steady") +
+					" after " + monitor.getCurve().size() + " iterations.");
+			return;
+		}
+		
 		System.out.println("END   Warming Up. stats: " + statsType.toString() +
-				" for " + warmupSeconds + " seconds.");		
+				" for " + warmupMillis + " milliseconds.");		
 	}
 
 	@Override
@@ -230,6 +526,22 @@ public class DefaultRuleSimulator implements RuleSimulator {
 		this.workingRules = workingRules;
 	}
 
+	/**
+	 * add a candidate rules which executeVariants() compares with the base rules.
+	 * @param name name of the report directory of the variant
+	 * @param variantRules
+	 */
+	public void addVariantRules(String name, KieBase variantRules) {
+		if (BASE_NAME.equals(name)) {
+			throw new IllegalArgumentException(BASE_NAME + " is the name of the base rules");
+		}
+		this.variantRules.put(name, variantRules);
+	}
+
+	public void clearVariantRules() {
+		variantRules.clear();
+	}
+
 	public void setReportDir(String reportDir) {
 		this.reportDir = reportDir;
 	}
@@ -257,6 +569,188 @@ public class DefaultRuleSimulator implements RuleSimulator {
 		}
 	}
 
+	public long getSequenceSpillThreshold() {
+		return sequenceSpillThreshold;
+	}
+
+	/**
+	 * EXECUTION_SEQUENCE stats over the threshold are spilled to
+	 * memory-mapped files in the report directory.
+	 * @param sequenceSpillThreshold number of rules kept in the heap. 0 or less disables the spill.
+	 */
+	public void setSequenceSpillThreshold(long sequenceSpillThreshold) {
+		this.sequenceSpillThreshold = sequenceSpillThreshold;
+	}
+
+	public boolean isConcurrentExecution() {
+		return concurrentExecution;
+	}
+
+	/**
+	 * execute the base rules and the working rules at the same time.
+	 * @param concurrentExecution
+	 */
+	public void setConcurrentExecution(boolean concurrentExecution) {
+		this.concurrentExecution = concurrentExecution;
+		ruleCompare.setConcurrentExecution(concurrentExecution);
+	}
+
+	public int getExecutionThreads() {
+		return executionThreads;
+	}
+
+	/**
+	 * execute the batches of each rules by the worker threads.
+	 * @param executionThreads number of the worker threads. 1 or less executes on the calling thread.
+	 */
+	public void setExecutionThreads(int executionThreads) {
+		this.executionThreads = executionThreads;
+		ruleCompare.setExecutionThreads(executionThreads);
+	}
+
+	public boolean isPooledSessions() {
+		return pooledSessions;
+	}
+
+	/**
+	 * execute the batches by a pool of stateful sessions which are reset after each batch.
+	 * @param pooledSessions
+	 */
+	public void setPooledSessions(boolean pooledSessions) {
+		this.pooledSessions = pooledSessions;
+		ruleCompare.setPooledSessions(pooledSessions);
+	}
+
+	public boolean isInputIsolation() {
+		return inputIsolation;
+	}
+
+	/**
+	 * insert the deep copies of the objects of the commands, so the executions do not share them.
+	 * @param inputIsolation
+	 */
+	public void setInputIsolation(boolean inputIsolation) {
+		this.inputIsolation = inputIsolation;
+		ruleCompare.setInputIsolation(inputIsolation);
+	}
+
+	public boolean isForceGc() {
+		return forceGc;
+	}
+
+	/**
+	 * run GC and pause before the execution of the base rules and the working rules.
+	 * @param forceGc
+	 */
+	public void setForceGc(boolean forceGc) {
+		this.forceGc = forceGc;
+		ruleCompare.setForceGc(forceGc);
+	}
+
+	public long getGcSettleMillis() {
+		return gcSettleMillis;
+	}
+
+	/**
+	 * @param gcSettleMillis pause after the forced GC
+	 */
+	public void setGcSettleMillis(long gcSettleMillis) {
+		this.gcSettleMillis = gcSettleMillis;
+		ruleCompare.setGcSettleMillis(gcSettleMillis);
+	}
+
+	/**
+	 * compare the result facts of the class by the identity instead of the position.
+	 * @param factClass class of the facts
+	 * @param identity function which returns the identity of a fact
+	 */
+	public <T> void registerFactIdentity(Class<T> factClass, Function<? super T, ?> identity) {
+		ruleCompare.registerFactIdentity(factClass, identity);
+	}
+
+	public boolean isFactFingerprint() {
+		return factFingerprint;
+	}
+
+	/**
+	 * compare all result facts by the fingerprints spilled in the report directory.
+	 * @param factFingerprint if true, the maximum fact list size is not applied.
+	 */
+	public void setFactFingerprint(boolean factFingerprint) {
+		this.factFingerprint = factFingerprint;
+	}
+
+	public boolean isWorkingMemorySnapshot() {
+		return workingMemorySnapshot;
+	}
+
+	/**
+	 * write the working memory at the end of each batch into the snapshot files in the report directory.
+	 * @param workingMemorySnapshot
+	 */
+	public void setWorkingMemorySnapshot(boolean workingMemorySnapshot) {
+		this.workingMemorySnapshot = workingMemorySnapshot;
+	}
+
+	public int getTrials() {
+		return trials;
+	}
+
+	/**
+	 * repeat the NOOP comparison and report the statistics of the trials.
+	 * the working rules are executed first in every other trial.
+	 * @param trials number of the comparisons. (default = 1)
+	 */
+	public void setTrials(int trials) {
+		this.trials = trials;
+	}
+
+	public boolean isAdaptiveWarmup() {
+		return adaptiveWarmup;
+	}
+
+	/**
+	 * stop the warm up when the durations of the iterations and the JIT compilation are steady.
+	 * the warm up seconds is the cap, and the warm up curve is written into the report directory.
+	 * @param adaptiveWarmup
+	 */
+	public void setAdaptiveWarmup(boolean adaptiveWarmup) {
+		this.adaptiveWarmup = adaptiveWarmup;
+	}
+
+	public int getWarmupWindow() {
+		return warmupWindow;
+	}
+
+	/**
+	 * @param warmupWindow number of the last warm up iterations to check. (default = 10)
+	 */
+	public void setWarmupWindow(int warmupWindow) {
+		this.warmupWindow = warmupWindow;
+	}
+
+	public double getWarmupCoefficientOfVariation() {
+		return warmupCoefficientOfVariation;
+	}
+
+	/**
+	 * @param warmupCoefficientOfVariation maximum stddev / mean of the durations of the iterations. (default = 0.05)
+	 */
+	public void setWarmupCoefficientOfVariation(double warmupCoefficientOfVariation) {
+		this.warmupCoefficientOfVariation = warmupCoefficientOfVariation;
+	}
+
+	public double getWarmupCompilationRatio() {
+		return warmupCompilationRatio;
+	}
+
+	/**
+	 * @param warmupCompilationRatio maximum JIT compilation time / elapsed time of the iterations. (default = 0.01)
+	 */
+	public void setWarmupCompilationRatio(double warmupCompilationRatio) {
+		this.warmupCompilationRatio = warmupCompilationRatio;
+	}
+
 	public static class FileUtils {
 		public static boolean copyFile(final File toCopy, final File destFile) {
 			try {
@@ -438,7 +932,7 @@ public class DefaultRuleSimulator implements RuleSimulator {
 		// aggregate stats report
 		for (StatsType statsType : RuleRuntimeStatsService.StatsType.values()) {
 			String statsStr = statsType.name().toLowerCase();
-			String stats[] = new String[3];
+			File stats[] = new File[3];
 			if (useBase) {
 				File orig = new File(baseReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION);
 				if (!orig.exists()) {
@@ -447,7 +941,7 @@ public class DefaultRuleSimulator implements RuleSimulator {
 				}
 				FileUtils.copyFile(orig,
 						new File(newReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION));
-				stats[0] = FileUtils.loadFileAsString(baseReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION);
+				stats[0] = new File(baseReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION);
 			} else {
 				File orig = new File(baseReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION);
 				if (!orig.exists()) {
@@ -456,7 +950,7 @@ public class DefaultRuleSimulator implements RuleSimulator {
 				}
 				FileUtils.copyFile(orig,
 						new File(newReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION));
-				stats[0] = FileUtils.loadFileAsString(baseReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION);
+				stats[0] = new File(baseReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION);
 			}
 			if (useWorking) {
 				File orig = new File(workingReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION);
@@ -466,7 +960,7 @@ public class DefaultRuleSimulator implements RuleSimulator {
 				}
 				FileUtils.copyFile(orig,
 						new File(newReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION));
-				stats[1] = FileUtils.loadFileAsString(workingReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION);
+				stats[1] = new File(workingReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION);
 			} else {
 				File orig = new File(workingReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION);
 				if (!orig.exists()) {
@@ -475,41 +969,39 @@ public class DefaultRuleSimulator implements RuleSimulator {
 				}
 				FileUtils.copyFile(orig,
 						new File(newReportDir, statsStr + "_" + FILE_NAMES[1] + "." + EXTENSION));
-				stats[1] = FileUtils.loadFileAsString(workingReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION);
+				stats[1] = new File(workingReportDir, statsStr + "_" + FILE_NAMES[0] + "." + EXTENSION);
 			}
 
-			stats[2] = ruleCompare.compareStats(stats[0], stats[1]);
-			FileUtils.copyStream(new ReaderInputStream(new StringReader(stats[2])),
-					new File(newReportDir, statsStr + "_" + FILE_NAMES[2] + "." + EXTENSION));
+			stats[2] = new File(newReportDir, statsStr + "_" + FILE_NAMES[2] + "." + EXTENSION);
+			ruleCompare.compareStats(stats[0], stats[1], stats[2]);
 		}
 
 		// aggregate facts report
-		String stats[] = new String[3];
+		File stats[] = new File[3];
 		if (useBase) {
 			FileUtils.copyFile(new File(baseReportDir, FILE_NAMES[3] + "." + EXTENSION),
 					new File(newReportDir, FILE_NAMES[3] + "." + EXTENSION));
-			stats[0] = FileUtils.loadFileAsString(baseReportDir, FILE_NAMES[3] + "." + EXTENSION);
+			stats[0] = new File(baseReportDir, FILE_NAMES[3] + "." + EXTENSION);
 		} else {
 			FileUtils.copyFile(new File(baseReportDir, FILE_NAMES[4] + "." + EXTENSION),
 					new File(newReportDir, FILE_NAMES[3] + "." + EXTENSION));
-			stats[0] = FileUtils.loadFileAsString(baseReportDir, FILE_NAMES[4] + "." + EXTENSION);
+			stats[0] = new File(baseReportDir, FILE_NAMES[4] + "." + EXTENSION);
 		}
 		if (useWorking) {
 			FileUtils.copyFile(new File(workingReportDir, FILE_NAMES[4] + "." + EXTENSION),
 					new File(newReportDir, FILE_NAMES[4] + "." + EXTENSION));
-			stats[1] = FileUtils.loadFileAsString(workingReportDir, FILE_NAMES[4] + "." + EXTENSION);
+			stats[1] = new File(workingReportDir, FILE_NAMES[4] + "." + EXTENSION);
 		} else {
 			FileUtils.copyFile(new File(workingReportDir, FILE_NAMES[3] + "." + EXTENSION),
 					new File(newReportDir, FILE_NAMES[4] + "." + EXTENSION));
-			stats[1] = FileUtils.loadFileAsString(workingReportDir, FILE_NAMES[3] + "." + EXTENSION);
+			stats[1] = new File(workingReportDir, FILE_NAMES[3] + "." + EXTENSION);
 		}
-		stats[2] = ruleCompare.compareFacts(stats[0], stats[1]);
-		FileUtils.copyStream(new ReaderInputStream(new StringReader(stats[2])),
-				new File(newReportDir, FILE_NAMES[5] + "." + EXTENSION));
+		stats[2] = new File(newReportDir, FILE_NAMES[5] + "." + EXTENSION);
+		ruleCompare.compareFacts(stats[0], stats[1], stats[2]);
 		
 		// Copy report resources
 		copy_report_resources(newReportDir);
 		// Exec diff
-		execute_diff(newReportDir);
+		execute_diff(newReportDir, StatsType.values());
 	}
 }
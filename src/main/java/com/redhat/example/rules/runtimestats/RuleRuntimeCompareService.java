@@ -16,8 +16,10 @@
 
 package com.redhat.example.rules.runtimestats;
 
+import java.io.File;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Function;
 
 import org.kie.api.KieBase;
 import org.kie.api.command.Command;
@@ -58,6 +60,19 @@ public interface RuleRuntimeCompareService {
 	 */
 	public String[] compareExecution(KieBase kieBase1, KieBase kieBase2, CommandsFactory commandsFactory, StatsType statsType);
 
+	/**
+	 * same as compareExecution() but [0] to [5] are streamed into the files
+	 * instead of Strings, so the memory does not grow with the size of the reports.
+	 * @param kieBase1 first KieBase
+	 * @param kieBase2 second KieBase
+	 * @param commandsFactory factory of commands
+	 * @param statsType type of the rule runtime stats. {@link RuleRuntimeStatsService.StatsType}
+	 * @param files six files to write [0] to [5]
+	 * @return the files
+	 */
+	public File[] compareExecution(KieBase kieBase1, KieBase kieBase2, CommandsFactory commandsFactory,
+			StatsType statsType, File[] files);
+
 	/**
 	 * similar to compareExecution() but this method is for warming up only, no return value.
 	 * @param baseRules
@@ -68,6 +83,43 @@ public interface RuleRuntimeCompareService {
 	 */
 	public void compareExecutionForWarmup(KieBase baseRules, KieBase workingRules, CommandsFactory commandsFactory,
 			StatsType statsType, long endWarmupTime);
+
+	/**
+	 * <p>
+	 * Take RuleRuntimeStats of each KieBase and compare them with the first KieBase (the baseline).
+	 * files[i] of kieBases[i] are written as below.
+	 * </p>
+	 * 
+	 * <pre>
+	 * [0] Rule runtime stats
+	 * [1] Comparison of the stats of the baseline and [0]
+	 * [2] Result facts inserted
+	 * [3] Comparison of the result facts of the baseline and [2]
+	 * </pre>
+	 * 
+	 * The body commands are taken by a single iteration of the CommandsFactory for all KieBases,
+	 * and each KieBase executes a batch after another with its own deep copy of the facts.
+	 * The batches of the other KieBases are excluded from the elapsed time of each KieBase.
+	 * [1] and [3] of the baseline are not written. The working memory snapshots are not taken.
+	 * @param kieBases the baseline and the variants. the KieBases must be different as the stats can not be separated.
+	 * @param commandsFactory factory of commands
+	 * @param statsType type of the rule runtime stats. {@link RuleRuntimeStatsService.StatsType}
+	 * @param files four files of each KieBase
+	 * @return the files
+	 */
+	public File[][] compareExecution(List<KieBase> kieBases, CommandsFactory commandsFactory,
+			StatsType statsType, File[][] files);
+
+	/**
+	 * similar to compareExecution() of the KieBases but this method is for warming up only, no return value.
+	 * all KieBases warm up by the same iteration of the CommandsFactory.
+	 * @param kieBases
+	 * @param commandsFactory
+	 * @param statsType
+	 * @param endWarmupTime
+	 */
+	public void compareExecutionForWarmup(List<KieBase> kieBases, CommandsFactory commandsFactory,
+			StatsType statsType, long endWarmupTime);
 	
 	/**
 	 * change the maximum fact list size<BR>
@@ -76,6 +128,88 @@ public interface RuleRuntimeCompareService {
 	 */
 	public void setMaximumFactListSize(int max);
 
+	/**
+	 * execute kieBase1 and kieBase2 at the same time on separate threads<BR>
+	 * the body commands are taken by a single iteration of the CommandsFactory on the calling thread,
+	 * and each execution inserts its own deep copy of the facts as setInputIsolation(true).
+	 * each KieBase is executed by the worker threads of setExecutionThreads, at least one.<BR>
+	 * the same KieBase is executed sequentially as the stats can not be separated.<BR>
+	 * timing comparisons are valid only when the cores are not oversubscribed.
+	 * @param concurrentExecution if true, execute at the same time. the default is false.
+	 */
+	public void setConcurrentExecution(boolean concurrentExecution);
+
+	/**
+	 * execute the body commands of each KieBase by the worker threads<BR>
+	 * each worker collects into its own stats and the stats are merged at the end.
+	 * the facts are collected in the order of the body commands.
+	 * EXECUTION_SEQUENCE stats keep the sequence of the last body commands.
+	 * @param executionThreads number of the worker threads. 1 or less executes on the calling thread (default).
+	 */
+	public void setExecutionThreads(int executionThreads);
+
+	/**
+	 * execute the batches by a pool of stateful sessions instead of a new stateless session for each batch<BR>
+	 * the listeners of the stats are attached once to each session,
+	 * and the working memory is reset after each batch.
+	 * the state of the listeners is reset before each batch, so the stats are the same as
+	 * of the stateless sessions, and EXECUTION_SEQUENCE stats keep the sequence of the last batch.
+	 * a fireAllRules command is appended to the batches without it as the stateless session does.
+	 * @param pooledSessions if true, reuse the stateful sessions. the default is false.
+	 */
+	public void setPooledSessions(boolean pooledSessions);
+
+	/**
+	 * deep copy the inserted objects of each batch before it is executed<BR>
+	 * the rules modify the inserted objects, so the copies keep the executions
+	 * of the rules from seeing the modifications by each other
+	 * when the CommandsFactory returns the same objects in each iteration.
+	 * @param inputIsolation if true, insert the copies. the default is false.
+	 */
+	public void setInputIsolation(boolean inputIsolation);
+
+	/**
+	 * run GC and pause before the execution of each KieBase<BR>
+	 * not to charge the garbage of the previous execution to the next one.
+	 * the executions at the same time (setConcurrentExecution) are not affected.
+	 * @param forceGc if true, run GC before each execution. the default is false.
+	 */
+	public void setForceGc(boolean forceGc);
+
+	/**
+	 * @param gcSettleMillis pause after the forced GC. the default is 1000.
+	 */
+	public void setGcSettleMillis(long gcSettleMillis);
+
+	/**
+	 * register the identity of the facts of the class (and its subclasses)<BR>
+	 * the result facts of compareExecution() with identities are joined by the class and the identity,
+	 * and the added, removed and changed facts are reported instead of the comparison by the position.
+	 * only the changed facts are compared field by field.
+	 * @param factClass class of the facts
+	 * @param identity function which returns the identity (e.g. the id field) of a fact. null unregisters it.
+	 */
+	public <T> void registerFactIdentity(Class<T> factClass, Function<? super T, ?> identity);
+
+	/**
+	 * compare the result facts by 128 bit fingerprints without the maximum fact list size<BR>
+	 * each fact is serialized with the sorted properties into a spill file after its batch is executed,
+	 * and only the fingerprints are kept in the heap. the different facts are read back
+	 * and compared field by field by the position, or joined by the identities if registered.
+	 * @param spillDir directory of the spill files. null disables the fingerprints (default).
+	 */
+	public void setFactFingerprint(String spillDir);
+
+	/**
+	 * write the objects in the working memory at the end of each batch into the snapshot files<BR>
+	 * a GetObjects command is appended to each batch, so the facts updated, retracted or inserted
+	 * by the rules are captured. the snapshots are written by background threads.
+	 * @param snapshot1 snapshot file of kieBase1
+	 * @param snapshot2 snapshot file of kieBase2. null disables the snapshots (default).
+	 * @see com.redhat.example.rules.runtimestats.impl.WorkingMemorySnapshot#read(File, com.fasterxml.jackson.databind.ObjectMapper)
+	 */
+	public void setWorkingMemorySnapshot(File snapshot1, File snapshot2);
+
 	/**
 	 * Generates comparison string from two rule runtime stats
 	 * @param stats1
@@ -84,6 +218,14 @@ public interface RuleRuntimeCompareService {
 	 */
 	public String compareStats(String stats1, String stats2);
 
+	/**
+	 * Writes comparison of two rule runtime stats files into the output file
+	 * @param stats1
+	 * @param stats2
+	 * @param output
+	 */
+	public void compareStats(File stats1, File stats2, File output);
+
 	/**
 	 * Generates comparison string from two lists of facts
 	 * @param factsStr1
@@ -91,6 +233,14 @@ public interface RuleRuntimeCompareService {
 	 * @return comparison string from two lists of facts
 	 */
 	public String compareFacts(String factsStr1, String factsStr2);
+
+	/**
+	 * Writes comparison of two facts files into the output file
+	 * @param facts1
+	 * @param facts2
+	 * @param output
+	 */
+	public void compareFacts(File facts1, File facts2, File output);
 	
 	/**
      * A Factory for this RuleRuntimeCompareService
@@ -20,6 +20,7 @@ import java.io.Writer;
 
 import org.kie.api.event.KieRuntimeEventManager;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
 
@@ -64,5 +65,19 @@ public interface RuleRuntimeStats {
 	 * @param writer
 	 */
 	public void writeStats(ObjectMapper mapper, Writer writer);
+
+	/**
+	 * write stats in JSON format by Jackson directly into the generator
+	 * @param mapper
+	 * @param generator
+	 */
+	public void writeStats(ObjectMapper mapper, JsonGenerator generator);
+
+	/**
+	 * add the stats of the same type and the same KieBase into this stats.<BR>
+	 * the other stats is regarded as collected after this stats.
+	 * @param other
+	 */
+	public void merge(RuleRuntimeStats other);
 	
 }
@@ -21,6 +21,7 @@ import java.io.Writer;
 import org.kie.api.KieBase;
 import org.kie.api.event.KieRuntimeEventManager;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -36,16 +37,41 @@ public interface RuleRuntimeStatsService {
 	 * EXECUTION_COUNT	: count execution times of each rules.
 	 * ACTIVATION		: count activation created, executed and canceled.
 	 * EXECUTION_SEQUENCE	: collect rule execution sequence for the last execution.
+	 * RULE_LATENCY		: histogram of the firing duration of each rules.
+	 * RULE_ALLOCATION	: bytes allocated by the firing of each rules.
+	 * RULE_CPU_TIME	: CPU time of the firing of each rules and of fireAllRules.
 	 * NOOP			: duration time from the last reset to the reporting time.
 	 * </pre>
 	 */
-	public static enum StatsType { EXECUTION_COUNT, ACTIVATION, EXECUTION_SEQUENCE, NOOP }
+	public static enum StatsType { EXECUTION_COUNT, ACTIVATION, EXECUTION_SEQUENCE, RULE_LATENCY, RULE_ALLOCATION, RULE_CPU_TIME, NOOP }
 
 	public static final StatsType EXECUTION_COUNT = StatsType.EXECUTION_COUNT;
 	public static final StatsType ACTIVATION = StatsType.ACTIVATION;
 	public static final StatsType EXECUTION_SEQUENCE = StatsType.EXECUTION_SEQUENCE;
+	public static final StatsType RULE_LATENCY = StatsType.RULE_LATENCY;
+	public static final StatsType RULE_ALLOCATION = StatsType.RULE_ALLOCATION;
+	public static final StatsType RULE_CPU_TIME = StatsType.RULE_CPU_TIME;
 	public static final StatsType NOOP = StatsType.NOOP;
 
+	/**
+	 * Count EXECUTION_COUNT and ACTIVATION stats by arrays indexed by the dense id of rules
+	 * instead of maps of rules. The output of the stats is the same.<BR>
+	 * The existing stats of these types are discarded.
+	 * @param ruleIndexed if true, use arrays indexed by the dense id of rules
+	 */
+	void setRuleIndexed(boolean ruleIndexed);
+
+	/**
+	 * Spill EXECUTION_SEQUENCE stats to a memory-mapped file in the directory
+	 * when the sequence exceeds the threshold, so a long sequence is kept
+	 * with a fixed heap budget.<BR>
+	 * Each stats keeps one spill file, which is truncated when the stats is cleared
+	 * and deleted when the spill is disabled by a null dir.
+	 * @param spillDir directory of the spill files
+	 * @param threshold number of rules kept in the heap. 0 or less disables the spill.
+	 */
+	void setSequenceSpill(String spillDir, long threshold);
+
 	/**
 	 * Set the stats listener to the rule session
 	 * @param session
@@ -79,6 +105,15 @@ public interface RuleRuntimeStatsService {
 	 */
 	void writeStats(ObjectMapper mapper, Writer writer, KieBase kieBase, StatsType statsType);
 
+	/**
+	 * write stats of specific stats type result about the KieBase
+	 * directly into the generator (e.g. a file) without building a String.
+	 * @param generator
+	 * @param kieBase
+	 * @param statsType
+	 */
+	void writeStats(ObjectMapper mapper, JsonGenerator generator, KieBase kieBase, StatsType statsType);
+
 	/**
 	 * reset the stats about the KieBase
 	 * @param kieBase
@@ -16,6 +16,9 @@
 
 package com.redhat.example.rules.runtimestats;
 
+import java.io.File;
+import java.util.Map;
+
 import org.kie.api.KieBase;
 import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService.CommandsFactory;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
@@ -37,6 +40,12 @@ public interface RuleSimulator {
 	 */
 	public KieBase getWorkingRules();
 
+	/**
+	 * provides the candidate rules compared with the base rules by executeVariants()
+	 * @return the variant rules by the names
+	 */
+	public Map<String, KieBase> getVariantRules();
+
 	/**
 	 * provides the report folder
 	 * @return path of the folder
@@ -56,6 +65,15 @@ public interface RuleSimulator {
 	 * @return result stats
 	 */
 	public String[] execute(CommandsFactory commandsFactory, StatsType statsType);
+
+	/**
+	 * execute by the specified rules runtime stats
+	 * and stream the results into the files of the report directory.
+	 * @param commandsFactory
+	 * @param statsType
+	 * @return files of result stats
+	 */
+	public File[] executeToFiles(CommandsFactory commandsFactory, StatsType statsType);
 	
 	/**
 	 * execute for all rules runtime stats.
@@ -63,6 +81,26 @@ public interface RuleSimulator {
 	 */
 	public void executeAllStats(CommandsFactory commandsFactory);
 
+	/**
+	 * execute the base rules and all variant rules by the specified rules runtime stats,
+	 * warming up once for each stats type.
+	 * the report of the base rules and each variant is written into the directory of the variant,
+	 * and the matrix of the variants against the base rules with their rankings into the report directory.
+	 * @param commandsFactory
+	 * @param statsTypes
+	 * @return file of the matrix
+	 */
+	public File executeVariants(CommandsFactory commandsFactory, StatsType... statsTypes);
+
+	/**
+	 * generate the commands once into the command log of the report directory.
+	 * the returned commands factory replays the log, so the executions take it
+	 * instead of generating the commands again. the log can be replayed later by CommandLog.open().
+	 * @param commandsFactory
+	 * @return commands factory replaying the log, or null if failed
+	 */
+	public CommandsFactory recordCommands(CommandsFactory commandsFactory);
+
 	/**
 	 * aggregate already created two reports into new report
 	 * @param baseReportPath report path of base stats
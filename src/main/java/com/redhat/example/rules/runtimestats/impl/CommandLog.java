@@ -0,0 +1,428 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.drools.core.command.runtime.SetGlobalCommand;
+import org.drools.core.command.runtime.process.StartProcessCommand;
+import org.drools.core.command.runtime.rule.FireAllRulesCommand;
+import org.drools.core.command.runtime.rule.InsertElementsCommand;
+import org.drools.core.command.runtime.rule.InsertObjectCommand;
+import org.kie.api.command.Command;
+import org.kie.api.runtime.rule.AgendaFilter;
+
+import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService.CommandsFactory;
+
+/**
+ * CommandsFactory replaying the commands recorded in a binary log.<BR>
+ * record() takes the commands from another CommandsFactory once and writes
+ * the static first commands, the static last commands and every body batch
+ * as length-prefixed records. The log is memory-mapped, and each batch is decoded
+ * directly from the mapped buffer whenever it is iterated, so every iteration gets new facts.
+ * Each record is a separate Java serialization stream to be decoded independently,
+ * so the class descriptors of the facts are written again in every record.
+ * The inserted facts, the globals and the process parameters must be Serializable.
+ * The commands other than insert, insertElements, fireAllRules, startProcess and setGlobal
+ * must be Serializable.
+ *
+ * @author okuniyas
+ */
+public class CommandLog implements CommandsFactory, Closeable {
+	private static final int MAGIC = 0x52434c32; // "RCL2"
+	// mappings are split at the records not to exceed the limit of a MappedByteBuffer
+	private static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+	private static final byte SERIALIZED = 0;
+	private static final byte INSERT_OBJECT = 1;
+	private static final byte INSERT_ELEMENTS = 2;
+	private static final byte FIRE_ALL_RULES = 3;
+	private static final byte START_PROCESS = 4;
+	private static final byte SET_GLOBAL = 5;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final List<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>();
+	// mapping and position of each record
+	private final List<int[]> records = new ArrayList<int[]>();
+	private final List<Command<?>> staticFirstCommands;
+	private final List<Command<?>> staticLastCommands;
+
+	private CommandLog(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < 4 || readInt(channel, 0) != MAGIC) {
+				throw new IOException(file + " is not a command log");
+			}
+			// scan the lengths of the records and map them by the regions
+			long regionStart = 4;
+			long position = 4;
+			List<long[]> regionRecords = new ArrayList<long[]>();
+			while (position < size) {
+				long length = readInt(channel, position) & 0xffffffffL;
+				long end = position + 4 + length;
+				if (end > size) {
+					throw new IOException("truncated record at " + position + " of " + file);
+				}
+				if (end - regionStart > MAX_MAPPING) {
+					map(channel, regionStart, position, regionRecords);
+					regionStart = position;
+				}
+				regionRecords.add(new long[] { position + 4, length });
+				position = end;
+			}
+			map(channel, regionStart, position, regionRecords);
+			if (records.size() < 2) {
+				throw new IOException("no static commands in " + file);
+			}
+			staticFirstCommands = Collections.unmodifiableList(decode(0));
+			staticLastCommands = Collections.unmodifiableList(decode(1));
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * take all commands from the CommandsFactory and write them into the log
+	 * @param commandsFactory source of the commands
+	 * @param file log to write
+	 * @return the log opened to replay
+	 * @throws IOException if the log can not be written
+	 */
+	public static CommandLog record(CommandsFactory commandsFactory, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			out.writeInt(MAGIC);
+			writeRecord(out, buffer, commandsFactory.getStaticFirstCommands());
+			writeRecord(out, buffer, commandsFactory.getStaticLastCommands());
+			Iterator<List<Command<?>>> ite = commandsFactory.getBodyCommandsIterator();
+			while (ite.hasNext()) {
+				writeRecord(out, buffer, ite.next());
+			}
+		} finally {
+			out.close();
+		}
+		return open(file);
+	}
+
+	/**
+	 * open the log to replay
+	 * @param file log written by record()
+	 * @return the log
+	 * @throws IOException if the file is not a log
+	 */
+	public static CommandLog open(File file) throws IOException {
+		return new CommandLog(file);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return number of the body batches
+	 */
+	public int size() {
+		return records.size() - 2;
+	}
+
+	/**
+	 * the same commands are returned in every call as the static commands of the source are shared.
+	 */
+	@Override
+	public List<Command<?>> getStaticFirstCommands() {
+		return staticFirstCommands;
+	}
+
+	/**
+	 * decode each batch from the log when it is taken.
+	 * the iterators are independent, so they can be used by the threads at the same time.
+	 */
+	@Override
+	public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+		return new Iterator<List<Command<?>>>() {
+			private int next = 2;
+
+			@Override
+			public boolean hasNext() {
+				return next < records.size();
+			}
+
+			@Override
+			public List<Command<?>> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return decode(next++);
+			}
+		};
+	}
+
+	@Override
+	public List<Command<?>> getStaticLastCommands() {
+		return staticLastCommands;
+	}
+
+	/**
+	 * close the file. the mapping is released when it is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private void map(FileChannel channel, long start, long end, List<long[]> regionRecords) throws IOException {
+		if (regionRecords.isEmpty()) {
+			return;
+		}
+		mappings.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+		for (long[] record : regionRecords) {
+			records.add(new int[] { mappings.size() - 1, (int)(record[0] - start), (int)record[1] });
+		}
+		regionRecords.clear();
+	}
+
+	private static int readInt(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of the command log");
+			}
+		}
+		buffer.flip();
+		return buffer.getInt();
+	}
+
+	// write the commands as a length-prefixed record
+	static void writeRecord(DataOutputStream out, ByteArrayOutputStream buffer,
+			List<Command<?>> commands) throws IOException {
+		buffer.reset();
+		ObjectOutputStream oos = new ObjectOutputStream(buffer);
+		List<Command<?>> list = commands == null ? Collections.<Command<?>>emptyList() : commands;
+		oos.writeInt(list.size());
+		for (Command<?> command : list) {
+			try {
+				writeCommand(oos, command);
+			} catch (NotSerializableException e) {
+				throw new IllegalArgumentException("can not record " + command + ": " +
+						e.getMessage() + " is not Serializable", e);
+			}
+		}
+		oos.close();
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+	}
+
+	private static void writeCommand(ObjectOutputStream oos, Command<?> command) throws IOException {
+		if (command instanceof InsertObjectCommand) {
+			InsertObjectCommand c = (InsertObjectCommand)command;
+			oos.writeByte(INSERT_OBJECT);
+			oos.writeObject(c.getObject());
+			oos.writeBoolean(c.isDisconnected());
+			oos.writeObject(c.getOutIdentifier());
+			oos.writeBoolean(c.isReturnObject());
+			oos.writeObject(c.getEntryPoint());
+		} else if (command instanceof InsertElementsCommand) {
+			InsertElementsCommand c = (InsertElementsCommand)command;
+			oos.writeByte(INSERT_ELEMENTS);
+			oos.writeObject(new ArrayList<Object>(c.getObjects()));
+			oos.writeObject(c.getOutIdentifier());
+			oos.writeBoolean(c.isReturnObject());
+			oos.writeObject(c.getEntryPoint());
+		} else if (command instanceof FireAllRulesCommand) {
+			FireAllRulesCommand c = (FireAllRulesCommand)command;
+			oos.writeByte(FIRE_ALL_RULES);
+			oos.writeInt(c.getMax());
+			oos.writeObject(c.getOutIdentifier());
+			oos.writeObject(c.getAgendaFilter());
+		} else if (command instanceof StartProcessCommand) {
+			StartProcessCommand c = (StartProcessCommand)command;
+			oos.writeByte(START_PROCESS);
+			oos.writeObject(c.getProcessId());
+			oos.writeObject(c.getParameters());
+			oos.writeObject(c.getData());
+			oos.writeObject(c.getOutIdentifier());
+		} else if (command instanceof SetGlobalCommand) {
+			SetGlobalCommand c = (SetGlobalCommand)command;
+			oos.writeByte(SET_GLOBAL);
+			oos.writeObject(c.getIdentifier());
+			oos.writeObject(c.getObject());
+			oos.writeObject(c.getOutIdentifier());
+		} else if (command instanceof Serializable) {
+			oos.writeByte(SERIALIZED);
+			oos.writeObject(command);
+		} else {
+			throw new IllegalArgumentException("can not record " + command.getClass().getName());
+		}
+	}
+
+	// decode the record from the mapped buffer without copying it
+	private List<Command<?>> decode(int index) {
+		int[] record = records.get(index);
+		ByteBuffer buffer = mappings.get(record[0]).duplicate();
+		buffer.limit(record[1] + record[2]);
+		buffer.position(record[1]);
+		try {
+			return readCommands(new ByteBufferInputStream(buffer));
+		} catch (IOException | ClassNotFoundException e) {
+			throw new IllegalStateException("can not read record " + index + " of " + file, e);
+		}
+	}
+
+	// read the commands of a record without the length
+	static List<Command<?>> readCommands(InputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new ContextObjectInputStream(in);
+		int size = ois.readInt();
+		List<Command<?>> commands = new ArrayList<Command<?>>(size);
+		for (int i=0; i<size; i++) {
+			commands.add(readCommand(ois));
+		}
+		return commands;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Command<?> readCommand(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+		byte type = ois.readByte();
+		switch (type) {
+		case INSERT_OBJECT: {
+			InsertObjectCommand c = new InsertObjectCommand(ois.readObject(), ois.readBoolean());
+			c.setOutIdentifier((String)ois.readObject());
+			c.setReturnObject(ois.readBoolean());
+			setEntryPoint(c, (String)ois.readObject());
+			return c;
+		}
+		case INSERT_ELEMENTS: {
+			InsertElementsCommand c = new InsertElementsCommand((Collection<Object>)ois.readObject());
+			c.setOutIdentifier((String)ois.readObject());
+			c.setReturnObject(ois.readBoolean());
+			String entryPoint = (String)ois.readObject();
+			if (entryPoint != null) {
+				c.setEntryPoint(entryPoint);
+			}
+			return c;
+		}
+		case FIRE_ALL_RULES: {
+			int max = ois.readInt();
+			String outIdentifier = (String)ois.readObject();
+			return new FireAllRulesCommand(outIdentifier, max, (AgendaFilter)ois.readObject());
+		}
+		case START_PROCESS: {
+			StartProcessCommand c = new StartProcessCommand((String)ois.readObject(),
+					(Map<String, Object>)ois.readObject());
+			c.setData((List<Object>)ois.readObject());
+			c.setOutIdentifier((String)ois.readObject());
+			return c;
+		}
+		case SET_GLOBAL: {
+			SetGlobalCommand c = new SetGlobalCommand((String)ois.readObject(), ois.readObject());
+			c.setOutIdentifier((String)ois.readObject());
+			return c;
+		}
+		case SERIALIZED:
+			return (Command<?>)ois.readObject();
+		default:
+			throw new IOException("unknown command type " + type);
+		}
+	}
+
+	private static void setEntryPoint(InsertObjectCommand c, String entryPoint) {
+		if (entryPoint != null) {
+			c.setEntryPoint(entryPoint);
+		}
+	}
+
+	// reads the remaining bytes of the buffer
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	// resolves the classes of the facts by the context class loader first
+	private static class ContextObjectInputStream extends ObjectInputStream {
+		private ContextObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if (loader != null) {
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				} catch (ClassNotFoundException e) {
+					// fall back to the default
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.drools.core.command.runtime.rule.InsertElementsCommand;
+import org.drools.core.command.runtime.rule.InsertObjectCommand;
+import org.kie.api.command.Command;
+
+import sun.misc.Unsafe;
+
+/**
+ * Deep copy of the facts to isolate the executions from each other.<BR>
+ * The fields of each class are looked up once and cached as their Unsafe offsets,
+ * so an object is copied field by field without reflection or serialization.
+ * Strings, boxed primitives, enums and the other immutable JDK values are shared.
+ * The hashed sets and maps of the JDK are rebuilt, as the hash codes of the copied keys may differ.
+ * An instance keeps the copied objects, so the objects shared in a batch are copied once.
+ *
+ * @author okuniyas
+ */
+public class DeepCloner {
+	private static final Unsafe UNSAFE = unsafe();
+	private static final Map<Class<?>, Layout> LAYOUTS = new ConcurrentHashMap<Class<?>, Layout>();
+
+	private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+
+	/**
+	 * copy the inserted objects of the command
+	 * @param command
+	 * @return the command inserting the copies, or the command itself if it does not insert
+	 */
+	public Command<?> copyCommand(Command<?> command) {
+		if (command instanceof InsertObjectCommand) {
+			InsertObjectCommand c = (InsertObjectCommand)command;
+			InsertObjectCommand copy = new InsertObjectCommand(copy(c.getObject()), c.isDisconnected());
+			copy.setOutIdentifier(c.getOutIdentifier());
+			copy.setReturnObject(c.isReturnObject());
+			if (c.getEntryPoint() != null) {
+				copy.setEntryPoint(c.getEntryPoint());
+			}
+			return copy;
+		} else if (command instanceof InsertElementsCommand) {
+			InsertElementsCommand c = (InsertElementsCommand)command;
+			List<Object> objects = new ArrayList<Object>(c.getObjects().size());
+			for (Object o : c.getObjects()) {
+				objects.add(copy(o));
+			}
+			InsertElementsCommand copy = new InsertElementsCommand(objects);
+			copy.setOutIdentifier(c.getOutIdentifier());
+			copy.setReturnObject(c.isReturnObject());
+			if (c.getEntryPoint() != null) {
+				copy.setEntryPoint(c.getEntryPoint());
+			}
+			return copy;
+		}
+		return command;
+	}
+
+	/**
+	 * @param object
+	 * @return deep copy of the object
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T copy(T object) {
+		if (object == null) {
+			return null;
+		}
+		Layout layout = layout(object.getClass());
+		if (layout.immutable) {
+			return object;
+		}
+		Object copy = copies.get(object);
+		if (copy == null) {
+			copy = layout.copy(object, this);
+		}
+		return (T)copy;
+	}
+
+	private static Layout layout(Class<?> clazz) {
+		Layout layout = LAYOUTS.get(clazz);
+		if (layout == null) {
+			layout = new Layout(clazz);
+			LAYOUTS.put(clazz, layout);
+		}
+		return layout;
+	}
+
+	private static boolean isImmutable(Class<?> clazz) {
+		if (clazz == String.class || clazz == Boolean.class || clazz == Character.class ||
+				clazz == Byte.class || clazz == Short.class || clazz == Integer.class ||
+				clazz == Long.class || clazz == Float.class || clazz == Double.class ||
+				clazz == BigInteger.class || clazz == BigDecimal.class || clazz == UUID.class ||
+				clazz == Class.class || Enum.class.isAssignableFrom(clazz)) {
+			return true;
+		}
+		Package p = clazz.getPackage();
+		return p != null && p.getName().startsWith("java.time");
+	}
+
+	private static Unsafe unsafe() {
+		try {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return (Unsafe)field.get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	// how to copy the objects of a class
+	private static class Layout {
+		private static final MethodType CONSTRUCTOR = MethodType.methodType(void.class);
+
+		private final Class<?> clazz;
+		private final boolean immutable;
+		// rebuilt hashed collection
+		private final MethodHandle constructor;
+		// offsets of the primitive fields by the kind, and of the reference fields
+		private final long[] offsets;
+		private final char[] kinds;
+
+		private Layout(Class<?> clazz) {
+			this.clazz = clazz;
+			this.immutable = isImmutable(clazz);
+			this.constructor = hashedCollectionConstructor(clazz);
+			List<Field> fields = new ArrayList<Field>();
+			if (!immutable && !clazz.isArray()) {
+				if (UNSAFE == null) {
+					throw new IllegalStateException("sun.misc.Unsafe is not available to copy " + clazz.getName());
+				}
+				for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+					for (Field field : c.getDeclaredFields()) {
+						if (!Modifier.isStatic(field.getModifiers())) {
+							fields.add(field);
+						}
+					}
+				}
+			}
+			offsets = new long[fields.size()];
+			kinds = new char[fields.size()];
+			for (int i=0; i<offsets.length; i++) {
+				Class<?> type = fields.get(i).getType();
+				offsets[i] = UNSAFE.objectFieldOffset(fields.get(i));
+				kinds[i] = type == long.class ? 'J' : type == int.class ? 'I' :
+					type == double.class ? 'D' : type == float.class ? 'F' :
+					type == boolean.class ? 'Z' : type == byte.class ? 'B' :
+					type == short.class ? 'S' : type == char.class ? 'C' : 'L';
+			}
+		}
+
+		// java.util hashed sets and maps with the default constructor, or null
+		private static MethodHandle hashedCollectionConstructor(Class<?> clazz) {
+			if (!clazz.getName().startsWith("java.util.") ||
+					!(Collection.class.isAssignableFrom(clazz) || Map.class.isAssignableFrom(clazz)) ||
+					List.class.isAssignableFrom(clazz) ||
+					SortedSet.class.isAssignableFrom(clazz) || SortedMap.class.isAssignableFrom(clazz)) {
+				return null;
+			}
+			try {
+				return MethodHandles.publicLookup().findConstructor(clazz, CONSTRUCTOR);
+			} catch (NoSuchMethodException | IllegalAccessException e) {
+				return null;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Object copy(Object src, DeepCloner cloner) {
+			if (clazz.isArray()) {
+				return copyArray(src, cloner);
+			}
+			if (constructor != null) {
+				Object dst;
+				try {
+					dst = constructor.invoke();
+				} catch (Throwable e) {
+					throw new IllegalStateException("can not create " + clazz.getName(), e);
+				}
+				cloner.copies.put(src, dst);
+				if (src instanceof Map) {
+					for (Map.Entry<Object, Object> entry : ((Map<Object, Object>)src).entrySet()) {
+						((Map<Object, Object>)dst).put(cloner.copy(entry.getKey()), cloner.copy(entry.getValue()));
+					}
+				} else {
+					for (Object o : (Collection<Object>)src) {
+						((Collection<Object>)dst).add(cloner.copy(o));
+					}
+				}
+				return dst;
+			}
+			Object dst;
+			try {
+				dst = UNSAFE.allocateInstance(clazz);
+			} catch (InstantiationException e) {
+				throw new IllegalStateException("can not create " + clazz.getName(), e);
+			}
+			cloner.copies.put(src, dst);
+			for (int i=0; i<offsets.length; i++) {
+				long offset = offsets[i];
+				switch (kinds[i]) {
+				case 'J': UNSAFE.putLong(dst, offset, UNSAFE.getLong(src, offset)); break;
+				case 'I': UNSAFE.putInt(dst, offset, UNSAFE.getInt(src, offset)); break;
+				case 'D': UNSAFE.putDouble(dst, offset, UNSAFE.getDouble(src, offset)); break;
+				case 'F': UNSAFE.putFloat(dst, offset, UNSAFE.getFloat(src, offset)); break;
+				case 'Z': UNSAFE.putBoolean(dst, offset, UNSAFE.getBoolean(src, offset)); break;
+				case 'B': UNSAFE.putByte(dst, offset, UNSAFE.getByte(src, offset)); break;
+				case 'S': UNSAFE.putShort(dst, offset, UNSAFE.getShort(src, offset)); break;
+				case 'C': UNSAFE.putChar(dst, offset, UNSAFE.getChar(src, offset)); break;
+				default: UNSAFE.putObject(dst, offset, cloner.copy(UNSAFE.getObject(src, offset)));
+				}
+			}
+			return dst;
+		}
+
+		private Object copyArray(Object src, DeepCloner cloner) {
+			Object dst;
+			if (src instanceof Object[]) {
+				Object[] array = (Object[])src;
+				Object[] copy = (Object[])Array.newInstance(clazz.getComponentType(), array.length);
+				cloner.copies.put(src, copy);
+				for (int i=0; i<array.length; i++) {
+					copy[i] = cloner.copy(array[i]);
+				}
+				return copy;
+			} else if (src instanceof int[]) {
+				dst = ((int[])src).clone();
+			} else if (src instanceof long[]) {
+				dst = ((long[])src).clone();
+			} else if (src instanceof double[]) {
+				dst = ((double[])src).clone();
+			} else if (src instanceof byte[]) {
+				dst = ((byte[])src).clone();
+			} else if (src instanceof char[]) {
+				dst = ((char[])src).clone();
+			} else if (src instanceof boolean[]) {
+				dst = ((boolean[])src).clone();
+			} else if (src instanceof float[]) {
+				dst = ((float[])src).clone();
+			} else {
+				dst = ((short[])src).clone();
+			}
+			cloner.copies.put(src, dst);
+			return dst;
+		}
+	}
+}
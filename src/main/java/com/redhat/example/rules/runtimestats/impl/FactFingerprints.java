@@ -0,0 +1,597 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService;
+
+/**
+ * Result facts kept as 128 bit fingerprints in the heap
+ * and as serialized JSON in a spill file.<BR>
+ * Each fact is serialized with the properties and the map entries sorted,
+ * so the same fact has the same fingerprint in both executions.
+ * The facts are compared by the fingerprints and read back from the spill file
+ * only when they differ, so the number of the facts is not limited by the heap.<BR>
+ * If the identities of the facts are registered, the facts are joined by the fingerprints
+ * of the class and the identity as {@link KeyedFactComparator} does, and the label of the identity
+ * is spilled after the fact. The facts without identity are compared by the position.
+ *
+ * @author okuniyas
+ */
+@JsonSerialize(using=FactFingerprints.FactsSerializer.class)
+class FactFingerprints {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ObjectMapper mapper;
+	private final ObjectMapper canonicalMapper;
+	private final KeyedFactComparator identities;
+	private final File spillFile;
+	private OutputStream spill;
+
+	// {h1, h2} of each fact and the offsets of the facts in the spill file
+	private long[] hashes = new long[INITIAL_CAPACITY * 2];
+	private long[] offsets = new long[INITIAL_CAPACITY + 1];
+	// {h1, h2} of the identity of each fact and the length of its label, 0 if no identity
+	private long[] keyHashes;
+	private int[] keyLengths;
+	private int size = 0;
+
+	// batches executed out of order by the worker threads
+	private final TreeMap<Long, SerializedFacts> pendingBatches = new TreeMap<Long, SerializedFacts>();
+	private long nextBatch = 0;
+
+	/**
+	 * @param mapper mapper of the reports
+	 * @param spillDir directory of the spill file. null is the temporary directory.
+	 * @param identities identities of the facts. null compares the facts by the position.
+	 */
+	FactFingerprints(ObjectMapper mapper, File spillDir, KeyedFactComparator identities) {
+		this.mapper = mapper;
+		canonicalMapper = canonicalMapper(mapper);
+		this.identities = identities;
+		if (identities != null) {
+			keyHashes = new long[INITIAL_CAPACITY * 2];
+			keyLengths = new int[INITIAL_CAPACITY];
+		}
+		try {
+			spillFile = File.createTempFile("result_facts_", ".spill", spillDir);
+			spillFile.deleteOnExit();
+			spill = new BufferedOutputStream(new FileOutputStream(spillFile), 64 * 1024);
+		} catch (IOException e) {
+			throw new IllegalStateException("can not create the spill file in " + spillDir, e);
+		}
+	}
+
+	/**
+	 * @param mapper mapper of the reports
+	 * @return mapper which writes the same fact into the same bytes
+	 */
+	static ObjectMapper canonicalMapper(ObjectMapper mapper) {
+		return mapper.copy()
+				.disable(SerializationFeature.INDENT_OUTPUT)
+				.enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+				.configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+	}
+
+	/**
+	 * serialize the facts after the batch is executed.
+	 * may be called by the worker threads.
+	 * @param facts
+	 * @return canonical JSON and the identity of each fact
+	 */
+	SerializedFacts serialize(List<Object> facts) {
+		SerializedFacts serialized = new SerializedFacts(facts.size(), identities != null);
+		for (int i=0; i<facts.size(); i++) {
+			Object fact = facts.get(i);
+			serialized.facts[i] = serialize(canonicalMapper, fact);
+			Map.Entry<Class<?>, Object> key = identities != null ? identities.keyOf(fact) : null;
+			if (key != null) {
+				byte[] name = (key.getKey().getName() + " " + key.getValue()).getBytes(StandardCharsets.UTF_8);
+				long[] hash = MurmurHash3.hash128(name, 0, name.length, 0);
+				serialized.keyHashes[i * 2] = hash[0];
+				serialized.keyHashes[i * 2 + 1] = hash[1];
+				serialized.labels[i] = (key.getKey().getSimpleName() + " " + key.getValue())
+						.getBytes(StandardCharsets.UTF_8);
+			}
+		}
+		return serialized;
+	}
+
+	static byte[] serialize(ObjectMapper canonicalMapper, Object fact) {
+		try {
+			return canonicalMapper.writeValueAsBytes(fact);
+		} catch (JsonProcessingException e) {
+			// e.g. cyclic references, compared by the string
+			try {
+				return canonicalMapper.writeValueAsBytes(String.valueOf(fact));
+			} catch (JsonProcessingException e1) {
+				throw new IllegalStateException("can not serialize the fact", e1);
+			}
+		}
+	}
+
+	/**
+	 * add the serialized facts of the batch in the order of the batch numbers.
+	 * @param number sequential number of the batch from 0
+	 * @param serialized
+	 */
+	synchronized void addBatch(long number, SerializedFacts serialized) {
+		pendingBatches.put(number, serialized);
+		SerializedFacts next;
+		while ((next = pendingBatches.remove(nextBatch)) != null) {
+			for (int i=0; i<next.facts.length; i++) {
+				add(next, i);
+			}
+			nextBatch++;
+		}
+	}
+
+	private void add(SerializedFacts serialized, int i) {
+		if (size == offsets.length - 1) {
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			offsets = Arrays.copyOf(offsets, offsets.length * 2 - 1);
+			if (keyHashes != null) {
+				keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+				keyLengths = Arrays.copyOf(keyLengths, keyLengths.length * 2);
+			}
+		}
+		byte[] fact = serialized.facts[i];
+		long[] hash = MurmurHash3.hash128(fact, 0, fact.length, 0);
+		hashes[size * 2] = hash[0];
+		hashes[size * 2 + 1] = hash[1];
+		byte[] label = keyHashes != null ? serialized.labels[i] : null;
+		try {
+			spill.write(fact);
+			if (label != null) {
+				spill.write(label);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("can not write the spill file " + spillFile, e);
+		}
+		if (label != null) {
+			keyHashes[size * 2] = serialized.keyHashes[i * 2];
+			keyHashes[size * 2 + 1] = serialized.keyHashes[i * 2 + 1];
+			keyLengths[size] = label.length;
+		}
+		offsets[size + 1] = offsets[size] + fact.length + (label != null ? label.length : 0);
+		size++;
+	}
+
+	// the length of the fact without the label of the identity
+	private int factLength(int index) {
+		return (int)(offsets[index + 1] - offsets[index]) - (keyLengths != null ? keyLengths[index] : 0);
+	}
+
+	/**
+	 * flush the spill file to read the facts.
+	 */
+	synchronized void finish() {
+		if (!pendingBatches.isEmpty()) {
+			throw new IllegalStateException("batch " + nextBatch + " is not added");
+		}
+		if (spill == null) {
+			return;
+		}
+		try {
+			spill.close();
+		} catch (IOException e) {
+			throw new IllegalStateException("can not write the spill file " + spillFile, e);
+		} finally {
+			spill = null;
+		}
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * close and delete the spill file
+	 */
+	synchronized void delete() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			spill = null;
+		}
+		spillFile.delete();
+	}
+
+	private boolean sameFingerprint(int index, FactFingerprints other, int otherIndex) {
+		return hashes[index * 2] == other.hashes[otherIndex * 2] &&
+				hashes[index * 2 + 1] == other.hashes[otherIndex * 2 + 1];
+	}
+
+	/**
+	 * compare the facts by the position, or join them by the identities if registered.<BR>
+	 * the facts of the same fingerprints are counted as "= n facts",
+	 * and the different facts are compared field by field.
+	 * @param other facts of the 2nd execution
+	 * @return items of the comparison, or "same" count, "changed", "removed" and "added" facts
+	 * and "notKeyed" items of the comparison of the facts without identity.
+	 */
+	Object compare(FactFingerprints other) {
+		if (keyHashes == null || other.keyHashes == null) {
+			return new Comparison(this, null, other, null);
+		}
+		RandomReader reader1 = null, reader2 = null;
+		try {
+			reader1 = new RandomReader();
+			reader2 = other.new RandomReader();
+			return compareByIdentity(other, reader1, reader2);
+		} catch (IOException e) {
+			throw new IllegalStateException("can not read the spill file", e);
+		} finally {
+			closeQuietly(reader1);
+			closeQuietly(reader2);
+		}
+	}
+
+	private Map<String, Object> compareByIdentity(FactFingerprints other,
+			RandomReader reader1, RandomReader reader2) throws IOException {
+		// the 2nd facts by the identities keeping the order of the same identities
+		Map<Key, ArrayDeque<Integer>> keyToFacts2 = new HashMap<Key, ArrayDeque<Integer>>();
+		List<Integer> notKeyed2 = new ArrayList<Integer>();
+		for (int i=0; i<other.size; i++) {
+			if (other.keyLengths[i] == 0) {
+				notKeyed2.add(i);
+				continue;
+			}
+			Key key = other.keyOf(i);
+			ArrayDeque<Integer> same = keyToFacts2.get(key);
+			if (same == null) {
+				same = new ArrayDeque<Integer>(1);
+				keyToFacts2.put(key, same);
+			}
+			same.add(i);
+		}
+
+		int same = 0;
+		List<Object> changed = new ArrayList<Object>();
+		List<Object> removed = new ArrayList<Object>();
+		List<Integer> notKeyed1 = new ArrayList<Integer>();
+		for (int i=0; i<size; i++) {
+			if (keyLengths[i] == 0) {
+				notKeyed1.add(i);
+				continue;
+			}
+			ArrayDeque<Integer> candidates = keyToFacts2.get(keyOf(i));
+			Integer j = candidates == null ? null : candidates.poll();
+			if (j == null) {
+				removed.add(mapper.readValue(reader1.readFact(i), Object.class));
+			} else if (sameFingerprint(i, other, j)) {
+				same++;
+			} else {
+				Map<String, Object> change = new LinkedHashMap<String, Object>();
+				change.put("key", new String(reader1.readLabel(i), StandardCharsets.UTF_8));
+				change.put("fields", RuleRuntimeCompareServiceBean.compareObj(
+						mapper.readValue(reader1.readFact(i), Object.class),
+						other.mapper.readValue(reader2.readFact(j), Object.class)));
+				changed.add(change);
+			}
+		}
+		// the rest of the 2nd facts in the order of the facts
+		List<Object> added = new ArrayList<Object>();
+		for (int j=0; j<other.size; j++) {
+			if (other.keyLengths[j] == 0) {
+				continue;
+			}
+			ArrayDeque<Integer> rest = keyToFacts2.get(other.keyOf(j));
+			if (rest.peek() != null && rest.peek() == j) {
+				rest.poll();
+				added.add(other.mapper.readValue(reader2.readFact(j), Object.class));
+			}
+		}
+
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("same", same);
+		ret.put("changed", changed.isEmpty() ? RuleRuntimeCompareService.SAME_ARRAY : changed);
+		ret.put("removed", removed.isEmpty() ? RuleRuntimeCompareService.SAME_ARRAY : removed);
+		ret.put("added", added.isEmpty() ? RuleRuntimeCompareService.SAME_ARRAY : added);
+		if (!notKeyed1.isEmpty() || !notKeyed2.isEmpty()) {
+			ret.put("notKeyed", new Comparison(this, toArray(notKeyed1), other, toArray(notKeyed2)));
+		}
+		return ret;
+	}
+
+	private Key keyOf(int index) {
+		return new Key(keyHashes[index * 2], keyHashes[index * 2 + 1]);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i=0; i<array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * facts of a batch serialized by the executing thread
+	 */
+	static class SerializedFacts {
+		private final byte[][] facts;
+		// {h1, h2} of the identities and the labels, null if no identity
+		private final long[] keyHashes;
+		private final byte[][] labels;
+
+		private SerializedFacts(int size, boolean keyed) {
+			facts = new byte[size][];
+			keyHashes = keyed ? new long[size * 2] : null;
+			labels = keyed ? new byte[size][] : null;
+		}
+	}
+
+	// 128 bit fingerprint of the class and the identity of a fact
+	private static class Key {
+		private final long h1, h2;
+
+		private Key(long h1, long h2) {
+			this.h1 = h1;
+			this.h2 = h2;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)h1;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && ((Key)obj).h1 == h1 && ((Key)obj).h2 == h2;
+		}
+	}
+
+	// reads the facts and the labels in any order
+	private class RandomReader implements Closeable {
+		private final RandomAccessFile file;
+
+		private RandomReader() throws IOException {
+			file = new RandomAccessFile(spillFile, "r");
+		}
+
+		private byte[] readFact(int index) throws IOException {
+			return read(offsets[index], factLength(index));
+		}
+
+		private byte[] readLabel(int index) throws IOException {
+			return read(offsets[index + 1] - keyLengths[index], keyLengths[index]);
+		}
+
+		private byte[] read(long start, int length) throws IOException {
+			byte[] bytes = new byte[length];
+			file.seek(start);
+			file.readFully(bytes);
+			return bytes;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+	// reads the facts in the ascending order of the index
+	private class Reader implements Closeable {
+		private final DataInputStream in;
+		private long position = 0;
+
+		private Reader() throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 64 * 1024));
+		}
+
+		private byte[] read(int index) throws IOException {
+			long start = offsets[index];
+			while (position < start) {
+				long skipped = in.skip(start - position);
+				if (skipped <= 0) {
+					throw new IOException("unexpected end of the spill file " + spillFile);
+				}
+				position += skipped;
+			}
+			byte[] fact = new byte[factLength(index)];
+			in.readFully(fact);
+			position += fact.length;
+			return fact;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/*
+	 * Items of the comparison by the position. The readers are opened at the first different fact.
+	 */
+	@JsonSerialize(using=ComparisonSerializer.class)
+	static class Comparison implements Iterator<Object>, Closeable {
+		private final FactFingerprints facts1, facts2;
+		// the compared facts in the ascending order, null for all facts
+		private final int[] indexes1, indexes2;
+		private final int size1, size2;
+		private Reader reader1, reader2;
+		private int index = 0;
+
+		private Comparison(FactFingerprints facts1, int[] indexes1, FactFingerprints facts2, int[] indexes2) {
+			this.facts1 = facts1;
+			this.facts2 = facts2;
+			this.indexes1 = indexes1;
+			this.indexes2 = indexes2;
+			size1 = indexes1 != null ? indexes1.length : facts1.size;
+			size2 = indexes2 != null ? indexes2.length : facts2.size;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < Math.max(size1, size2);
+		}
+
+		@Override
+		public Object next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int same = 0;
+			int common = Math.min(size1, size2);
+			while (index < common && facts1.sameFingerprint(indexOf(indexes1, index), facts2, indexOf(indexes2, index))) {
+				index++;
+				same++;
+			}
+			if (same > 0) {
+				return RuleRuntimeCompareService.SAME_HEADER + same + " facts";
+			}
+			Map<String, Object> diff = new LinkedHashMap<String, Object>();
+			diff.put("fact", index);
+			try {
+				diff.put("fields", RuleRuntimeCompareServiceBean.compareObj(
+						read(facts1, size1, indexes1), read(facts2, size2, indexes2)));
+			} catch (IOException e) {
+				throw new IllegalStateException("can not read the spill file", e);
+			}
+			index++;
+			return diff;
+		}
+
+		private static int indexOf(int[] indexes, int index) {
+			return indexes != null ? indexes[index] : index;
+		}
+
+		private Object read(FactFingerprints facts, int size, int[] indexes) throws IOException {
+			if (size <= index) {
+				return null;
+			}
+			Reader reader;
+			if (facts == facts1) {
+				if (reader1 == null) reader1 = facts.new Reader();
+				reader = reader1;
+			} else {
+				if (reader2 == null) reader2 = facts.new Reader();
+				reader = reader2;
+			}
+			return facts.mapper.readValue(reader.read(indexOf(indexes, index)), Object.class);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader1 != null) reader1.close();
+			if (reader2 != null) reader2.close();
+		}
+	}
+
+	/**
+	 * writes the facts one per line from the spill file
+	 */
+	static class FactsSerializer extends StdSerializer<FactFingerprints> {
+		private static final long serialVersionUID = 1L;
+
+		FactsSerializer() {
+			super(FactFingerprints.class);
+		}
+
+		@Override
+		public void serialize(FactFingerprints facts, JsonGenerator jgen, SerializerProvider provider)
+				throws IOException {
+			jgen.writeStartArray();
+			Reader reader = facts.new Reader();
+			try {
+				for (int i=0; i<facts.size; i++) {
+					jgen.writeRaw(i == 0 ? "\n" : ",\n");
+					jgen.writeRaw(new String(reader.read(i), StandardCharsets.UTF_8));
+				}
+			} finally {
+				reader.close();
+			}
+			if (facts.size > 0) {
+				jgen.writeRaw("\n");
+			}
+			jgen.writeEndArray();
+		}
+	}
+
+	/**
+	 * writes the items of the comparison one by one
+	 */
+	static class ComparisonSerializer extends StdSerializer<Comparison> {
+		private static final long serialVersionUID = 1L;
+
+		ComparisonSerializer() {
+			super(Comparison.class);
+		}
+
+		@Override
+		public void serialize(Comparison comparison, JsonGenerator jgen, SerializerProvider provider)
+				throws IOException {
+			jgen.writeStartArray();
+			try {
+				while (comparison.hasNext()) {
+					Object item = comparison.next();
+					if (item instanceof String) {
+						jgen.writeString((String)item);
+					} else {
+						provider.defaultSerializeValue(item, jgen);
+					}
+				}
+			} finally {
+				comparison.close();
+			}
+			jgen.writeEndArray();
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * GC and safepoint activity of the JVM during an execution of a KieBase.<BR>
+ * The counts and the times of the collectors and the safepoints are the differences
+ * between start() and stop(). The heap used after each GC and the bytes reclaimed by GC
+ * are taken from the GC notifications, so the allocated bytes are
+ * the reclaimed bytes plus the growth of the used heap.
+ * The notifications are sent asynchronously, so stop() waits for the notifications
+ * of the collections counted by the collectors for a short time.
+ * The activity is of the whole JVM, so it includes other threads.
+ *
+ * @author okuniyas
+ */
+@JsonPropertyOrder({"collections", "collectionMilliseconds", "collectors",
+	"heapUsedAfterGcBytes", "allocatedBytes", "allocationMegaBytesPerSecond",
+	"safepoints", "safepointMilliseconds"})
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class GcActivity implements NotificationListener {
+	private static final Object HOTSPOT_RUNTIME = hotspotRuntime();
+	private static final Set<String> HEAP_POOLS = heapPools();
+	// the longest wait for the notifications of the last collections
+	private static final long NOTIFICATION_TIMEOUT_MILLIS = 1000;
+
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private final long[] counts = new long[collectors.size()];
+	private final long[] times = new long[collectors.size()];
+	private long startNanos;
+	private long elapsedNanos;
+	private long heapUsed;
+	private long[] safepoints;
+
+	// from the GC notifications
+	private long notifications = 0;
+	private long reclaimedBytes = 0;
+	private long heapUsedAfterGc = -1;
+
+	/**
+	 * start to track the activity
+	 * @return new activity
+	 */
+	public static GcActivity start() {
+		GcActivity activity = new GcActivity();
+		for (GarbageCollectorMXBean collector : activity.collectors) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter)collector).addNotificationListener(activity, null, null);
+			}
+		}
+		for (int i=0; i<activity.collectors.size(); i++) {
+			activity.counts[i] = activity.collectors.get(i).getCollectionCount();
+			activity.times[i] = activity.collectors.get(i).getCollectionTime();
+		}
+		activity.safepoints = safepoints();
+		activity.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		activity.startNanos = System.nanoTime();
+		return activity;
+	}
+
+	/**
+	 * stop to track the activity
+	 */
+	public void stop() {
+		elapsedNanos = System.nanoTime() - startNanos;
+		heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() - heapUsed;
+		long[] end = safepoints();
+		if (safepoints != null && end != null) {
+			safepoints = new long[] { end[0] - safepoints[0], end[1] - safepoints[1] };
+		} else {
+			safepoints = null;
+		}
+		for (int i=0; i<collectors.size(); i++) {
+			counts[i] = collectors.get(i).getCollectionCount() - counts[i];
+			times[i] = collectors.get(i).getCollectionTime() - times[i];
+		}
+		waitForNotifications(getCollections());
+		for (GarbageCollectorMXBean collector : collectors) {
+			if (collector instanceof NotificationEmitter) {
+				try {
+					((NotificationEmitter)collector).removeNotificationListener(this);
+				} catch (ListenerNotFoundException e) {
+					// not registered
+				}
+			}
+		}
+	}
+
+	// the notifications of the collections may be sent after the counts are updated
+	private synchronized void waitForNotifications(long collections) {
+		long deadline = System.nanoTime() + NOTIFICATION_TIMEOUT_MILLIS * 1000000L;
+		long remaining;
+		while (notifications < collections && (remaining = deadline - System.nanoTime()) > 0) {
+			try {
+				wait(remaining / 1000000L + 1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void handleNotification(Notification notification, Object handback) {
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+			return;
+		}
+		GarbageCollectionNotificationInfo info =
+				GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+		long before = 0;
+		long after = 0;
+		for (Map.Entry<String, MemoryUsage> usage : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+			if (HEAP_POOLS.contains(usage.getKey())) {
+				before += usage.getValue().getUsed();
+			}
+		}
+		for (Map.Entry<String, MemoryUsage> usage : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+			if (HEAP_POOLS.contains(usage.getKey())) {
+				after += usage.getValue().getUsed();
+			}
+		}
+		reclaimedBytes += Math.max(before - after, 0);
+		heapUsedAfterGc = after;
+		notifications++;
+		notifyAll();
+	}
+
+	public long getCollections() {
+		long count = 0;
+		for (long c : counts) {
+			count += c;
+		}
+		return count;
+	}
+
+	public long getCollectionMilliseconds() {
+		long time = 0;
+		for (long t : times) {
+			time += t;
+		}
+		return time;
+	}
+
+	/**
+	 * count and milliseconds of each collector
+	 */
+	public Map<String, Map<String, Long>> getCollectors() {
+		Map<String, Map<String, Long>> ret = new LinkedHashMap<String, Map<String, Long>>();
+		for (int i=0; i<collectors.size(); i++) {
+			Map<String, Long> collector = new LinkedHashMap<String, Long>();
+			collector.put("count", counts[i]);
+			collector.put("milliseconds", times[i]);
+			ret.put(collectors.get(i).getName(), collector);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return heap used after the last GC, or null if no GC
+	 */
+	public synchronized Long getHeapUsedAfterGcBytes() {
+		return heapUsedAfterGc < 0 ? null : heapUsedAfterGc;
+	}
+
+	public synchronized long getAllocatedBytes() {
+		return Math.max(reclaimedBytes + heapUsed, 0);
+	}
+
+	public double getAllocationMegaBytesPerSecond() {
+		return elapsedNanos <= 0 ? 0 : getAllocatedBytes() * 1e3 / elapsedNanos;
+	}
+
+	/**
+	 * @return count of the safepoints, or null if not available
+	 */
+	public Long getSafepoints() {
+		return safepoints == null ? null : safepoints[0];
+	}
+
+	/**
+	 * @return total time of the safepoints, or null if not available
+	 */
+	public Long getSafepointMilliseconds() {
+		return safepoints == null ? null : safepoints[1];
+	}
+
+	private static Set<String> heapPools() {
+		Set<String> pools = new HashSet<String>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pools.add(pool.getName());
+			}
+		}
+		return pools;
+	}
+
+	// sun.management.HotspotRuntimeMBean of HotSpot, or null
+	private static Object hotspotRuntime() {
+		try {
+			Method method = Class.forName("sun.management.ManagementFactoryHelper")
+					.getMethod("getHotspotRuntimeMBean");
+			return method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	// count and milliseconds of the safepoints, or null
+	private static long[] safepoints() {
+		if (HOTSPOT_RUNTIME == null) {
+			return null;
+		}
+		try {
+			Class<?> clazz = Class.forName("sun.management.HotspotRuntimeMBean");
+			long count = (Long)clazz.getMethod("getSafepointCount").invoke(HOTSPOT_RUNTIME);
+			long time = (Long)clazz.getMethod("getTotalSafepointTime").invoke(HOTSPOT_RUNTIME);
+			return new long[] { count, time };
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * run GC and wait for the heap to settle
+	 * @param settleMillis pause after GC
+	 */
+	public static void forceGc(long settleMillis) {
+		System.gc();
+		System.runFinalization();
+		System.gc();
+		if (settleMillis > 0) {
+			try {
+				Thread.sleep(settleMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService;
+
+/**
+ * Compares two lists of facts by the identities of the facts.<BR>
+ * The facts of both lists are joined by the identity registered for the fact class,
+ * and added, removed and changed facts are reported separately.
+ * Only the changed facts are compared field by field.
+ * The added and removed facts are written as JSON objects, the same as FactFingerprints.
+ * The facts without identity are compared by the position as before.
+ *
+ * @author okuniyas
+ */
+class KeyedFactComparator {
+	private static final Function<Object, Object> NO_IDENTITY = new Function<Object, Object>() {
+		@Override
+		public Object apply(Object fact) {
+			return null;
+		}
+	};
+
+	private final Map<Class<?>, Function<Object, ?>> identities =
+			new ConcurrentHashMap<Class<?>, Function<Object, ?>>();
+	// identities looked up for the classes of the facts including subclasses
+	private final Map<Class<?>, Function<Object, ?>> resolved =
+			new ConcurrentHashMap<Class<?>, Function<Object, ?>>();
+
+	@SuppressWarnings("unchecked")
+	<T> void register(Class<T> factClass, Function<? super T, ?> identity) {
+		if (identity == null) {
+			identities.remove(factClass);
+		} else {
+			identities.put(factClass, (Function<Object, ?>)identity);
+		}
+		resolved.clear();
+	}
+
+	boolean isEmpty() {
+		return identities.isEmpty();
+	}
+
+	/**
+	 * @return "same" count, "changed", "removed" and "added" facts
+	 * and "notKeyed" comparison of the facts without identity.
+	 */
+	Map<String, Object> compare(List<Object> facts1, List<Object> facts2, ObjectMapper mapper) {
+		// hash the 2nd facts by the keys keeping the order of the same keys
+		Map<Object, ArrayDeque<Object>> keyToFacts2 = new HashMap<Object, ArrayDeque<Object>>();
+		List<Object> notKeyed2 = new ArrayList<Object>();
+		for (Object fact : facts2) {
+			Object key = keyOf(fact);
+			if (key == null) {
+				notKeyed2.add(fact);
+				continue;
+			}
+			ArrayDeque<Object> same = keyToFacts2.get(key);
+			if (same == null) {
+				same = new ArrayDeque<Object>(1);
+				keyToFacts2.put(key, same);
+			}
+			same.add(fact);
+		}
+
+		int same = 0;
+		List<Object> changed = new ArrayList<Object>();
+		List<Object> removed = new ArrayList<Object>();
+		List<Object> notKeyed1 = new ArrayList<Object>();
+		for (Object fact1 : facts1) {
+			Object key = keyOf(fact1);
+			if (key == null) {
+				notKeyed1.add(fact1);
+				continue;
+			}
+			ArrayDeque<Object> candidates = keyToFacts2.get(key);
+			Object fact2 = candidates == null ? null : candidates.poll();
+			if (fact2 == null) {
+				removed.add(mapper.convertValue(fact1, Object.class));
+				continue;
+			}
+			if (fact1.equals(fact2)) {
+				same++;
+				continue;
+			}
+			Object value1 = mapper.convertValue(fact1, Object.class);
+			Object value2 = mapper.convertValue(fact2, Object.class);
+			if (value1 == null ? value2 == null : value1.equals(value2)) {
+				same++;
+				continue;
+			}
+			Map<String, Object> change = new LinkedHashMap<String, Object>();
+			change.put("key", fact1.getClass().getSimpleName() + " " + ((Map.Entry<?, ?>)key).getValue());
+			change.put("fields", RuleRuntimeCompareServiceBean.compareObj(value1, value2));
+			changed.add(change);
+		}
+		// the rest of the 2nd facts in the order of the list
+		List<Object> added = new ArrayList<Object>();
+		for (Object fact2 : facts2) {
+			Object key = keyOf(fact2);
+			if (key == null) {
+				continue;
+			}
+			ArrayDeque<Object> rest = keyToFacts2.get(key);
+			if (rest.peek() == fact2) {
+				added.add(mapper.convertValue(rest.poll(), Object.class));
+			}
+		}
+
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("same", same);
+		ret.put("changed", changed.isEmpty() ? RuleRuntimeCompareService.SAME_ARRAY : changed);
+		ret.put("removed", removed.isEmpty() ? RuleRuntimeCompareService.SAME_ARRAY : removed);
+		ret.put("added", added.isEmpty() ? RuleRuntimeCompareService.SAME_ARRAY : added);
+		if (!notKeyed1.isEmpty() || !notKeyed2.isEmpty()) {
+			ret.put("notKeyed", new RuleRuntimeCompareServiceBean.DiffList(notKeyed1, notKeyed2));
+		}
+		return ret;
+	}
+
+	// the class and the identity of the fact, or null if no identity
+	Map.Entry<Class<?>, Object> keyOf(Object fact) {
+		if (fact == null) {
+			return null;
+		}
+		Function<Object, ?> identity = identityOf(fact.getClass());
+		if (identity == NO_IDENTITY) {
+			return null;
+		}
+		return new SimpleImmutableEntry<Class<?>, Object>(fact.getClass(), identity.apply(fact));
+	}
+
+	private Function<Object, ?> identityOf(Class<?> factClass) {
+		Function<Object, ?> identity = resolved.get(factClass);
+		if (identity == null) {
+			identity = lookup(factClass);
+			if (identity == null) {
+				identity = NO_IDENTITY;
+			}
+			resolved.put(factClass, identity);
+		}
+		return identity;
+	}
+
+	// the identity of the class, its super classes or interfaces
+	private Function<Object, ?> lookup(Class<?> factClass) {
+		for (Class<?> c = factClass; c != null; c = c.getSuperclass()) {
+			Function<Object, ?> identity = identities.get(c);
+			if (identity != null) {
+				return identity;
+			}
+			for (Class<?> i : c.getInterfaces()) {
+				identity = lookup(i);
+				if (identity != null) {
+					return identity;
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.drools.core.impl.StatefulKnowledgeSessionImpl;
+import org.kie.api.KieBase;
+import org.kie.api.event.process.ProcessEventListener;
+import org.kie.api.runtime.KieSession;
+
+/**
+ * Pool of the stateful sessions of a KieBase reused by the batches.<BR>
+ * The listeners of the stats are attached once when a session is created,
+ * and the working memory is reset when a session is released.
+ * The state of the listeners is reset by the stats when an idle session is borrowed.
+ * The idle sessions are kept for each stats, as the workers collect into their own stats.
+ *
+ * @author okuniyas
+ */
+public class KieSessionPool {
+	private final KieBase kieBase;
+	private final Map<RuleNoOpStats, Deque<KieSession>> idleSessions =
+			new IdentityHashMap<RuleNoOpStats, Deque<KieSession>>();
+	private final Map<KieSession, RuleNoOpStats> allSessions =
+			new IdentityHashMap<KieSession, RuleNoOpStats>();
+
+	public KieSessionPool(KieBase kieBase) {
+		this.kieBase = kieBase;
+	}
+
+	/**
+	 * get an idle session registered to the stats, or create a new one
+	 * @param stats stats to collect into
+	 * @return session with the empty working memory
+	 */
+	public KieSession borrow(RuleNoOpStats stats) {
+		KieSession session = null;
+		synchronized (this) {
+			Deque<KieSession> idle = idleSessions.get(stats);
+			if (idle != null && !idle.isEmpty()) {
+				session = idle.pop();
+			}
+		}
+		if (session != null) {
+			// the listeners start the batch as in a new session
+			stats.resetSession(session);
+			return session;
+		}
+		session = kieBase.newKieSession();
+		stats.registerSession(session);
+		synchronized (this) {
+			allSessions.put(session, stats);
+		}
+		return session;
+	}
+
+	/**
+	 * reset the working memory of the session and return it to the pool
+	 * @param session
+	 */
+	public void release(KieSession session) {
+		RuleNoOpStats stats;
+		synchronized (this) {
+			stats = allSessions.get(session);
+		}
+		if (stats == null) {
+			throw new IllegalStateException("the session is not of this pool");
+		}
+		// reset() drops the process runtime with its listeners, so add them again
+		List<ProcessEventListener> listeners =
+				new ArrayList<ProcessEventListener>(session.getProcessEventListeners());
+		((StatefulKnowledgeSessionImpl)session).reset();
+		for (ProcessEventListener listener : listeners) {
+			session.addEventListener(listener);
+		}
+		synchronized (this) {
+			Deque<KieSession> idle = idleSessions.get(stats);
+			if (idle == null) {
+				idle = new ArrayDeque<KieSession>();
+				idleSessions.put(stats, idle);
+			}
+			idle.push(session);
+		}
+	}
+
+	/**
+	 * @return number of the sessions created by this pool
+	 */
+	public synchronized int size() {
+		return allSessions.size();
+	}
+
+	/**
+	 * unregister the stats and dispose all sessions
+	 */
+	public void dispose() {
+		List<Map.Entry<KieSession, RuleNoOpStats>> entries;
+		synchronized (this) {
+			entries = new ArrayList<Map.Entry<KieSession, RuleNoOpStats>>(allSessions.entrySet());
+			allSessions.clear();
+			idleSessions.clear();
+		}
+		for (Map.Entry<KieSession, RuleNoOpStats> entry : entries) {
+			entry.getValue().unregisterSession(entry.getKey());
+			entry.getKey().dispose();
+		}
+	}
+}
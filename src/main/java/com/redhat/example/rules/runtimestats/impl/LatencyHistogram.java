@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.util.Arrays;
+
+/**
+ * Log-bucketed histogram of non-negative long values (e.g. nanoseconds).<BR>
+ * Values below 32 are counted exactly, bigger values are counted in
+ * 16 sub-buckets per power of two, so the relative error of a reported
+ * percentile is less than 1/16.
+ *
+ * @author okuniyas
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT << 1;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final long[] counts = new long[BUCKET_COUNT];
+	private long totalCount = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * record a value
+	 * @param value negative value is recorded as 0.
+	 */
+	public synchronized void record(long value) {
+		if (value < 0) value = 0;
+		counts[bucketIndex(value)]++;
+		totalCount++;
+		sum += value;
+		if (value < min) min = value;
+		if (value > max) max = value;
+	}
+
+	/**
+	 * add all recorded values of the other histogram into this histogram
+	 * @param other
+	 */
+	public void merge(LatencyHistogram other) {
+		if (other == null || other == this) return;
+		long[] otherCounts;
+		long otherTotalCount, otherSum, otherMin, otherMax;
+		synchronized (other) {
+			otherCounts = other.counts.clone();
+			otherTotalCount = other.totalCount;
+			otherSum = other.sum;
+			otherMin = other.min;
+			otherMax = other.max;
+		}
+		synchronized (this) {
+			for (int i=0; i<BUCKET_COUNT; i++) {
+				counts[i] += otherCounts[i];
+			}
+			totalCount += otherTotalCount;
+			sum += otherSum;
+			if (otherMin < min) min = otherMin;
+			if (otherMax > max) max = otherMax;
+		}
+	}
+
+	public synchronized void clear() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	public synchronized long getTotalCount() {
+		return totalCount;
+	}
+
+	public synchronized long getSum() {
+		return sum;
+	}
+
+	public synchronized long getMin() {
+		return totalCount == 0 ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized long getMean() {
+		return totalCount == 0 ? 0 : sum / totalCount;
+	}
+
+	/**
+	 * get the value at the percentile
+	 * @param percentile 0.0 to 100.0
+	 * @return the highest value of the bucket which includes the percentile, but not bigger than max.
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (totalCount == 0) return 0;
+		double p = Math.min(Math.max(percentile, 0.0), 100.0);
+		long countAtPercentile = Math.max(1, (long)Math.ceil(p / 100.0 * totalCount));
+		long count = 0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			count += counts[i];
+			if (count >= countAtPercentile) {
+				return Math.min(highestEquivalentValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	static int bucketIndex(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int)value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+	}
+
+	static long highestEquivalentValue(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		long subBucket = index - (shift << SUB_BUCKET_BITS);
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -16,14 +16,20 @@
 
 package com.redhat.example.rules.runtimestats.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.drools.core.definitions.rule.impl.RuleImpl;
 import org.drools.core.spi.Activation;
@@ -58,6 +64,16 @@ import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
  *   -> (L3-2) executed : count of activations executed
  *    -> (L4-2) executedAfterRule : count of activations executed after which rule
  * 
+ * If ruleIndexed is true, L1 is counted by a LongAdder in the array indexed by
+ * the dense rule id of {@link RuleIndex}, and L2 and L4 are counted in
+ * {@link StripedCounterTable} keyed by the pair (or the triple) of rule ids.
+ * The entries of each levels are created only when the stats are written.
+ * The events of the rules which are not in the index, as the rules added to the KieBase
+ * after the last clearStats(), are counted in the map of rules as in the default mode.
+ * 
+ * The origin rule of each activation is kept as the rule id in {@link StripedLongIntMap}
+ * keyed by the activation number, so no object is allocated to track activations.
+ * 
  * @author okuniyas
  *
  */
@@ -66,16 +82,83 @@ import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
 public class RuleActivationStats extends RuleNoOpStats
 implements RuleRuntimeStats
 {
-	private Map<Long, Rule> activationToOriginRuleMap =
-			new ConcurrentHashMap<Long, Rule>();
+	// activation number -> id of the origin rule
+	private StripedLongIntMap activationToOriginRuleMap = new StripedLongIntMap();
+	private volatile RuleIndex ruleIndex;
+	// origin rules which are not in the ruleIndex
+	private final Map<Rule, Integer> extraOriginRuleToId = new ConcurrentHashMap<Rule, Integer>();
+	private final List<Rule> extraOriginRules = new ArrayList<Rule>();
 	
 	private Map<Rule, RuleActivationCountL1> activatedRuleMap =
 			new ConcurrentHashMap<Rule, RuleActivationCountL1>();
 	
 	private AtomicLong executionCount = new AtomicLong();
 
+	private final Rule rootRule = new RuleImpl("root");
+	private final boolean ruleIndexed;
+	private volatile RuleIndexedCounters ruleIndexedCounters = null;
+
 	public RuleActivationStats(KieBase kieBase) {
+		this(kieBase, false);
+	}
+
+	public RuleActivationStats(KieBase kieBase, boolean ruleIndexed) {
 		super(kieBase);
+		this.ruleIndexed = ruleIndexed;
+		initRuleIndex();
+	}
+
+	private void initRuleIndex() {
+		RuleIndex index = new RuleIndex(kieBase);
+		synchronized (extraOriginRules) {
+			extraOriginRuleToId.clear();
+			extraOriginRules.clear();
+			ruleIndex = index;
+		}
+		if (ruleIndexed) {
+			ruleIndexedCounters = new RuleIndexedCounters(index, rootRule);
+		}
+	}
+
+	// id of the rule to be kept as the origin of activations. the root rule is size of the index.
+	private int originIdOf(Rule rule) {
+		RuleIndex index = ruleIndex;
+		if (rule == rootRule) {
+			return index.size();
+		}
+		int id = index.indexOf(rule);
+		if (id != RuleIndex.UNKNOWN) {
+			return id;
+		}
+		Integer extraId = extraOriginRuleToId.get(rule);
+		if (extraId != null) {
+			return extraId;
+		}
+		synchronized (extraOriginRules) {
+			extraId = extraOriginRuleToId.get(rule);
+			if (extraId == null) {
+				extraId = ruleIndex.size() + 1 + extraOriginRules.size();
+				extraOriginRules.add(rule);
+				extraOriginRuleToId.put(rule, extraId);
+			}
+			return extraId;
+		}
+	}
+
+	private Rule originRuleOf(int id) {
+		RuleIndex index = ruleIndex;
+		if (id == StripedLongIntMap.MISSING) {
+			return null;
+		} else if (id < index.size()) {
+			return index.getRule(id);
+		} else if (id == index.size()) {
+			return rootRule;
+		}
+		synchronized (extraOriginRules) {
+			int extra = id - index.size() - 1;
+			// ids taken before the last clearStats() are regarded as root
+			return extra < extraOriginRules.size() ? extraOriginRules.get(extra) : rootRule;
+		}
 	}
 
     public long getExecutionCount() {
@@ -89,6 +172,7 @@ implements RuleRuntimeStats
 	@JsonSerialize(using=WrapItemSerializer.class)
     public Iterator<String> getNotExecutedRules() {
 		Set<String> ret = new TreeSet<String>();
+		Map<Rule, RuleActivationCountL1> activatedRuleMap = getActivatedRuleMap();
     	for (KiePackage kiePackage : kieBase.getKiePackages()) {
     		ruleLevel: for (Rule rule : kiePackage.getRules()) {
     			RuleActivationCountL1 l1 = activatedRuleMap.get(rule);
@@ -118,7 +202,55 @@ implements RuleRuntimeStats
 	}
 	
 	public Collection<RuleActivationCountL1> getChildren() {
-		return activatedRuleMap.values();
+		return sortedByRule(getActivatedRuleMap());
+	}
+
+	// the children of each levels are sorted by the rules,
+	// so the stats are written in the same order whether the rules are indexed or not.
+	private static <T> Collection<T> sortedByRule(Map<Rule, T> map) {
+		Map<Rule, T> sorted = new TreeMap<Rule, T>(RuleIndex.NAME_ORDER);
+		sorted.putAll(map);
+		return sorted.values();
+	}
+
+	private Map<Rule, RuleActivationCountL1> getActivatedRuleMap() {
+		RuleIndexedCounters indexed = ruleIndexedCounters;
+		if (indexed == null) {
+			return activatedRuleMap;
+		}
+		// rule indexed counters and counters of rules unknown to the index
+		Map<Rule, RuleActivationCountL1> map = indexed.toActivatedRuleMap();
+		mergeActivatedRuleMap(map, activatedRuleMap, rootRule);
+		return map;
+	}
+
+	// L2 of the map of rules, created if not yet
+	private RuleActivationCountL2 getL2(Rule rule, Rule activatedBy) {
+		RuleActivationCountL1 l1 = activatedRuleMap.get(rule);
+		if (l1 == null) {
+			l1 = new RuleActivationCountL1();
+			l1.rule = rule;
+			activatedRuleMap.put(rule, l1);
+		}
+		// activations created before the registration are regarded as created by root
+		Rule by = activatedBy == null ? rootRule : activatedBy;
+		RuleActivationCountL2 l2 = l1.activatedByRuleMap.get(by);
+		if (l2 == null) {
+			l2 = new RuleActivationCountL2();
+			l2.rule = by;
+			l1.activatedByRuleMap.put(by, l2);
+		}
+		return l2;
+	}
+
+	private static void addL4(Map<Rule, RuleActivationCountL4> map, Rule rule, long count) {
+		RuleActivationCountL4 l4 = map.get(rule);
+		if (l4 == null) {
+			l4 = new RuleActivationCountL4();
+			l4.rule = rule;
+			map.put(rule, l4);
+		}
+		l4.count.addAndGet(count);
 	}
 
 	@Override
@@ -131,9 +263,66 @@ implements RuleRuntimeStats
 		executionCount.set(0);
 		activatedRuleMap.clear();
 		activationToOriginRuleMap.clear();
+		initRuleIndex();
     	super.clearStats();
 	}
 	
+	/**
+	 * add the counts of each levels
+	 */
+	@Override
+	public void merge(RuleRuntimeStats other) {
+		RuleActivationStats otherStats = (RuleActivationStats)other;
+		executionCount.addAndGet(otherStats.getExecutionCount());
+		Map<Rule, RuleActivationCountL1> otherMap = otherStats.getActivatedRuleMap();
+		RuleIndexedCounters indexed = ruleIndexedCounters;
+		if (indexed != null) {
+			indexed.merge(otherMap, otherStats.rootRule, this);
+		} else {
+			mergeActivatedRuleMap(activatedRuleMap, otherMap, otherStats.rootRule);
+		}
+		super.merge(other);
+	}
+
+	private void mergeActivatedRuleMap(Map<Rule, RuleActivationCountL1> activatedRuleMap,
+			Map<Rule, RuleActivationCountL1> otherMap, Rule otherRootRule) {
+		for (RuleActivationCountL1 otherL1 : otherMap.values()) {
+			RuleActivationCountL1 l1 = activatedRuleMap.get(otherL1.rule);
+			if (l1 == null) {
+				l1 = new RuleActivationCountL1();
+				l1.rule = otherL1.rule;
+				activatedRuleMap.put(otherL1.rule, l1);
+			}
+			l1.count.addAndGet(otherL1.count.get());
+			for (RuleActivationCountL2 otherL2 : otherL1.activatedByRuleMap.values()) {
+				Rule activatedBy = otherL2.rule == otherRootRule ? rootRule : otherL2.rule;
+				RuleActivationCountL2 l2 = l1.activatedByRuleMap.get(activatedBy);
+				if (l2 == null) {
+					l2 = new RuleActivationCountL2();
+					l2.rule = activatedBy;
+					l1.activatedByRuleMap.put(activatedBy, l2);
+				}
+				l2.count.addAndGet(otherL2.count.get());
+				mergeL4(l2.canceledByRuleMap, otherL2.canceledByRuleMap, otherRootRule);
+				mergeL4(l2.executedAfterRuleMap, otherL2.executedAfterRuleMap, otherRootRule);
+			}
+		}
+	}
+
+	private void mergeL4(Map<Rule, RuleActivationCountL4> map,
+			Map<Rule, RuleActivationCountL4> otherMap, Rule otherRootRule) {
+		for (RuleActivationCountL4 otherL4 : otherMap.values()) {
+			Rule rule = otherL4.rule == otherRootRule ? rootRule : otherL4.rule;
+			RuleActivationCountL4 l4 = map.get(rule);
+			if (l4 == null) {
+				l4 = new RuleActivationCountL4();
+				l4.rule = rule;
+				map.put(rule, l4);
+			}
+			l4.count.addAndGet(otherL4.count.get());
+		}
+	}
+
 	@Override
 	public void registerSession(KieRuntimeEventManager session) {
 		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
@@ -169,68 +358,84 @@ implements RuleRuntimeStats
 		}
 	}
 	
+	/**
+	 * the activations of the next batch are created by root as in a new session
+	 */
+	@Override
+	public void resetSession(KieRuntimeEventManager session) {
+		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
+			if (listener instanceof SubListener1 && ((SubListener1)listener).parent == this) {
+				((SubListener1)listener).setPreviousExecutedRule(rootRule);
+			}
+		}
+	}
+	
 	// AgendaEventListener to count rule execution
 	private static class SubListener1 extends DefaultAgendaEventListener {
 		private RuleActivationStats parent = null;
-		private Rule previousExecutedRule = new RuleImpl("root");
+		private Rule previousExecutedRule = null;
+		// origin id of the previous rule, which is out of the index for the unknown rules
+		private int previousExecutedRuleId;
+		// index of the previousExecutedRuleId, rebuilt by clearStats()
+		private RuleIndex previousIndex;
 		
 		private SubListener1(RuleActivationStats parent) {
 			this.parent = parent;
+			setPreviousExecutedRule(parent.rootRule);
+		}
+
+		private void setPreviousExecutedRule(Rule rule) {
+			previousExecutedRule = rule;
+			previousIndex = parent.ruleIndex;
+			previousExecutedRuleId = parent.originIdOf(rule);
+		}
+
+		// id of the previous rule, taken again if the index has been rebuilt since
+		private int previousExecutedRuleId() {
+			if (previousIndex != parent.ruleIndex) {
+				setPreviousExecutedRule(previousExecutedRule);
+			}
+			return previousExecutedRuleId;
 		}
 
 		@Override
 		public void matchCreated(MatchCreatedEvent event) {
 			Rule activatedRule = event.getMatch().getRule();
-			RuleActivationCountL1 ruleActivationCountL1 =
-					parent.activatedRuleMap.get(activatedRule);
-			if (ruleActivationCountL1 == null) {
-				ruleActivationCountL1 = new RuleActivationCountL1();
-				ruleActivationCountL1.rule = activatedRule;
-				parent.activatedRuleMap.put(activatedRule, ruleActivationCountL1);
-			}
-			ruleActivationCountL1.count.incrementAndGet();
-			RuleActivationCountL2 ruleActivationCountL2 =
-					ruleActivationCountL1.activatedByRuleMap.get(previousExecutedRule);
-			if (ruleActivationCountL2 == null) {
-				ruleActivationCountL2 = new RuleActivationCountL2();
-				ruleActivationCountL2.rule = previousExecutedRule;
-				ruleActivationCountL1.activatedByRuleMap.put(previousExecutedRule, ruleActivationCountL2);
+			int previousExecutedRuleId = previousExecutedRuleId();
+			RuleIndexedCounters indexed = parent.ruleIndexedCounters;
+			if (indexed == null || !indexed.matchCreated(activatedRule, previousExecutedRuleId)) {
+				RuleActivationCountL2 ruleActivationCountL2 = parent.getL2(activatedRule, previousExecutedRule);
+				parent.activatedRuleMap.get(activatedRule).count.incrementAndGet();
+				ruleActivationCountL2.count.incrementAndGet();
 			}
-			ruleActivationCountL2.count.incrementAndGet();
 			// record activation -> originRule for cancel or execution
-			parent.activationToOriginRuleMap.put(((Activation<?>)event.getMatch()).getActivationNumber(), previousExecutedRule);
+			parent.activationToOriginRuleMap.put(((Activation<?>)event.getMatch()).getActivationNumber(), previousExecutedRuleId);
 		}
 		
 		@Override
 		public void matchCancelled(MatchCancelledEvent event) {
 			Rule rule = event.getMatch().getRule();
-			Rule originRule = parent.activationToOriginRuleMap.get(((Activation<?>)event.getMatch()).getActivationNumber());
-			RuleActivationCountL2 ruleActivationCountL2 = parent.activatedRuleMap.get(rule).activatedByRuleMap.get(originRule);
-			RuleActivationCountL4 ruleActivationCountL4 = ruleActivationCountL2.canceledByRuleMap.get(previousExecutedRule);
-			if (ruleActivationCountL4 == null) {
-				ruleActivationCountL4 = new RuleActivationCountL4();
-				ruleActivationCountL4.rule = previousExecutedRule;
-				ruleActivationCountL2.canceledByRuleMap.put(previousExecutedRule, ruleActivationCountL4);
+			int originRuleId = parent.activationToOriginRuleMap.remove(((Activation<?>)event.getMatch()).getActivationNumber());
+			int previousExecutedRuleId = previousExecutedRuleId();
+			RuleIndexedCounters indexed = parent.ruleIndexedCounters;
+			if (indexed == null || !indexed.matchCancelled(rule, originRuleId, previousExecutedRuleId)) {
+				addL4(parent.getL2(rule, parent.originRuleOf(originRuleId)).canceledByRuleMap,
+						previousExecutedRule, 1);
 			}
-			ruleActivationCountL4.count.incrementAndGet();
-			parent.activationToOriginRuleMap.remove(((Activation<?>)event.getMatch()).getActivationNumber());
 		}
 		
 		@Override
 		public void beforeMatchFired(BeforeMatchFiredEvent event) {
 			Rule rule = event.getMatch().getRule();
-			Rule originRule = parent.activationToOriginRuleMap.get(((Activation<?>)event.getMatch()).getActivationNumber());
-			RuleActivationCountL2 ruleActivationCountL2 = parent.activatedRuleMap.get(rule).activatedByRuleMap.get(originRule);
-			RuleActivationCountL4 ruleActivationCountL4 = ruleActivationCountL2.executedAfterRuleMap.get(previousExecutedRule);
-			if (ruleActivationCountL4 == null) {
-				ruleActivationCountL4 = new RuleActivationCountL4();
-				ruleActivationCountL4.rule = previousExecutedRule;
-				ruleActivationCountL2.executedAfterRuleMap.put(previousExecutedRule, ruleActivationCountL4);
+			int originRuleId = parent.activationToOriginRuleMap.remove(((Activation<?>)event.getMatch()).getActivationNumber());
+			int previousExecutedRuleId = previousExecutedRuleId();
+			RuleIndexedCounters indexed = parent.ruleIndexedCounters;
+			if (indexed == null || !indexed.beforeMatchFired(rule, originRuleId, previousExecutedRuleId)) {
+				addL4(parent.getL2(rule, parent.originRuleOf(originRuleId)).executedAfterRuleMap,
+						previousExecutedRule, 1);
 			}
-			ruleActivationCountL4.count.incrementAndGet();
-			parent.activationToOriginRuleMap.remove(((Activation<?>)event.getMatch()).getActivationNumber());
 			// record rule as the last executed rule.
-			previousExecutedRule = rule;
+			setPreviousExecutedRule(rule);
 		}
 	}
 
@@ -248,6 +453,181 @@ implements RuleRuntimeStats
 		}
 	}
 	
+	// counters of each levels indexed by the RuleIndex
+	private static class RuleIndexedCounters {
+		private final RuleIndex index;
+		private final Rule rootRule;
+		private final int rootId;
+		private final long width;
+		private final LongAdder[] activated;
+		private final StripedCounterTable activatedBy = new StripedCounterTable();
+		private final StripedCounterTable canceledBy = new StripedCounterTable();
+		private final StripedCounterTable executedAfter = new StripedCounterTable();
+
+		private RuleIndexedCounters(RuleIndex index, Rule rootRule) {
+			this.index = index;
+			this.rootRule = rootRule;
+			rootId = index.size();
+			width = rootId + 1;
+			activated = new LongAdder[index.size()];
+			for (int i=0; i<activated.length; i++) {
+				activated[i] = new LongAdder();
+			}
+		}
+
+		private int originIdOf(int originId) {
+			// activations created before the registration are regarded as created by root
+			return originId == StripedLongIntMap.MISSING ? rootId : originId;
+		}
+
+		// the origin ids out of the index are of the rules unknown to the index
+		private boolean isIndexed(int id) {
+			return id >= 0 && id <= rootId;
+		}
+
+		private Rule ruleOf(int id) {
+			return id == rootId ? rootRule : index.getRule(id);
+		}
+
+		// the counters return false if a rule is not in the index, to be counted in the map of rules
+		private boolean matchCreated(Rule rule, int previousId) {
+			int id = index.indexOf(rule);
+			if (id == RuleIndex.UNKNOWN || !isIndexed(previousId)) {
+				return false;
+			}
+			activated[id].increment();
+			activatedBy.increment(id * width + previousId);
+			return true;
+		}
+
+		private boolean matchCancelled(Rule rule, int originRuleId, int previousId) {
+			int id = index.indexOf(rule);
+			int originId = originIdOf(originRuleId);
+			if (id == RuleIndex.UNKNOWN || !isIndexed(originId) || !isIndexed(previousId)) {
+				return false;
+			}
+			canceledBy.increment((id * width + originId) * width + previousId);
+			return true;
+		}
+
+		private boolean beforeMatchFired(Rule rule, int originRuleId, int previousId) {
+			int id = index.indexOf(rule);
+			int originId = originIdOf(originRuleId);
+			if (id == RuleIndex.UNKNOWN || !isIndexed(originId) || !isIndexed(previousId)) {
+				return false;
+			}
+			executedAfter.increment((id * width + originId) * width + previousId);
+			return true;
+		}
+
+		private int idOf(Rule rule, Rule otherRootRule) {
+			return rule == otherRootRule ? rootId : index.indexOf(rule);
+		}
+
+		// add the entries of each levels of other stats into the counters,
+		// or into the map of rules of the parent if a rule is not in the index
+		private void merge(Map<Rule, RuleActivationCountL1> otherMap, Rule otherRootRule,
+				RuleActivationStats parent) {
+			for (RuleActivationCountL1 otherL1 : otherMap.values()) {
+				int id = index.indexOf(otherL1.rule);
+				if (id == RuleIndex.UNKNOWN) {
+					Map<Rule, RuleActivationCountL1> single = new HashMap<Rule, RuleActivationCountL1>();
+					single.put(otherL1.rule, otherL1);
+					parent.mergeActivatedRuleMap(parent.activatedRuleMap, single, otherRootRule);
+					continue;
+				}
+				activated[id].add(otherL1.count.get());
+				for (RuleActivationCountL2 otherL2 : otherL1.activatedByRuleMap.values()) {
+					Rule by = otherL2.rule == otherRootRule ? rootRule : otherL2.rule;
+					int byId = idOf(otherL2.rule, otherRootRule);
+					long pairKey = id * width + byId;
+					if (byId == RuleIndex.UNKNOWN) {
+						parent.getL2(otherL1.rule, by).count.addAndGet(otherL2.count.get());
+					} else {
+						activatedBy.add(pairKey, otherL2.count.get());
+					}
+					for (RuleActivationCountL4 otherL4 : otherL2.canceledByRuleMap.values()) {
+						int previousId = idOf(otherL4.rule, otherRootRule);
+						if (byId != RuleIndex.UNKNOWN && previousId != RuleIndex.UNKNOWN) {
+							canceledBy.add(pairKey * width + previousId, otherL4.count.get());
+						} else {
+							addL4(parent.getL2(otherL1.rule, by).canceledByRuleMap,
+									otherL4.rule == otherRootRule ? rootRule : otherL4.rule, otherL4.count.get());
+						}
+					}
+					for (RuleActivationCountL4 otherL4 : otherL2.executedAfterRuleMap.values()) {
+						int previousId = idOf(otherL4.rule, otherRootRule);
+						if (byId != RuleIndex.UNKNOWN && previousId != RuleIndex.UNKNOWN) {
+							executedAfter.add(pairKey * width + previousId, otherL4.count.get());
+						} else {
+							addL4(parent.getL2(otherL1.rule, by).executedAfterRuleMap,
+									otherL4.rule == otherRootRule ? rootRule : otherL4.rule, otherL4.count.get());
+						}
+					}
+				}
+			}
+		}
+
+		// create the entries of each levels from the counters
+		private Map<Rule, RuleActivationCountL1> toActivatedRuleMap() {
+			RuleActivationCountL1[] l1s = new RuleActivationCountL1[activated.length];
+			for (int id=0; id<activated.length; id++) {
+				long count = activated[id].sum();
+				if (count > 0) {
+					l1s[id] = new RuleActivationCountL1();
+					l1s[id].rule = index.getRule(id);
+					l1s[id].count.set(count);
+				}
+			}
+			Map<Long, RuleActivationCountL2> l2s = new HashMap<Long, RuleActivationCountL2>();
+			long[][] entries = activatedBy.toSortedArrays();
+			for (int i=0; i<entries[0].length; i++) {
+				getL2(l1s, l2s, entries[0][i]).count.set(entries[1][i]);
+			}
+			entries = canceledBy.toSortedArrays();
+			for (int i=0; i<entries[0].length; i++) {
+				RuleActivationCountL2 l2 = getL2(l1s, l2s, entries[0][i] / width);
+				RuleActivationCountL4 l4 = new RuleActivationCountL4();
+				l4.rule = ruleOf((int)(entries[0][i] % width));
+				l4.count.set(entries[1][i]);
+				l2.canceledByRuleMap.put(l4.rule, l4);
+			}
+			entries = executedAfter.toSortedArrays();
+			for (int i=0; i<entries[0].length; i++) {
+				RuleActivationCountL2 l2 = getL2(l1s, l2s, entries[0][i] / width);
+				RuleActivationCountL4 l4 = new RuleActivationCountL4();
+				l4.rule = ruleOf((int)(entries[0][i] % width));
+				l4.count.set(entries[1][i]);
+				l2.executedAfterRuleMap.put(l4.rule, l4);
+			}
+			Map<Rule, RuleActivationCountL1> ret = new LinkedHashMap<Rule, RuleActivationCountL1>();
+			for (RuleActivationCountL1 l1 : l1s) {
+				if (l1 != null) {
+					ret.put(l1.rule, l1);
+				}
+			}
+			return ret;
+		}
+
+		private RuleActivationCountL2 getL2(RuleActivationCountL1[] l1s,
+				Map<Long, RuleActivationCountL2> l2s, long pairKey) {
+			RuleActivationCountL2 l2 = l2s.get(pairKey);
+			if (l2 == null) {
+				int id = (int)(pairKey / width);
+				if (l1s[id] == null) {
+					// activations created before the last clear
+					l1s[id] = new RuleActivationCountL1();
+					l1s[id].rule = index.getRule(id);
+				}
+				l2 = new RuleActivationCountL2();
+				l2.rule = ruleOf((int)(pairKey % width));
+				l1s[id].activatedByRuleMap.put(l2.rule, l2);
+				l2s.put(pairKey, l2);
+			}
+			return l2;
+		}
+	}
+
 	// entry classes
 	public static class RuleActivationCountL1 {
 		@JsonIgnore
@@ -263,7 +643,7 @@ implements RuleRuntimeStats
 			return "(Act)" + rule.getName();
 		}
 		public Collection<RuleActivationCountL2> getChildren() {
-			return activatedByRuleMap.values();
+			return sortedByRule(activatedByRuleMap);
 		}
 	}
 
@@ -286,11 +666,11 @@ implements RuleRuntimeStats
 			LinkedList<RuleActivationCountL3> children = new LinkedList<RuleActivationCountL3>();
 			RuleActivationCountL3 item = new RuleActivationCountL3();
 			item.name = "Executed";
-			item.children = executedAfterRuleMap.values();
+			item.children = sortedByRule(executedAfterRuleMap);
 			children.add(item);
 			item = new RuleActivationCountL3();
 			item.name = "Canceled";
-			item.children = canceledByRuleMap.values();
+			item.children = sortedByRule(canceledByRuleMap);
 			children.add(item);
 			return children;
 		}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kie.api.KieBase;
+import org.kie.api.definition.rule.Rule;
+import org.kie.api.event.KieRuntimeEventManager;
+import org.kie.api.event.process.DefaultProcessEventListener;
+import org.kie.api.event.process.ProcessEventListener;
+import org.kie.api.event.process.ProcessStartedEvent;
+import org.kie.api.event.rule.AfterMatchFiredEvent;
+import org.kie.api.event.rule.AgendaEventListener;
+import org.kie.api.event.rule.BeforeMatchFiredEvent;
+import org.kie.api.event.rule.DefaultAgendaEventListener;
+import org.kie.api.runtime.StatelessKieSession;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStats;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+
+/**
+ * Rule runtime stats of the bytes allocated by the firing (RHS) of each rules.<BR>
+ * The allocated bytes of the firing thread are read from com.sun.management.ThreadMXBean
+ * before and after the firing, and the allocation of the reading itself is subtracted.
+ *
+ * @author okuniyas
+ *
+ */
+@JsonPropertyOrder({"name", "kieBaseId", "lastReset", "elapsedMilliseconds",
+	"executionCount", "ruleExecutionCount", "allocatedBytes", "children" })
+public class RuleAllocationStats extends RuleNoOpStats
+implements RuleRuntimeStats
+{
+	private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN;
+	static {
+		THREAD_MX_BEAN = threadMXBean();
+		if (THREAD_MX_BEAN == null) {
+			System.err.println("WARNING: the thread allocated bytes are not supported by this JVM. " +
+					"RULE_ALLOCATION stats counts the firing only.");
+		}
+	}
+	// bytes allocated by a pair of getThreadAllocatedBytes()
+	private static final long MEASUREMENT_BYTES = measurementBytes();
+
+	private ConcurrentHashMap<Rule, RuleAllocationL1> ruleAllocationMap =
+			new ConcurrentHashMap<Rule, RuleAllocationL1>();
+
+	private AtomicLong executionCount = new AtomicLong();
+
+	public RuleAllocationStats(KieBase kieBase) {
+		super(kieBase);
+	}
+
+	public long getExecutionCount() {
+		return executionCount.get();
+	}
+
+	public long getRuleExecutionCount() {
+		long count = 0;
+		for (RuleAllocationL1 l1 : ruleAllocationMap.values()) {
+			count += l1.count.get();
+		}
+		return count;
+	}
+
+	/**
+	 * total bytes allocated by the firing of all rules
+	 */
+	public long getAllocatedBytes() {
+		long bytes = 0;
+		for (RuleAllocationL1 l1 : ruleAllocationMap.values()) {
+			bytes += l1.totalBytes.get();
+		}
+		return bytes;
+	}
+
+	/**
+	 * get the allocation of each rules sorted by the rule name
+	 * @return list of the allocation of each rules
+	 */
+	public Collection<RuleAllocationL1> getChildren() {
+		List<RuleAllocationL1> children = new ArrayList<RuleAllocationL1>(ruleAllocationMap.values());
+		Collections.sort(children, new Comparator<RuleAllocationL1>() {
+			@Override
+			public int compare(RuleAllocationL1 o1, RuleAllocationL1 o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		return children;
+	}
+
+	@Override
+	@JsonIgnore
+	public StatsType getStatsType() {
+		return StatsType.RULE_ALLOCATION;
+	}
+
+	public void clearStats() {
+		executionCount.set(0);
+		ruleAllocationMap.clear();
+		super.clearStats();
+	}
+
+	/**
+	 * merge the allocation of each rules
+	 */
+	@Override
+	public void merge(RuleRuntimeStats other) {
+		RuleAllocationStats otherStats = (RuleAllocationStats)other;
+		executionCount.addAndGet(otherStats.getExecutionCount());
+		for (RuleAllocationL1 otherL1 : otherStats.ruleAllocationMap.values()) {
+			getRuleAllocationL1(otherL1.rule).merge(otherL1);
+		}
+		super.merge(other);
+	}
+
+	private void record(Rule rule, long bytes) {
+		getRuleAllocationL1(rule).record(bytes);
+	}
+
+	private RuleAllocationL1 getRuleAllocationL1(Rule rule) {
+		RuleAllocationL1 ruleAllocationL1 = ruleAllocationMap.get(rule);
+		if (ruleAllocationL1 == null) {
+			ruleAllocationL1 = new RuleAllocationL1();
+			ruleAllocationL1.rule = rule;
+			RuleAllocationL1 old = ruleAllocationMap.putIfAbsent(rule, ruleAllocationL1);
+			if (old != null) {
+				ruleAllocationL1 = old;
+			}
+		}
+		return ruleAllocationL1;
+	}
+
+	@Override
+	public void registerSession(KieRuntimeEventManager session) {
+		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
+			if (listener instanceof SubListener1) {
+				return; // do nothing
+			}
+		}
+		session.addEventListener(new SubListener1(this));
+		// StatelessKieSession can not add ProcessEventListener.
+		// instead of setting the listener, increment the executionCount.
+		if (session instanceof StatelessKieSession) {
+			executionCount.incrementAndGet();
+		} else {
+			session.addEventListener(new SubListener2(this));
+		}
+	}
+
+	@Override
+	public void unregisterSession(KieRuntimeEventManager session) {
+		// no need to unregister if session is stateless as it has been disposed.
+		if (session instanceof StatelessKieSession) {
+			return;
+		}
+		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
+			if (listener instanceof SubListener1) {
+				session.removeEventListener(listener);
+			}
+		}
+		for (ProcessEventListener listener : session.getProcessEventListeners()) {
+			if (listener instanceof SubListener2) {
+				session.removeEventListener(listener);
+			}
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean threadMXBean() {
+		try {
+			com.sun.management.ThreadMXBean bean =
+					(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			if (!bean.isThreadAllocatedMemorySupported()) {
+				return null;
+			}
+			if (!bean.isThreadAllocatedMemoryEnabled()) {
+				bean.setThreadAllocatedMemoryEnabled(true);
+			}
+			return bean;
+		} catch (ClassCastException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private static long measurementBytes() {
+		if (THREAD_MX_BEAN == null) {
+			return 0;
+		}
+		long id = Thread.currentThread().getId();
+		long min = Long.MAX_VALUE;
+		for (int i=0; i<100; i++) {
+			long before = THREAD_MX_BEAN.getThreadAllocatedBytes(id);
+			min = Math.min(min, THREAD_MX_BEAN.getThreadAllocatedBytes(id) - before);
+		}
+		return min;
+	}
+
+	private static long allocatedBytes() {
+		return THREAD_MX_BEAN == null ? 0 :
+			THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	// AgendaEventListener to measure the allocation of each rule firing
+	private static class SubListener1 extends DefaultAgendaEventListener {
+		private RuleAllocationStats parent = null;
+		private long allocatedAt = 0;
+		private SubListener1(RuleAllocationStats parent) {
+			this.parent = parent;
+		}
+		@Override
+		public void beforeMatchFired(BeforeMatchFiredEvent event) {
+			allocatedAt = allocatedBytes();
+		}
+		@Override
+		public void afterMatchFired(AfterMatchFiredEvent event) {
+			long bytes = allocatedBytes() - allocatedAt - MEASUREMENT_BYTES;
+			parent.record(event.getMatch().getRule(), Math.max(bytes, 0));
+		}
+	}
+
+	// ProcessEventListener to count ruleflow execution
+	private static class SubListener2 extends DefaultProcessEventListener {
+		private RuleAllocationStats parent = null;
+		private SubListener2(RuleAllocationStats parent) {
+			this.parent = parent;
+		}
+		@Override
+		public void afterProcessStarted(ProcessStartedEvent event) {
+			parent.executionCount.incrementAndGet();
+		}
+	}
+
+	// entry classes
+	@JsonPropertyOrder({"name", "size", "count", "meanBytes", "maxBytes"})
+	public static class RuleAllocationL1 {
+		@JsonIgnore
+		public Rule rule;
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong totalBytes = new AtomicLong();
+		private AtomicLong maxBytes = new AtomicLong();
+
+		private void record(long bytes) {
+			count.incrementAndGet();
+			totalBytes.addAndGet(bytes);
+			updateMax(bytes);
+		}
+
+		private void merge(RuleAllocationL1 other) {
+			count.addAndGet(other.count.get());
+			totalBytes.addAndGet(other.totalBytes.get());
+			updateMax(other.maxBytes.get());
+		}
+
+		private void updateMax(long bytes) {
+			long current = maxBytes.get();
+			while (bytes > current && !maxBytes.compareAndSet(current, bytes)) {
+				current = maxBytes.get();
+			}
+		}
+
+		public String getName() {
+			return "(Allocation)" + rule.getName();
+		}
+		/**
+		 * total bytes allocated by the rule
+		 */
+		public long getSize() {
+			return totalBytes.get();
+		}
+		public long getCount() {
+			return count.get();
+		}
+		public long getMeanBytes() {
+			long c = count.get();
+			return c == 0 ? 0 : totalBytes.get() / c;
+		}
+		public long getMaxBytes() {
+			return maxBytes.get();
+		}
+	}
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.drools.core.command.runtime.rule.FireAllRulesCommand;
+import org.kie.api.KieBase;
+import org.kie.api.command.Command;
+import org.kie.api.definition.rule.Rule;
+import org.kie.api.event.KieRuntimeEventManager;
+import org.kie.api.event.process.DefaultProcessEventListener;
+import org.kie.api.event.process.ProcessEventListener;
+import org.kie.api.event.process.ProcessStartedEvent;
+import org.kie.api.event.rule.AfterMatchFiredEvent;
+import org.kie.api.event.rule.AgendaEventListener;
+import org.kie.api.event.rule.BeforeMatchFiredEvent;
+import org.kie.api.event.rule.DefaultAgendaEventListener;
+import org.kie.api.runtime.StatelessKieSession;
+import org.kie.internal.command.Context;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStats;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+
+/**
+ * Rule runtime stats of the CPU time of the firing (RHS) of each rules
+ * and of the fireAllRules commands.<BR>
+ * The CPU time of the current thread is not counted while the thread is preempted
+ * or stopped by GC, so the ratio of the CPU time to the wall-clock time shows
+ * how much the executions were disturbed.
+ * The time of the measurements themselves is measured once and subtracted from each firing.
+ *
+ * @author okuniyas
+ *
+ */
+@JsonPropertyOrder({"name", "kieBaseId", "lastReset", "elapsedMilliseconds",
+	"executionCount", "ruleExecutionCount", "fireAllRules", "children" })
+public class RuleCpuTimeStats extends RuleNoOpStats
+implements RuleRuntimeStats
+{
+	private static final ThreadMXBean THREAD_MX_BEAN;
+	static {
+		THREAD_MX_BEAN = threadMXBean();
+		if (THREAD_MX_BEAN == null) {
+			System.err.println("WARNING: the thread CPU time is not supported by this JVM. " +
+					"RULE_CPU_TIME stats counts the firing only.");
+		}
+	}
+	// wall-clock and CPU time of a pair of the measurements
+	private static final long[] MEASUREMENT_NANOS = measurementNanos();
+
+	private ConcurrentHashMap<Rule, RuleCpuTimeL1> ruleCpuTimeMap =
+			new ConcurrentHashMap<Rule, RuleCpuTimeL1>();
+
+	private AtomicLong executionCount = new AtomicLong();
+
+	private final FireAllRulesTimes fireAllRules = new FireAllRulesTimes();
+
+	public RuleCpuTimeStats(KieBase kieBase) {
+		super(kieBase);
+	}
+
+	public long getExecutionCount() {
+		return executionCount.get();
+	}
+
+	public long getRuleExecutionCount() {
+		long count = 0;
+		for (RuleCpuTimeL1 l1 : ruleCpuTimeMap.values()) {
+			count += l1.count.get();
+		}
+		return count;
+	}
+
+	/**
+	 * CPU time and wall-clock time of the fireAllRules commands
+	 */
+	public FireAllRulesTimes getFireAllRules() {
+		return fireAllRules;
+	}
+
+	/**
+	 * get the CPU time of each rules sorted by the rule name
+	 * @return list of the CPU time of each rules
+	 */
+	public Collection<RuleCpuTimeL1> getChildren() {
+		List<RuleCpuTimeL1> children = new ArrayList<RuleCpuTimeL1>(ruleCpuTimeMap.values());
+		Collections.sort(children, new Comparator<RuleCpuTimeL1>() {
+			@Override
+			public int compare(RuleCpuTimeL1 o1, RuleCpuTimeL1 o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		return children;
+	}
+
+	@Override
+	@JsonIgnore
+	public StatsType getStatsType() {
+		return StatsType.RULE_CPU_TIME;
+	}
+
+	public void clearStats() {
+		executionCount.set(0);
+		ruleCpuTimeMap.clear();
+		fireAllRules.clear();
+		super.clearStats();
+	}
+
+	/**
+	 * merge the CPU time of each rules and the fireAllRules commands
+	 */
+	@Override
+	public void merge(RuleRuntimeStats other) {
+		RuleCpuTimeStats otherStats = (RuleCpuTimeStats)other;
+		executionCount.addAndGet(otherStats.getExecutionCount());
+		for (RuleCpuTimeL1 otherL1 : otherStats.ruleCpuTimeMap.values()) {
+			getRuleCpuTimeL1(otherL1.rule).merge(otherL1);
+		}
+		fireAllRules.merge(otherStats.fireAllRules);
+		super.merge(other);
+	}
+
+	/**
+	 * replace the fireAllRules commands of a batch by the commands measuring the CPU time.<BR>
+	 * a fireAllRules command is appended if the batch has none,
+	 * as the stateless session fires all rules after such batch.
+	 * @param commands commands of a batch
+	 * @return new list of the commands
+	 */
+	public List<Command<?>> timeFireAllRules(List<Command<?>> commands) {
+		List<Command<?>> ret = new ArrayList<Command<?>>(commands.size() + 1);
+		boolean fired = false;
+		for (Command<?> command : commands) {
+			if (command instanceof FireAllRulesCommand) {
+				ret.add(new TimedFireAllRulesCommand((FireAllRulesCommand)command, this));
+				fired = true;
+			} else {
+				ret.add(command);
+			}
+		}
+		if (!fired) {
+			ret.add(new TimedFireAllRulesCommand(new FireAllRulesCommand(), this));
+		}
+		return ret;
+	}
+
+	private void record(Rule rule, long cpuNanos, long wallNanos) {
+		getRuleCpuTimeL1(rule).record(cpuNanos, wallNanos);
+	}
+
+	private RuleCpuTimeL1 getRuleCpuTimeL1(Rule rule) {
+		RuleCpuTimeL1 ruleCpuTimeL1 = ruleCpuTimeMap.get(rule);
+		if (ruleCpuTimeL1 == null) {
+			ruleCpuTimeL1 = new RuleCpuTimeL1();
+			ruleCpuTimeL1.rule = rule;
+			RuleCpuTimeL1 old = ruleCpuTimeMap.putIfAbsent(rule, ruleCpuTimeL1);
+			if (old != null) {
+				ruleCpuTimeL1 = old;
+			}
+		}
+		return ruleCpuTimeL1;
+	}
+
+	@Override
+	public void registerSession(KieRuntimeEventManager session) {
+		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
+			if (listener instanceof SubListener1) {
+				return; // do nothing
+			}
+		}
+		session.addEventListener(new SubListener1(this));
+		// StatelessKieSession can not add ProcessEventListener.
+		// instead of setting the listener, increment the executionCount.
+		if (session instanceof StatelessKieSession) {
+			executionCount.incrementAndGet();
+		} else {
+			session.addEventListener(new SubListener2(this));
+		}
+	}
+
+	@Override
+	public void unregisterSession(KieRuntimeEventManager session) {
+		// no need to unregister if session is stateless as it has been disposed.
+		if (session instanceof StatelessKieSession) {
+			return;
+		}
+		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
+			if (listener instanceof SubListener1) {
+				session.removeEventListener(listener);
+			}
+		}
+		for (ProcessEventListener listener : session.getProcessEventListeners()) {
+			if (listener instanceof SubListener2) {
+				session.removeEventListener(listener);
+			}
+		}
+	}
+
+	private static ThreadMXBean threadMXBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (!bean.isCurrentThreadCpuTimeSupported()) {
+				return null;
+			}
+			if (!bean.isThreadCpuTimeEnabled()) {
+				bean.setThreadCpuTimeEnabled(true);
+			}
+			return bean;
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private static long[] measurementNanos() {
+		long minWall = Long.MAX_VALUE;
+		long minCpu = Long.MAX_VALUE;
+		for (int i=0; i<1000; i++) {
+			long wall = System.nanoTime();
+			long cpu = currentThreadCpuTime();
+			minCpu = Math.min(minCpu, currentThreadCpuTime() - cpu);
+			minWall = Math.min(minWall, System.nanoTime() - wall);
+		}
+		return new long[] { minWall, minCpu };
+	}
+
+	private static long currentThreadCpuTime() {
+		return THREAD_MX_BEAN == null ? 0 : THREAD_MX_BEAN.getCurrentThreadCpuTime();
+	}
+
+	// AgendaEventListener to measure the CPU time of each rule firing
+	private static class SubListener1 extends DefaultAgendaEventListener {
+		private RuleCpuTimeStats parent = null;
+		private long cpuAt = 0;
+		private long firedAt = 0;
+		private SubListener1(RuleCpuTimeStats parent) {
+			this.parent = parent;
+		}
+		@Override
+		public void beforeMatchFired(BeforeMatchFiredEvent event) {
+			firedAt = System.nanoTime();
+			cpuAt = currentThreadCpuTime();
+		}
+		@Override
+		public void afterMatchFired(AfterMatchFiredEvent event) {
+			long cpuNanos = currentThreadCpuTime() - cpuAt;
+			long wallNanos = System.nanoTime() - firedAt;
+			// exclude the measurements from short firings
+			parent.record(event.getMatch().getRule(),
+					Math.max(cpuNanos - MEASUREMENT_NANOS[1], 0),
+					Math.max(wallNanos - MEASUREMENT_NANOS[0], 0));
+		}
+	}
+
+	// ProcessEventListener to count ruleflow execution
+	private static class SubListener2 extends DefaultProcessEventListener {
+		private RuleCpuTimeStats parent = null;
+		private SubListener2(RuleCpuTimeStats parent) {
+			this.parent = parent;
+		}
+		@Override
+		public void afterProcessStarted(ProcessStartedEvent event) {
+			parent.executionCount.incrementAndGet();
+		}
+	}
+
+	// fireAllRules command measuring the CPU time of the original command.
+	// it extends FireAllRulesCommand not to let the stateless session fire all rules again.
+	private static class TimedFireAllRulesCommand extends FireAllRulesCommand {
+		private static final long serialVersionUID = 1L;
+		private final FireAllRulesCommand command;
+		private final transient RuleCpuTimeStats parent;
+		private TimedFireAllRulesCommand(FireAllRulesCommand command, RuleCpuTimeStats parent) {
+			this.command = command;
+			this.parent = parent;
+		}
+		@Override
+		public Integer execute(Context context) {
+			long wall = System.nanoTime();
+			long cpu = currentThreadCpuTime();
+			try {
+				return command.execute(context);
+			} finally {
+				parent.fireAllRules.record(currentThreadCpuTime() - cpu, System.nanoTime() - wall);
+			}
+		}
+		@Override
+		public String toString() {
+			return command.toString();
+		}
+	}
+
+	/**
+	 * CPU time and wall-clock time of the fireAllRules commands.<BR>
+	 * the ratio of each command is accumulated as the mean and the minimum.
+	 */
+	@JsonPropertyOrder({"count", "cpuNanos", "wallNanos", "cpuRatio", "meanCpuRatio", "minCpuRatio"})
+	public static class FireAllRulesTimes {
+		private long count = 0;
+		private long cpuNanos = 0;
+		private long wallNanos = 0;
+		private double sumRatio = 0;
+		private double minRatio = Double.MAX_VALUE;
+
+		synchronized void record(long cpu, long wall) {
+			count++;
+			cpuNanos += cpu;
+			wallNanos += wall;
+			double ratio = ratio(cpu, wall);
+			sumRatio += ratio;
+			minRatio = Math.min(minRatio, ratio);
+		}
+
+		synchronized void merge(FireAllRulesTimes other) {
+			synchronized (other) {
+				count += other.count;
+				cpuNanos += other.cpuNanos;
+				wallNanos += other.wallNanos;
+				sumRatio += other.sumRatio;
+				minRatio = Math.min(minRatio, other.minRatio);
+			}
+		}
+
+		synchronized void clear() {
+			count = 0;
+			cpuNanos = 0;
+			wallNanos = 0;
+			sumRatio = 0;
+			minRatio = Double.MAX_VALUE;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+		public synchronized long getCpuNanos() {
+			return cpuNanos;
+		}
+		public synchronized long getWallNanos() {
+			return wallNanos;
+		}
+		/**
+		 * total CPU time / total wall-clock time
+		 */
+		public synchronized double getCpuRatio() {
+			return ratio(cpuNanos, wallNanos);
+		}
+		public synchronized double getMeanCpuRatio() {
+			return count == 0 ? 0 : sumRatio / count;
+		}
+		public synchronized double getMinCpuRatio() {
+			return count == 0 ? 0 : minRatio;
+		}
+	}
+
+	private static double ratio(long cpu, long wall) {
+		// the CPU time is counted in the coarser ticks on some platforms
+		return wall <= 0 ? 1.0 : Math.min((double)cpu / wall, 1.0);
+	}
+
+	// entry classes
+	@JsonPropertyOrder({"name", "size", "count", "meanCpuNanos", "maxCpuNanos", "wallNanos", "cpuRatio"})
+	public static class RuleCpuTimeL1 {
+		@JsonIgnore
+		public Rule rule;
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong cpuNanos = new AtomicLong();
+		private AtomicLong maxCpuNanos = new AtomicLong();
+		private AtomicLong wallNanos = new AtomicLong();
+
+		private void record(long cpu, long wall) {
+			count.incrementAndGet();
+			cpuNanos.addAndGet(cpu);
+			wallNanos.addAndGet(wall);
+			updateMax(cpu);
+		}
+
+		private void merge(RuleCpuTimeL1 other) {
+			count.addAndGet(other.count.get());
+			cpuNanos.addAndGet(other.cpuNanos.get());
+			wallNanos.addAndGet(other.wallNanos.get());
+			updateMax(other.maxCpuNanos.get());
+		}
+
+		private void updateMax(long cpu) {
+			long current = maxCpuNanos.get();
+			while (cpu > current && !maxCpuNanos.compareAndSet(current, cpu)) {
+				current = maxCpuNanos.get();
+			}
+		}
+
+		public String getName() {
+			return "(CpuTime)" + rule.getName();
+		}
+		/**
+		 * total CPU nanoseconds spent in the rule
+		 */
+		public long getSize() {
+			return cpuNanos.get();
+		}
+		public long getCount() {
+			return count.get();
+		}
+		public long getMeanCpuNanos() {
+			long c = count.get();
+			return c == 0 ? 0 : cpuNanos.get() / c;
+		}
+		public long getMaxCpuNanos() {
+			return maxCpuNanos.get();
+		}
+		public long getWallNanos() {
+			return wallNanos.get();
+		}
+		public double getCpuRatio() {
+			return ratio(cpuNanos.get(), wallNanos.get());
+		}
+	}
+}
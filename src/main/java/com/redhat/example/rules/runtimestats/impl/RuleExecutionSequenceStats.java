@@ -16,10 +16,12 @@
 
 package com.redhat.example.rules.runtimestats.impl;
 
-import java.util.ArrayList;
+import java.io.File;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.kie.api.KieBase;
+import org.kie.api.definition.rule.Rule;
 import org.kie.api.event.KieRuntimeEventManager;
 import org.kie.api.event.process.DefaultProcessEventListener;
 import org.kie.api.event.process.ProcessEventListener;
@@ -46,15 +48,12 @@ extends RuleNoOpStats
 implements RuleRuntimeStats
 {
 
-	private final int bucketSize = 1024*8;
-	private ArrayList<ArrayList<String>> executionSequence;
-	private long executionCount = 0;
-	private long ruleExecutionCount = 0;
+	private RuleSequenceBuffer executionSequence;
+	private AtomicLong executionCount = new AtomicLong();
 
 	public RuleExecutionSequenceStats(KieBase kieBase) {
 		 super(kieBase);
-		 executionSequence = new ArrayList<ArrayList<String>>(bucketSize);
-		 executionSequence.add(new ArrayList<String>(bucketSize));
+		 executionSequence = new RuleSequenceBuffer(kieBase);
 	}
 
 	@Override
@@ -64,58 +63,63 @@ implements RuleRuntimeStats
 	
 	@Override
 	public void clearStats() {
-		executionCount = 0;
-		ruleExecutionCount = 0;
-		for (ArrayList<String> bucket : executionSequence) {
-			bucket.clear();
-		}
-		ArrayList<String> firstBucket = executionSequence.get(0);
+		executionCount.set(0);
 		executionSequence.clear();
-		executionSequence.add(firstBucket);
 		super.clearStats();
 	}
 	
     public long getExecutionCount() {
-    	return executionCount;
+    	return executionCount.get();
     }
 
     public long getRuleExecutionCount() {
-    	return ruleExecutionCount;
+    	return executionSequence.size();
     }
 
-	private void addRule(String name) {
-		ruleExecutionCount++;
-		ArrayList<String> lastBucket =
-				executionSequence.get(executionSequence.size()-1);
-		if (lastBucket.size() >= bucketSize) {
-			lastBucket = new ArrayList<String>(bucketSize);
-			executionSequence.add(lastBucket);
+	/**
+	 * move the older rules to a memory-mapped file in the dir
+	 * when the sequence exceeds the threshold.
+	 * @param dir directory of the spill file
+	 * @param threshold number of rules kept in the heap. 0 or less disables the spill.
+	 */
+	public void setSpill(File dir, long threshold) {
+		executionSequence.setSpill(dir, threshold);
+	}
+
+	/**
+	 * delete the spill file of the sequence
+	 */
+	@Override
+	public void dispose() {
+		executionSequence.dispose();
+	}
+
+	/**
+	 * replace by the sequence of the other stats
+	 * as this stats keeps only the last execution.
+	 */
+	@Override
+	public void merge(RuleRuntimeStats other) {
+		RuleExecutionSequenceStats otherStats = (RuleExecutionSequenceStats)other;
+		if (otherStats.getExecutionCount() == 0) {
+			return;
 		}
-		lastBucket.add(name);
+		executionCount.set(otherStats.getExecutionCount());
+		executionSequence.clear();
+		executionSequence.appendAll(otherStats.executionSequence);
+		super.merge(other);
+	}
+
+	private void addRule(Rule rule) {
+		executionSequence.add(rule);
 	}
 	
+	/**
+	 * rule names are decoded from the rule ids while iterating.
+	 */
 	@JsonSerialize(using=WrapItemSerializer.class)
 	public Iterator<String> getRuleSequence() {
-		return new Iterator<String>() {
-			Iterator<ArrayList<String>> bucketIt =
-					executionSequence.iterator();
-			Iterator<String> it = (bucketIt.next()).iterator();
-			
-			@Override
-			public boolean hasNext() {
-				if (it.hasNext()) return true;
-				if (!bucketIt.hasNext()) return false;
-				it = (bucketIt.next()).iterator();
-				return it.hasNext();
-			}
-
-			@Override
-			public String next() {
-				if (!hasNext()) return null;
-				return it.next();
-			}
-			
-		};
+		return executionSequence.iterator();
 	}
 	
 	@Override
@@ -125,7 +129,7 @@ implements RuleRuntimeStats
 		clearStats();
 		
 		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
-			if (listener instanceof SubListener1) {
+			if (isOwnListener(listener)) {
 				return; // do nothing
 			}
 		}
@@ -133,7 +137,7 @@ implements RuleRuntimeStats
 		// StatelessKieSession can not add ProcessEventListener.
 		// instead of setting the listener, increment the executionCount.
 		if (session instanceof StatelessKieSession) {
-			executionCount++;
+			executionCount.incrementAndGet();
 		} else {
 			session.addEventListener(new SubListener2(this));
 		}
@@ -145,18 +149,32 @@ implements RuleRuntimeStats
 		if (session instanceof StatelessKieSession) {
 			return;
 		}
+		// the sessions of the other stats of the KieBase, as of the workers, are kept registered
 		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
-			if (listener instanceof SubListener1) {
+			if (isOwnListener(listener)) {
 				session.removeEventListener(listener);
 			}
 		}
 		for (ProcessEventListener listener : session.getProcessEventListeners()) {
-			if (listener instanceof SubListener2) {
+			if (listener instanceof SubListener2 && ((SubListener2)listener).parent == this) {
 				session.removeEventListener(listener);
 			}
 		}
 	}
 
+	private boolean isOwnListener(AgendaEventListener listener) {
+		return listener instanceof SubListener1 && ((SubListener1)listener).parent == this;
+	}
+
+	/**
+	 * keep only the sequence of the next batch as registerSession() does for a new session
+	 */
+	@Override
+	public void resetSession(KieRuntimeEventManager session) {
+		executionCount.set(0);
+		executionSequence.clear();
+	}
+
 	// AgendaEventListener to get rule execution
 	private static class SubListener1 extends DefaultAgendaEventListener {
 		private RuleExecutionSequenceStats parent = null;
@@ -165,7 +183,7 @@ implements RuleRuntimeStats
 		}
 		@Override
 		public void beforeMatchFired(BeforeMatchFiredEvent event) {
-			parent.addRule(event.getMatch().getRule().getName());
+			parent.addRule(event.getMatch().getRule());
 		}
 	}
 
@@ -177,7 +195,7 @@ implements RuleRuntimeStats
 		}
 		@Override
 		public void afterProcessStarted(ProcessStartedEvent event) {
-			parent.executionCount++;
+			parent.executionCount.incrementAndGet();
 		}
 	}	
 }
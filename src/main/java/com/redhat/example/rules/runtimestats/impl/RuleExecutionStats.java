@@ -20,9 +20,11 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.kie.api.definition.rule.Rule;
 import org.kie.api.KieBase;
@@ -46,6 +48,9 @@ import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
 /**
  * Rule runtime stats of rule executions.
  * 
+ * If ruleIndexed is true, each rule is counted by a LongAdder in the array
+ * indexed by the dense rule id of {@link RuleIndex} instead of the map of rules.
+ * 
  * @author okuniyas
  *
  */
@@ -59,8 +64,23 @@ implements RuleRuntimeStats
 	
 	private AtomicLong executionCount = new AtomicLong();
 	
+	private final boolean ruleIndexed;
+	private volatile RuleIndexedCounters ruleIndexedCounters = null;
+
 	public RuleExecutionStats(KieBase kieBase) {
+		this(kieBase, false);
+	}
+	
+	public RuleExecutionStats(KieBase kieBase, boolean ruleIndexed) {
 		super(kieBase);
+		this.ruleIndexed = ruleIndexed;
+		if (ruleIndexed) {
+			initRuleCounters();
+		}
+	}
+
+	private void initRuleCounters() {
+		ruleIndexedCounters = new RuleIndexedCounters(new RuleIndex(kieBase));
 	}
 	
     public long getExecutionCount() {
@@ -74,8 +94,13 @@ implements RuleRuntimeStats
 	@JsonSerialize(using=WrapItemSerializer.class)
     public Iterator<String> getNotExecutedRules() {
     	Set<String> ret = new TreeSet<String>();
+    	RuleIndexedCounters indexed = ruleIndexedCounters;
     	for (KiePackage kiePackage : kieBase.getKiePackages()) {
     		for (Rule rule : kiePackage.getRules()) {
+    			int id = indexed != null ? indexed.index.indexOf(rule) : RuleIndex.UNKNOWN;
+    			if (id != RuleIndex.UNKNOWN && indexed.counters[id].sum() > 0) {
+    				continue;
+    			}
     			RuleExecutionCountL1 l1 = ruleCounterMap.get(rule);
     			if (l1 == null || l1.count.get() == 0) {
     				ret.add(getRuleName(rule));
@@ -89,8 +114,29 @@ implements RuleRuntimeStats
 		return rule.getPackageName() + "." + rule.getName();		
 	}
 	
+	/**
+	 * the children are sorted by the rules,
+	 * so the stats are written in the same order whether the rules are indexed or not.
+	 */
 	public Collection<RuleExecutionCountL1> getChildren() {
-		return ruleCounterMap.values();
+		Map<Rule, RuleExecutionCountL1> children =
+				new TreeMap<Rule, RuleExecutionCountL1>(RuleIndex.NAME_ORDER);
+		children.putAll(ruleCounterMap);
+		RuleIndexedCounters indexed = ruleIndexedCounters;
+		if (indexed == null) {
+			return children.values();
+		}
+		// rule indexed counters and counters of rules unknown to the index
+		for (int id=0; id<indexed.counters.length; id++) {
+			long count = indexed.counters[id].sum();
+			if (count > 0) {
+				RuleExecutionCountL1 l1 = new RuleExecutionCountL1();
+				l1.rule = indexed.index.getRule(id);
+				l1.count.set(count);
+				children.put(l1.rule, l1);
+			}
+		}
+		return children.values();
 	}
 
 	@Override
@@ -102,9 +148,43 @@ implements RuleRuntimeStats
 	public void clearStats() {
 		executionCount.set(0);
 		ruleCounterMap.clear();
+		if (ruleIndexed) {
+			initRuleCounters();
+		}
 		super.clearStats();
 	}
 
+	/**
+	 * add the execution counts of each rules
+	 */
+	@Override
+	public void merge(RuleRuntimeStats other) {
+		RuleExecutionStats otherStats = (RuleExecutionStats)other;
+		executionCount.addAndGet(otherStats.getExecutionCount());
+		for (RuleExecutionCountL1 otherL1 : otherStats.getChildren()) {
+			addCount(otherL1.rule, otherL1.count.get());
+		}
+		super.merge(other);
+	}
+
+	private void addCount(Rule rule, long count) {
+		RuleIndexedCounters indexed = ruleIndexedCounters;
+		if (indexed != null) {
+			int id = indexed.index.indexOf(rule);
+			if (id != RuleIndex.UNKNOWN) {
+				indexed.counters[id].add(count);
+				return;
+			}
+		}
+		RuleExecutionCountL1 ruleExecutionCountL1 = ruleCounterMap.get(rule);
+		if (ruleExecutionCountL1 == null) {
+			ruleExecutionCountL1 = new RuleExecutionCountL1();
+			ruleExecutionCountL1.rule = rule;
+			ruleCounterMap.put(rule, ruleExecutionCountL1);
+		}
+		ruleExecutionCountL1.count.addAndGet(count);
+	}
+
 	@Override
 	public void registerSession(KieRuntimeEventManager session) {
 		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
@@ -149,6 +229,14 @@ implements RuleRuntimeStats
 		@Override
 		public void beforeMatchFired(BeforeMatchFiredEvent event) {
 			Rule activatedRule = event.getMatch().getRule();
+			RuleIndexedCounters indexed = parent.ruleIndexedCounters;
+			if (indexed != null) {
+				int id = indexed.index.indexOf(activatedRule);
+				if (id != RuleIndex.UNKNOWN) {
+					indexed.counters[id].increment();
+					return;
+				}
+			}
 			RuleExecutionCountL1 ruleExecutionCountL1 = parent.ruleCounterMap.get(activatedRule);
 			if (ruleExecutionCountL1 == null) {
 				ruleExecutionCountL1 = new RuleExecutionCountL1();
@@ -171,6 +259,19 @@ implements RuleRuntimeStats
 		}
 	}
 	
+	// LongAdder of each rule indexed by the RuleIndex
+	private static class RuleIndexedCounters {
+		private final RuleIndex index;
+		private final LongAdder[] counters;
+		private RuleIndexedCounters(RuleIndex index) {
+			this.index = index;
+			counters = new LongAdder[index.size()];
+			for (int i=0; i<counters.length; i++) {
+				counters[i] = new LongAdder();
+			}
+		}
+	}
+
 	// entry classes
 	public static class RuleExecutionCountL1 {
 		@JsonIgnore
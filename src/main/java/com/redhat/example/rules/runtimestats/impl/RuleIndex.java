@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kie.api.KieBase;
+import org.kie.api.definition.KiePackage;
+import org.kie.api.definition.rule.Rule;
+
+/**
+ * Dense integer ids (0 to size-1) of all rules in a KieBase.<BR>
+ * The ids are looked up by the identity of the Rule instance first,
+ * so hashCode() and equals() of the Rule are not called in the usual case.
+ *
+ * @author okuniyas
+ */
+public class RuleIndex {
+	public static final int UNKNOWN = -1;
+
+	/**
+	 * order of the rules by the package and the name,
+	 * the same whether the rules are indexed or not.
+	 */
+	public static final Comparator<Rule> NAME_ORDER = new Comparator<Rule>() {
+		@Override
+		public int compare(Rule o1, Rule o2) {
+			int c = String.valueOf(o1.getPackageName()).compareTo(String.valueOf(o2.getPackageName()));
+			return c != 0 ? c : o1.getName().compareTo(o2.getName());
+		}
+	};
+
+	private final Rule[] rules;
+	private final Object[] identityKeys;
+	private final int[] identityIds;
+	private final int mask;
+	private final Map<Rule, Integer> ruleToId = new HashMap<Rule, Integer>();
+
+	public RuleIndex(KieBase kieBase) {
+		List<Rule> ruleList = new ArrayList<Rule>();
+		for (KiePackage kiePackage : kieBase.getKiePackages()) {
+			ruleList.addAll(kiePackage.getRules());
+		}
+		rules = ruleList.toArray(new Rule[ruleList.size()]);
+		int capacity = Integer.highestOneBit(Math.max(rules.length, 1) * 4 - 1) << 1;
+		identityKeys = new Object[capacity];
+		identityIds = new int[capacity];
+		mask = capacity - 1;
+		for (int id=0; id<rules.length; id++) {
+			int i = hash(rules[id]) & mask;
+			while (identityKeys[i] != null) {
+				i = (i + 1) & mask;
+			}
+			identityKeys[i] = rules[id];
+			identityIds[i] = id;
+			ruleToId.put(rules[id], id);
+		}
+	}
+
+	/**
+	 * number of rules
+	 */
+	public int size() {
+		return rules.length;
+	}
+
+	/**
+	 * get the id of the rule
+	 * @param rule
+	 * @return id of the rule or {@link #UNKNOWN} if the rule is not in the KieBase.
+	 */
+	public int indexOf(Rule rule) {
+		int i = hash(rule) & mask;
+		Object key;
+		while ((key = identityKeys[i]) != null) {
+			if (key == rule) {
+				return identityIds[i];
+			}
+			i = (i + 1) & mask;
+		}
+		// another instance of the same rule
+		Integer id = ruleToId.get(rule);
+		return id == null ? UNKNOWN : id;
+	}
+
+	/**
+	 * get the rule of the id
+	 * @param id
+	 * @return the rule
+	 */
+	public Rule getRule(int id) {
+		return rules[id];
+	}
+
+	private static int hash(Object o) {
+		int h = System.identityHashCode(o) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kie.api.KieBase;
+import org.kie.api.definition.rule.Rule;
+import org.kie.api.event.KieRuntimeEventManager;
+import org.kie.api.event.process.DefaultProcessEventListener;
+import org.kie.api.event.process.ProcessEventListener;
+import org.kie.api.event.process.ProcessStartedEvent;
+import org.kie.api.event.rule.AfterMatchFiredEvent;
+import org.kie.api.event.rule.AgendaEventListener;
+import org.kie.api.event.rule.BeforeMatchFiredEvent;
+import org.kie.api.event.rule.DefaultAgendaEventListener;
+import org.kie.api.runtime.StatelessKieSession;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStats;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+
+/**
+ * Rule runtime stats of the firing latency (duration of RHS) of each rules.
+ *
+ * @author okuniyas
+ *
+ */
+@JsonPropertyOrder({"name", "kieBaseId", "lastReset", "elapsedMilliseconds",
+	"executionCount", "ruleExecutionCount", "children" })
+public class RuleLatencyStats extends RuleNoOpStats
+implements RuleRuntimeStats
+{
+	private ConcurrentHashMap<Rule, RuleLatencyL1> ruleLatencyMap =
+			new ConcurrentHashMap<Rule, RuleLatencyL1>();
+
+	private AtomicLong executionCount = new AtomicLong();
+
+	public RuleLatencyStats(KieBase kieBase) {
+		super(kieBase);
+	}
+
+	public long getExecutionCount() {
+		return executionCount.get();
+	}
+
+	public long getRuleExecutionCount() {
+		long count = 0;
+		for (RuleLatencyL1 l1 : ruleLatencyMap.values()) {
+			count += l1.histogram.getTotalCount();
+		}
+		return count;
+	}
+
+	/**
+	 * get the latency of each rules sorted by the rule name
+	 * @return list of the latency of each rules
+	 */
+	public Collection<RuleLatencyL1> getChildren() {
+		List<RuleLatencyL1> children = new ArrayList<RuleLatencyL1>(ruleLatencyMap.values());
+		Collections.sort(children, new Comparator<RuleLatencyL1>() {
+			@Override
+			public int compare(RuleLatencyL1 o1, RuleLatencyL1 o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		return children;
+	}
+
+	@Override
+	@JsonIgnore
+	public StatsType getStatsType() {
+		return StatsType.RULE_LATENCY;
+	}
+
+	public void clearStats() {
+		executionCount.set(0);
+		ruleLatencyMap.clear();
+		super.clearStats();
+	}
+
+	/**
+	 * merge the histograms of each rules
+	 */
+	@Override
+	public void merge(RuleRuntimeStats other) {
+		RuleLatencyStats otherStats = (RuleLatencyStats)other;
+		executionCount.addAndGet(otherStats.getExecutionCount());
+		for (RuleLatencyL1 otherL1 : otherStats.ruleLatencyMap.values()) {
+			getRuleLatencyL1(otherL1.rule).histogram.merge(otherL1.histogram);
+		}
+		super.merge(other);
+	}
+
+	private void record(Rule rule, long elapsedNanos) {
+		getRuleLatencyL1(rule).histogram.record(elapsedNanos);
+	}
+
+	private RuleLatencyL1 getRuleLatencyL1(Rule rule) {
+		RuleLatencyL1 ruleLatencyL1 = ruleLatencyMap.get(rule);
+		if (ruleLatencyL1 == null) {
+			ruleLatencyL1 = new RuleLatencyL1();
+			ruleLatencyL1.rule = rule;
+			RuleLatencyL1 old = ruleLatencyMap.putIfAbsent(rule, ruleLatencyL1);
+			if (old != null) {
+				ruleLatencyL1 = old;
+			}
+		}
+		return ruleLatencyL1;
+	}
+
+	@Override
+	public void registerSession(KieRuntimeEventManager session) {
+		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
+			if (listener instanceof SubListener1) {
+				return; // do nothing
+			}
+		}
+		session.addEventListener(new SubListener1(this));
+		// StatelessKieSession can not add ProcessEventListener.
+		// instead of setting the listener, increment the executionCount.
+		if (session instanceof StatelessKieSession) {
+			executionCount.incrementAndGet();
+		} else {
+			session.addEventListener(new SubListener2(this));
+		}
+	}
+
+	@Override
+	public void unregisterSession(KieRuntimeEventManager session) {
+		// no need to unregister if session is stateless as it has been disposed.
+		if (session instanceof StatelessKieSession) {
+			return;
+		}
+		for (AgendaEventListener listener : session.getAgendaEventListeners()) {
+			if (listener instanceof SubListener1) {
+				session.removeEventListener(listener);
+			}
+		}
+		for (ProcessEventListener listener : session.getProcessEventListeners()) {
+			if (listener instanceof SubListener2) {
+				session.removeEventListener(listener);
+			}
+		}
+	}
+
+	// AgendaEventListener to measure the duration of each rule firing
+	private static class SubListener1 extends DefaultAgendaEventListener {
+		private RuleLatencyStats parent = null;
+		private long firedAt = 0;
+		private SubListener1(RuleLatencyStats parent) {
+			this.parent = parent;
+		}
+		@Override
+		public void beforeMatchFired(BeforeMatchFiredEvent event) {
+			firedAt = System.nanoTime();
+		}
+		@Override
+		public void afterMatchFired(AfterMatchFiredEvent event) {
+			long elapsedNanos = System.nanoTime() - firedAt;
+			parent.record(event.getMatch().getRule(), elapsedNanos);
+		}
+	}
+
+	// ProcessEventListener to count ruleflow execution
+	private static class SubListener2 extends DefaultProcessEventListener {
+		private RuleLatencyStats parent = null;
+		private SubListener2(RuleLatencyStats parent) {
+			this.parent = parent;
+		}
+		@Override
+		public void afterProcessStarted(ProcessStartedEvent event) {
+			parent.executionCount.incrementAndGet();
+		}
+	}
+
+	// entry classes
+	@JsonPropertyOrder({"name", "size", "count", "meanNanos",
+		"p50Nanos", "p90Nanos", "p99Nanos", "p999Nanos", "maxNanos"})
+	public static class RuleLatencyL1 {
+		@JsonIgnore
+		public Rule rule;
+		@JsonIgnore
+		public LatencyHistogram histogram = new LatencyHistogram();
+
+		public String getName() {
+			return "(Latency)" + rule.getName();
+		}
+		/**
+		 * total nanoseconds spent in the rule
+		 */
+		public long getSize() {
+			return histogram.getSum();
+		}
+		public long getCount() {
+			return histogram.getTotalCount();
+		}
+		public long getMeanNanos() {
+			return histogram.getMean();
+		}
+		public long getP50Nanos() {
+			return histogram.getValueAtPercentile(50.0);
+		}
+		public long getP90Nanos() {
+			return histogram.getValueAtPercentile(90.0);
+		}
+		public long getP99Nanos() {
+			return histogram.getValueAtPercentile(99.0);
+		}
+		public long getP999Nanos() {
+			return histogram.getValueAtPercentile(99.9);
+		}
+		public long getMaxNanos() {
+			return histogram.getMax();
+		}
+	}
+}
@@ -18,6 +18,7 @@ package com.redhat.example.rules.runtimestats.impl;
 
 import java.io.Writer;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.drools.core.impl.KnowledgeBaseImpl;
@@ -26,7 +27,10 @@ import org.kie.api.event.KieRuntimeEventManager;
 import org.kie.api.runtime.KieSession;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStats;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
@@ -37,13 +41,25 @@ import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
  * @author okuniyas
  *
  */
-@JsonPropertyOrder({"name", "kieBaseId", "lastReset", "elapsedMilliseconds"})
+@JsonPropertyOrder({"name", "kieBaseId", "lastReset", "elapsedMilliseconds", "batchMilliseconds", "executionsPerSecond", "gc"})
 public class RuleNoOpStats
 implements RuleRuntimeStats
 {
 	protected KieBase kieBase = null;
 
 	private AtomicReference<Date> lastReset = new AtomicReference<Date>(new Date());
+	// monotonic clock of the lastReset for the elapsed time
+	private final AtomicLong lastResetNanos = new AtomicLong(System.nanoTime());
+	// monotonic clock at the end of the batches, or -1 if not stopped
+	private final AtomicLong endNanos = new AtomicLong(-1);
+	// the work between the batches excluded from the clock
+	private final AtomicLong excludedNanos = new AtomicLong(0);
+
+	// duration of each batch, recorded by the compare service for NOOP
+	private final BatchDurations batchDurations = new BatchDurations();
+
+	// GC activity of the execution, set by the compare service
+	private volatile GcActivity gc = null;
 
 	// prohibit to create instance without KieBase
 	@SuppressWarnings("unused")
@@ -59,11 +75,80 @@ implements RuleRuntimeStats
     }
     
     public long getElapsedMilliseconds() {
-    	return (new Date().getTime() - lastReset.get().getTime());
+    	return getClockNanos() / 1000000;
     }
+
+	/**
+	 * stop the clock of the elapsed time and the executions per second at the end of the batches,
+	 * not to charge the work after the batches to the executions
+	 */
+	public void stop() {
+		endNanos.set(System.nanoTime());
+	}
+
+	/**
+	 * exclude the work between the batches, such as fingerprinting the facts of a batch,
+	 * from the elapsed time and the executions per second
+	 * @param nanos
+	 */
+	public void exclude(long nanos) {
+		excludedNanos.addAndGet(nanos);
+	}
+
+	// the time from the lastReset to the stop without the excluded work
+	private long getClockNanos() {
+		long end = endNanos.get();
+		return (end < 0 ? System.nanoTime() : end) - lastResetNanos.get() - excludedNanos.get();
+	}
     
 	public void clearStats() {
 		lastReset = new AtomicReference<Date>(new Date());
+		lastResetNanos.set(System.nanoTime());
+		endNanos.set(-1);
+		excludedNanos.set(0);
+		batchDurations.clear();
+		gc = null;
+	}
+
+	/**
+	 * @return the GC activity of the execution, or null if not tracked
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public GcActivity getGc() {
+		return gc;
+	}
+
+	public void setGc(GcActivity gc) {
+		this.gc = gc;
+	}
+
+	/**
+	 * record the duration of a batch
+	 * @param nanos
+	 */
+	public void recordBatch(long nanos) {
+		batchDurations.record(nanos);
+	}
+
+	/**
+	 * @return the durations of the batches, or null if no batch is recorded
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public BatchDurations getBatchMilliseconds() {
+		return batchDurations.getCount() == 0 ? null : batchDurations;
+	}
+
+	/**
+	 * @return the batches executed per second from the lastReset to the stop, or null if no batch is recorded
+	 */
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	public Double getExecutionsPerSecond() {
+		long count = batchDurations.getCount();
+		if (count == 0) {
+			return null;
+		}
+		long nanos = Math.max(getClockNanos(), 1);
+		return count * 1e9 / nanos;
 	}
 	
 	public String getKieBaseId() {
@@ -90,6 +175,43 @@ implements RuleRuntimeStats
 		}
 	}
 
+	@Override
+	public void writeStats(ObjectMapper mapper, JsonGenerator generator) {
+		try {
+			mapper.writeValue(generator, this);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * keep the earlier lastReset and the later stop.
+	 * the excluded work of the other is not merged,
+	 * as the work of a worker overlaps the batches of the other workers.
+	 */
+	@Override
+	public void merge(RuleRuntimeStats other) {
+		batchDurations.merge(((RuleNoOpStats)other).batchDurations);
+		long otherLastResetNanos = ((RuleNoOpStats)other).lastResetNanos.get();
+		long currentNanos = lastResetNanos.get();
+		while (otherLastResetNanos < currentNanos &&
+				!lastResetNanos.compareAndSet(currentNanos, otherLastResetNanos)) {
+			currentNanos = lastResetNanos.get();
+		}
+		long otherEndNanos = ((RuleNoOpStats)other).endNanos.get();
+		long currentEndNanos = endNanos.get();
+		while (otherEndNanos > currentEndNanos &&
+				!endNanos.compareAndSet(currentEndNanos, otherEndNanos)) {
+			currentEndNanos = endNanos.get();
+		}
+		Date otherLastReset = ((RuleNoOpStats)other).getLastReset();
+		Date current = lastReset.get();
+		while (otherLastReset.before(current) &&
+				!lastReset.compareAndSet(current, otherLastReset)) {
+			current = lastReset.get();
+		}
+	}
+
 	@Override
 	public void registerSession(KieRuntimeEventManager session) {
 	}
@@ -97,6 +219,13 @@ implements RuleRuntimeStats
 	@Override
 	public void unregisterSession(KieRuntimeEventManager session) {
 	}
+
+	/**
+	 * reset the state of the listeners before the registered session is reused for another batch
+	 * @param session
+	 */
+	public void resetSession(KieRuntimeEventManager session) {
+	}
 	
 	@Override
 	public void unregisterAllSessions() {
@@ -104,4 +233,100 @@ implements RuleRuntimeStats
 			unregisterSession(kieSession);
 		}
 	}
+
+	/**
+	 * release the resources held by the stats which is discarded, like the spill files.
+	 */
+	public void dispose() {
+	}
+
+	/**
+	 * count, mean, standard deviation and percentiles of the batch durations in milliseconds.<BR>
+	 * the variance is accumulated by Welford's method and the percentiles by a LatencyHistogram,
+	 * so the durations are not kept.
+	 */
+	@JsonPropertyOrder({"count", "mean", "stddev", "min", "p50", "p99", "p999", "max"})
+	public static class BatchDurations {
+		private long count = 0;
+		private double mean = 0;
+		// sum of the squared differences from the mean
+		private double m2 = 0;
+		private long min = Long.MAX_VALUE;
+		private long max = 0;
+		private final LatencyHistogram histogram = new LatencyHistogram();
+
+		synchronized void record(long nanos) {
+			histogram.record(nanos);
+			count++;
+			double delta = nanos - mean;
+			mean += delta / count;
+			m2 += delta * (nanos - mean);
+			min = Math.min(min, nanos);
+			max = Math.max(max, nanos);
+		}
+
+		synchronized void merge(BatchDurations other) {
+			long otherCount;
+			double otherMean, otherM2;
+			long otherMin, otherMax;
+			synchronized (other) {
+				otherCount = other.count;
+				otherMean = other.mean;
+				otherM2 = other.m2;
+				otherMin = other.min;
+				otherMax = other.max;
+			}
+			if (otherCount == 0) {
+				return;
+			}
+			histogram.merge(other.histogram);
+			long total = count + otherCount;
+			double delta = otherMean - mean;
+			mean += delta * otherCount / total;
+			m2 += otherM2 + delta * delta * count * otherCount / total;
+			count = total;
+			min = Math.min(min, otherMin);
+			max = Math.max(max, otherMax);
+		}
+
+		synchronized void clear() {
+			count = 0;
+			mean = 0;
+			m2 = 0;
+			min = Long.MAX_VALUE;
+			max = 0;
+			histogram.clear();
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+		public synchronized double getMean() {
+			return mean / 1e6;
+		}
+		/**
+		 * sample standard deviation
+		 */
+		public synchronized double getStddev() {
+			return count < 2 ? 0 : Math.sqrt(m2 / (count - 1)) / 1e6;
+		}
+		public synchronized double getMin() {
+			return count == 0 ? 0 : min / 1e6;
+		}
+		@JsonProperty("p50")
+		public synchronized double getP50() {
+			return histogram.getValueAtPercentile(50) / 1e6;
+		}
+		@JsonProperty("p99")
+		public synchronized double getP99() {
+			return histogram.getValueAtPercentile(99) / 1e6;
+		}
+		@JsonProperty("p999")
+		public synchronized double getP999() {
+			return histogram.getValueAtPercentile(99.9) / 1e6;
+		}
+		public synchronized double getMax() {
+			return max / 1e6;
+		}
+	}
 }
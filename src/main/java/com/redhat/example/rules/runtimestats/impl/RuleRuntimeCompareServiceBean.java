@@ -16,34 +16,55 @@
 
 package com.redhat.example.rules.runtimestats.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
+import org.drools.core.command.runtime.rule.FireAllRulesCommand;
 import org.drools.core.command.runtime.rule.InsertElementsCommand;
 import org.drools.core.command.runtime.rule.InsertObjectCommand;
+import org.drools.core.impl.KnowledgeBaseImpl;
 import org.kie.api.KieBase;
 import org.kie.api.KieServices;
 import org.kie.api.command.Command;
 import org.kie.api.command.KieCommands;
+import org.kie.api.runtime.CommandExecutor;
+import org.kie.api.runtime.ExecutionResults;
+import org.kie.api.runtime.KieSession;
 import org.kie.api.runtime.StatelessKieSession;
 import org.kie.internal.concurrent.ExecutorProviderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.util.EmptyIterator;
 import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStats;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
 
@@ -60,7 +81,7 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 	private KieCommands kcommands = ks.getCommands();
 	private RuleRuntimeStatsServiceBean runtimeStatsService =
 			(RuleRuntimeStatsServiceBean)RuleRuntimeStatsService.Factory.get();
-	
+
 	private static final ObjectMapper mapper =
 			new ObjectMapper()
 			.enable(SerializationFeature.INDENT_OUTPUT)
@@ -71,6 +92,16 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 
 
 	private int maximumFactListSize = 1000;
+	private volatile boolean concurrentExecution = false;
+	private volatile int executionThreads = 1;
+	private ExecutorService workerExecutor = null;
+	private final KeyedFactComparator keyedFactComparator = new KeyedFactComparator();
+	private volatile String factFingerprintDir = null;
+	private volatile File[] snapshotFiles = null;
+	private volatile boolean forceGc = false;
+	private volatile long gcSettleMillis = 1000;
+	private volatile boolean pooledSessions = false;
+	private volatile boolean inputIsolation = false;
 	
 	// references of inserted objects
 	private ArrayList<Object> facts1 = new ArrayList<Object>(maximumFactListSize);
@@ -79,16 +110,43 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 	@Override
 	public void compareExecutionForWarmup(KieBase baseRules, KieBase workingRules, CommandsFactory commandsFactory,
 			StatsType statsType, long endWarmupTime) {
-		compareExecution(baseRules, workingRules, commandsFactory, statsType, endWarmupTime);
+		compareExecution(baseRules, workingRules, commandsFactory, statsType, endWarmupTime, null);
 	}
 	
 	@Override
 	public String[] compareExecution(KieBase kieBase1, KieBase kieBase2,
 			CommandsFactory commandsFactory, StatsType statsType) {
-		return compareExecution(kieBase1, kieBase2, commandsFactory, statsType, -1);
+		StringOutputs outputs = new StringOutputs();
+		compareExecution(kieBase1, kieBase2, commandsFactory, statsType, -1, outputs);
+		return outputs.strings;
+	}
+
+	@Override
+	public File[] compareExecution(KieBase kieBase1, KieBase kieBase2,
+			CommandsFactory commandsFactory, StatsType statsType, File[] files) {
+		FileOutputs outputs = new FileOutputs(files);
+		compareExecution(kieBase1, kieBase2, commandsFactory, statsType, -1, outputs);
+		return outputs.files;
 	}
 	
 
+	@Override
+	public File[][] compareExecution(List<KieBase> kieBases, CommandsFactory commandsFactory,
+			StatsType statsType, File[][] files) {
+		File[] flat = new File[kieBases.size() * 4];
+		for (int i=0; i<kieBases.size(); i++) {
+			System.arraycopy(files[i], 0, flat, i * 4, 4);
+		}
+		compareVariants(kieBases, commandsFactory, statsType, -1, new FileOutputs(flat));
+		return files;
+	}
+
+	@Override
+	public void compareExecutionForWarmup(List<KieBase> kieBases, CommandsFactory commandsFactory,
+			StatsType statsType, long endWarmupTime) {
+		compareVariants(kieBases, commandsFactory, statsType, endWarmupTime, null);
+	}
+
 	@Override
 	public void setMaximumFactListSize(int max) {
 		maximumFactListSize = max;
@@ -96,75 +154,367 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 		facts2.ensureCapacity(max);
 	}
 	
-	private String[] compareExecution(KieBase kieBase1, KieBase kieBase2, CommandsFactory commandsFactory,
-			StatsType statsType, long endWarmupTime) {
-		String[] ret = new String[6];
-
-		long endWarmupTime1 = -1;
-		if (endWarmupTime > 0) {
-			endWarmupTime1 = System.currentTimeMillis();
-			endWarmupTime1 += (endWarmupTime - endWarmupTime1)/2;
+	@Override
+	public void setConcurrentExecution(boolean concurrentExecution) {
+		this.concurrentExecution = concurrentExecution;
+		if (concurrentExecution) {
+			logger.warn("base and working rules are executed at the same time. " +
+					"Timing comparisons are valid only when the {} cores are not oversubscribed " +
+					"by both executions and the jitting threads.", Runtime.getRuntime().availableProcessors());
 		}
+	}
 
-		// [0] Rule runtime stats for kieBase1
-		runtimeStatsService.clearStats(kieBase1, statsType);
-		ret[0] = executeAll(kieBase1, commandsFactory, statsType, facts1, endWarmupTime1);
-		// [1] Rule runtime stats for kieBase2
-		runtimeStatsService.clearStats(kieBase2, statsType);
-		ret[1] = executeAll(kieBase2, commandsFactory, statsType, facts2, endWarmupTime);
-		
-		// clear stats
-		runtimeStatsService.unregisterAllSessions();
-		runtimeStatsService.clearAllStats();
-		
-		if (endWarmupTime > 0) {
-			return null;
+	@Override
+	public void setForceGc(boolean forceGc) {
+		this.forceGc = forceGc;
+	}
+
+	@Override
+	public void setGcSettleMillis(long gcSettleMillis) {
+		this.gcSettleMillis = gcSettleMillis;
+	}
+
+	@Override
+	public void setPooledSessions(boolean pooledSessions) {
+		this.pooledSessions = pooledSessions;
+	}
+
+	@Override
+	public void setInputIsolation(boolean inputIsolation) {
+		this.inputIsolation = inputIsolation;
+	}
+
+	@Override
+	public void setExecutionThreads(int executionThreads) {
+		this.executionThreads = executionThreads;
+	}
+
+	@Override
+	public <T> void registerFactIdentity(Class<T> factClass, Function<? super T, ?> identity) {
+		keyedFactComparator.register(factClass, identity);
+	}
+
+	@Override
+	public void setFactFingerprint(String spillDir) {
+		factFingerprintDir = spillDir;
+	}
+
+	@Override
+	public void setWorkingMemorySnapshot(File snapshot1, File snapshot2) {
+		snapshotFiles = snapshot1 == null || snapshot2 == null ? null : new File[] { snapshot1, snapshot2 };
+	}
+
+	// the identities are not used if not registered
+	private FactFingerprints newFactFingerprints(String spillDir) {
+		return new FactFingerprints(mapper, new File(spillDir),
+				keyedFactComparator.isEmpty() ? null : keyedFactComparator);
+	}
+
+	// join the facts by the identities if registered, otherwise compare by the position
+	private Object factsComparison(List<Object> facts1, List<Object> facts2) {
+		if (keyedFactComparator.isEmpty()) {
+			return new DiffList(facts1, facts2);
 		}
-				
-		// [2] Compare two stats
+		return keyedFactComparator.compare(facts1, facts2, mapper);
+	}
+
+	private void compareExecution(KieBase kieBase1, KieBase kieBase2, CommandsFactory commandsFactory,
+			StatsType statsType, long endWarmupTime, Outputs outputs) {
+		ResultFacts results1 = new ResultFacts(facts1);
+		ResultFacts results2 = new ResultFacts(facts2);
 		try {
-			ret[2] = compareStats(ret[0], ret[1]);
-		} catch (Exception e) {
-			e.printStackTrace();
-			ret[2] = "{}";
+			if (endWarmupTime <= 0) {
+				String spillDir = factFingerprintDir;
+				if (spillDir != null) {
+					results1.fingerprints = newFactFingerprints(spillDir);
+					results2.fingerprints = newFactFingerprints(spillDir);
+				}
+				File[] snapshots = snapshotFiles;
+				if (snapshots != null) {
+					results1.snapshot = new WorkingMemorySnapshot(mapper, snapshots[0]);
+					results2.snapshot = new WorkingMemorySnapshot(mapper, snapshots[1]);
+				}
+			}
+			if (concurrentExecution && !isSameKieBase(kieBase1, kieBase2)) {
+				// [0] and [1] Rule runtime stats for kieBase1 and kieBase2 at the same time
+				runtimeStatsService.clearStats(kieBase1, statsType);
+				runtimeStatsService.clearStats(kieBase2, statsType);
+				executeAllConcurrently(kieBase1, kieBase2,
+						commandsFactory, statsType, endWarmupTime, outputs, results1, results2);
+			} else {
+				long endWarmupTime1 = -1;
+				if (endWarmupTime > 0) {
+					endWarmupTime1 = System.currentTimeMillis();
+					endWarmupTime1 += (endWarmupTime - endWarmupTime1)/2;
+				}
+
+				// [0] Rule runtime stats for kieBase1
+				if (forceGc && endWarmupTime <= 0) {
+					GcActivity.forceGc(gcSettleMillis);
+				}
+				runtimeStatsService.clearStats(kieBase1, statsType);
+				executeAll(kieBase1, commandsFactory, statsType, results1, endWarmupTime1, outputs, 0);
+				// [1] Rule runtime stats for kieBase2
+				if (forceGc && endWarmupTime <= 0) {
+					// not to charge the garbage of kieBase1 to kieBase2
+					GcActivity.forceGc(gcSettleMillis);
+				}
+				runtimeStatsService.clearStats(kieBase2, statsType);
+				executeAll(kieBase2, commandsFactory, statsType, results2, endWarmupTime, outputs, 1);
+			}
+
+			// clear stats
+			runtimeStatsService.unregisterAllSessions();
+			runtimeStatsService.clearAllStats();
+
+			if (endWarmupTime > 0) {
+				return;
+			}
+
+			// wait for the snapshots written by the background threads
+			if (results1.snapshot != null) {
+				results1.snapshot.finish();
+				results2.snapshot.finish();
+			}
+
+			// [2] Compare two stats
+			outputs.compareStats(0, 1, 2);
+
+			if (results1.fingerprints != null) {
+				// [3], [4] and [5] from the spill files without the limit of the facts
+				results1.fingerprints.finish();
+				results2.fingerprints.finish();
+				outputs.write(3, results1.fingerprints);
+				outputs.write(4, results2.fingerprints);
+				outputs.write(5, results1.fingerprints.compare(results2.fingerprints));
+				return;
+			}
+
+			// [3] Result facts inserted for kieBase1
+			outputs.write(3, facts1);
+
+			// [4] Result facts inserted for kieBase2
+			outputs.write(4, facts2);
+
+			// [5] Compare inserted facts
+			outputs.write(5, factsComparison(facts1, facts2));
+
+			facts1.clear();
+			facts2.clear();
+		} finally {
+			results1.release();
+			results2.release();
 		}
-		
-		// [3] Result facts inserted for kieBase1
+	}
+
+	/*
+	 * execute the KieBases by a single iteration of the CommandsFactory and
+	 * compare each with the first into [4 * i] to [4 * i + 3].
+	 * each execution inserts its own deep copy of the facts.
+	 */
+	private void compareVariants(List<KieBase> kieBases, CommandsFactory commandsFactory,
+			StatsType statsType, long endWarmupTime, Outputs outputs) {
+		for (int i=1; i<kieBases.size(); i++) {
+			for (int j=0; j<i; j++) {
+				if (isSameKieBase(kieBases.get(i), kieBases.get(j))) {
+					throw new IllegalArgumentException("KieBases[" + j + "] and [" + i + "] are the same KieBase");
+				}
+			}
+		}
+		boolean isWarmup = endWarmupTime > 0;
+		// by the worker threads of each KieBase at the same time if concurrent
+		int threads = concurrentExecution ? Math.max(executionThreads, 1) :
+			executionThreads > 1 ? executionThreads : 0;
+		List<ResultFacts> results = new ArrayList<ResultFacts>();
+		List<Execution> executions = new ArrayList<Execution>();
 		try {
-			StringWriter writer = new StringWriter();
-			mapper.writeValue(writer, facts1);
-			ret[3] = writer.toString();
-		} catch (Exception e) {
-			e.printStackTrace();
-			ret[3] = "{}";
+			String spillDir = isWarmup ? null : factFingerprintDir;
+			for (int i=0; i<kieBases.size(); i++) {
+				ResultFacts result = new ResultFacts(new ArrayList<Object>());
+				results.add(result);
+				if (spillDir != null) {
+					result.fingerprints = newFactFingerprints(spillDir);
+				}
+			}
+			if (forceGc && !isWarmup) {
+				GcActivity.forceGc(gcSettleMillis);
+			}
+			try {
+				// [4 * i] Rule runtime stats for kieBases[i]
+				for (int i=0; i<kieBases.size(); i++) {
+					runtimeStatsService.clearStats(kieBases.get(i), statsType);
+					executions.add(new Execution(kieBases.get(i), commandsFactory, statsType,
+							results.get(i), isWarmup, threads, true));
+				}
+				executeBatches(commandsFactory, endWarmupTime,
+						executions.toArray(new Execution[executions.size()]));
+			} finally {
+				// join all before the stats are cleared even if one failed
+				finishAll(executions);
+			}
+			for (int i=0; i<executions.size(); i++) {
+				executions.get(i).writeStats(outputs, i * 4);
+			}
+
+			// clear stats
+			runtimeStatsService.unregisterAllSessions();
+			runtimeStatsService.clearAllStats();
+
+			if (isWarmup) {
+				return;
+			}
+
+			ResultFacts baseline = results.get(0);
+			for (ResultFacts result : results) {
+				if (result.fingerprints != null) {
+					result.fingerprints.finish();
+				}
+			}
+			// [2] Result facts inserted for the baseline
+			outputs.write(2, baseline.fingerprints != null ? baseline.fingerprints : baseline.facts);
+			for (int i=1; i<kieBases.size(); i++) {
+				ResultFacts result = results.get(i);
+				// [4 * i + 1] Compare the stats with the baseline
+				outputs.compareStats(0, i * 4, i * 4 + 1);
+				// [4 * i + 2] and [4 * i + 3] Result facts and the comparison with the baseline
+				if (result.fingerprints != null) {
+					outputs.write(i * 4 + 2, result.fingerprints);
+					outputs.write(i * 4 + 3, baseline.fingerprints.compare(result.fingerprints));
+				} else {
+					outputs.write(i * 4 + 2, result.facts);
+					outputs.write(i * 4 + 3, factsComparison(baseline.facts, result.facts));
+				}
+			}
+		} finally {
+			for (ResultFacts result : results) {
+				result.release();
+			}
 		}
-		
-		// [4] Result facts inserted for kieBase2
+	}
+
+	/*
+	 * Destinations of the result facts of an execution.
+	 */
+	private static class ResultFacts {
+		// references of inserted objects up to maximumFactListSize
+		private final List<Object> facts;
+		private FactFingerprints fingerprints = null;
+		private WorkingMemorySnapshot snapshot = null;
+
+		private ResultFacts(List<Object> facts) {
+			this.facts = facts;
+		}
+
+		// the facts of the batch are collected into its own list if fingerprinted
+		private List<Object> newBatchFacts() {
+			return fingerprints != null ? new ArrayList<Object>() : facts;
+		}
+
+		// called after the batch is executed
+		private void addBatch(long number, List<Object> batchFacts, ExecutionResults executionResults) {
+			if (fingerprints != null) {
+				fingerprints.addBatch(number, fingerprints.serialize(batchFacts));
+			}
+			if (snapshot != null) {
+				snapshot.add(number, executionResults);
+			}
+		}
+
+		private void release() {
+			if (fingerprints != null) {
+				fingerprints.delete();
+			}
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
+
+	// the stats of the same KieBase can not be separated
+	private boolean isSameKieBase(KieBase kieBase1, KieBase kieBase2) {
+		return ((KnowledgeBaseImpl)kieBase1).getId().equals(((KnowledgeBaseImpl)kieBase2).getId());
+	}
+
+	/*
+	 * execute kieBase1 and kieBase2 by their own worker threads at the same time.
+	 * the body commands are taken by a single iteration of the CommandsFactory,
+	 * and each execution inserts its own deep copy of the facts.
+	 */
+	private void executeAllConcurrently(KieBase kieBase1, KieBase kieBase2,
+			CommandsFactory commandsFactory, StatsType statsType, long endWarmupTime,
+			Outputs outputs, ResultFacts results1, ResultFacts results2) {
+		boolean isWarmup = endWarmupTime > 0;
+		int threads = Math.max(executionThreads, 1);
+		Execution execution1 = new Execution(kieBase1, commandsFactory, statsType, results1, isWarmup, threads, true);
+		Execution execution2 = null;
 		try {
-			StringWriter writer = new StringWriter();
-			mapper.writeValue(writer, facts2);
-			ret[4] = writer.toString();
-		} catch (Exception e) {
-			e.printStackTrace();
-			ret[4] = "{}";
+			execution2 = new Execution(kieBase2, commandsFactory, statsType, results2, isWarmup, threads, true);
+			executeBatches(commandsFactory, endWarmupTime, execution1, execution2);
+		} finally {
+			// join both before the stats are cleared even if one failed
+			try {
+				if (execution2 != null) {
+					execution2.finish();
+				}
+			} finally {
+				execution1.finish();
+			}
 		}
-		
-		// [5] Compare inserted facts
+		execution1.writeStats(outputs, 0);
+		execution2.writeStats(outputs, 1);
+	}
+
+	private static void finishAll(List<Execution> executions) {
+		RuntimeException failure = null;
+		for (Execution execution : executions) {
+			try {
+				execution.finish();
+			} catch (RuntimeException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private synchronized ExecutorService getWorkerExecutor() {
+		if (workerExecutor == null) {
+			workerExecutor = Executors.newCachedThreadPool(
+					daemonThreadFactory("rules-execution-worker"));
+		}
+		return workerExecutor;
+	}
+
+	private static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	// execute all batches and write the stats into outputs[index]
+	private void executeAll(KieBase kieBase, CommandsFactory commandsFactory,
+			StatsType statsType, ResultFacts results, long endWarmupTime,
+			Outputs outputs, int index) {
+		Execution execution = new Execution(kieBase, commandsFactory, statsType, results,
+				endWarmupTime > 0, executionThreads > 1 ? executionThreads : 0, inputIsolation);
 		try {
-			ret[5] = compareFacts(facts1, facts2);
-		} catch (Exception e) {
-			e.printStackTrace();
-			ret[5] = "{}";
+			executeBatches(commandsFactory, endWarmupTime, execution);
+		} finally {
+			execution.finish();
 		}
-		
-		facts1.clear();
-		facts2.clear();
-		
-		return ret;
+		execution.writeStats(outputs, index);
 	}
 
-	private String executeAll(KieBase kieBase, CommandsFactory commandsFactory,
-			StatsType statsType, List<Object> facts, long endWarmupTime) {
+	// execute each body commands by all executions in the order
+	private void executeBatches(CommandsFactory commandsFactory, long endWarmupTime, Execution... executions) {
 		boolean isWarmup = endWarmupTime > 0;
 		ThreadPoolExecutor ex = null;
 		long i = 0;
@@ -178,113 +528,385 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 			if (isWarmup && System.currentTimeMillis() > endWarmupTime) {
 				break;
 			}
-			List<Command<?>> commands = new ArrayList<Command<?>>();
-			for (Command<?> cmd : commandsFactory.getStaticFirstCommands()) {
-				commands.add(cmd);
-				// collect references of inserted objects
-				if (!isWarmup) {
-					if (cmd instanceof InsertObjectCommand) {
-						if (facts.size() < maximumFactListSize) {
-							facts.add(((InsertObjectCommand)cmd).getObject());
-						}
-					} else if (cmd instanceof InsertElementsCommand) {
-						for (Object o : ((InsertElementsCommand)cmd).getObjects()) {
-							if (maximumFactListSize <= facts.size()) {
-								break;
-							}
-							facts.add(o);
+			List<Command<?>> body = commandsIte.next();
+			for (Execution execution : executions) {
+				long start = System.nanoTime();
+				execution.execute(body);
+				if (executions.length > 1 && execution.sharded == null) {
+					// the batch executed by the calling thread is not charged to the other executions
+					long nanos = System.nanoTime() - start;
+					for (Execution other : executions) {
+						if (other != execution) {
+							other.exclude(nanos);
 						}
 					}
 				}
 			}
-			for (Command<?> cmd : commandsIte.next()) {
+			if (ex != null) {
+				long c = ex.getCompletedTaskCount();
+				long a = ex.getActiveCount();
+				if (i < c) {
+					logger.trace("Warming Up Jitting Threads: {} completed, {} active.", c, a);
+					i = c;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Execution of the batches of a KieBase.
+	 * The batches are executed by the calling thread, or by the worker threads if sharded.
+	 * The stateful sessions are reused by the batches if pooled.
+	 * finish() must be called after the batches even if failed.
+	 */
+	private class Execution {
+		private final KieBase kieBase;
+		private final CommandsFactory commandsFactory;
+		private final StatsType statsType;
+		private final ResultFacts results;
+		private final boolean isWarmup;
+		// deep copy the inserted objects of each batch
+		private final boolean isolated;
+		private final KieSessionPool pool;
+		private final ShardedExecution sharded;
+		private final GcActivity gc;
+		// the batches are timed into NOOP and RULE_CPU_TIME stats
+		private final RuleNoOpStats batchStats;
+		private long batchNumber = 0;
+
+		/**
+		 * @param threads number of the worker threads, or 0 to execute by the calling thread
+		 */
+		private Execution(KieBase kieBase, CommandsFactory commandsFactory, StatsType statsType,
+				ResultFacts results, boolean isWarmup, int threads, boolean isolated) {
+			this.kieBase = kieBase;
+			this.commandsFactory = commandsFactory;
+			this.statsType = statsType;
+			this.results = results;
+			this.isWarmup = isWarmup;
+			this.isolated = isolated;
+			batchStats = isWarmup ? null : runtimeStatsService.getStats(kieBase, statsType);
+			pool = pooledSessions ? new KieSessionPool(kieBase) : null;
+			sharded = threads > 0 ? new ShardedExecution(kieBase, statsType, threads, results, pool) : null;
+			gc = isWarmup ? null : GcActivity.start();
+		}
+
+		private void execute(List<Command<?>> body) {
+			// the facts of each batch are fingerprinted without the limit
+			List<Object> batchFacts = results.newBatchFacts();
+			int maxFacts = results.fingerprints != null ? Integer.MAX_VALUE : maximumFactListSize;
+			// the objects shared in the batch are copied once
+			DeepCloner cloner = isolated ? new DeepCloner() : null;
+			List<Command<?>> commands = new ArrayList<Command<?>>();
+			addCommands(commands, commandsFactory.getStaticFirstCommands(), cloner, batchFacts, maxFacts);
+			addCommands(commands, body, cloner, batchFacts, maxFacts);
+			addCommands(commands, commandsFactory.getStaticLastCommands(), cloner, batchFacts, maxFacts);
+			if (sharded != null) {
+				sharded.execute(commands, batchFacts);
+			} else if (pool != null) {
+				KieSession kieSession = pool.borrow(runtimeStatsService.getStats(kieBase, statsType));
+				try {
+					ExecutionResults executionResults =
+							executeBatch(kieSession, commands, statsType, batchStats, results.snapshot != null);
+					addBatch(batchFacts, executionResults);
+				} finally {
+					pool.release(kieSession);
+				}
+			} else {
+				StatelessKieSession kieSession = kieBase.newStatelessKieSession();
+				runtimeStatsService.registerSession(kieSession, statsType);
+				ExecutionResults executionResults =
+						executeBatch(kieSession, commands, statsType, batchStats, results.snapshot != null);
+				// the facts are serialized after the rules modified them
+				addBatch(batchFacts, executionResults);
+			}
+		}
+
+		// the facts are fingerprinted and the snapshot is queued out of the clock of the batches
+		private void addBatch(List<Object> batchFacts, ExecutionResults executionResults) {
+			long start = System.nanoTime();
+			results.addBatch(batchNumber++, batchFacts, executionResults);
+			if (batchStats != null) {
+				batchStats.exclude(System.nanoTime() - start);
+			}
+		}
+
+		private void addCommands(List<Command<?>> commands, List<Command<?>> source,
+				DeepCloner cloner, List<Object> batchFacts, int maxFacts) {
+			for (Command<?> cmd : source) {
+				cmd = cloner != null ? cloner.copyCommand(cmd) : cmd;
 				commands.add(cmd);
-				// collect references of inserted objects
 				if (!isWarmup) {
-					if (cmd instanceof InsertObjectCommand) {
-						if (facts.size() < maximumFactListSize) {
-							facts.add(((InsertObjectCommand)cmd).getObject());
-						}
-					} else if (cmd instanceof InsertElementsCommand) {
-						for (Object o : ((InsertElementsCommand)cmd).getObjects()) {
-							if (maximumFactListSize <= facts.size()) {
-								break;
-							}
-							facts.add(o);
-						}
+					collectFacts(cmd, batchFacts, maxFacts);
+				}
+			}
+		}
+
+		// exclude the work of another execution on the calling thread from the clock of the batches
+		private void exclude(long nanos) {
+			if (batchStats != null && sharded == null) {
+				batchStats.exclude(nanos);
+			}
+		}
+
+		// wait for the workers and release the sessions
+		private void finish() {
+			try {
+				if (sharded != null) {
+					// the stats of each worker are stopped at its batches
+					sharded.finish();
+				} else if (batchStats != null) {
+					batchStats.stop();
+				}
+			} finally {
+				if (gc != null) {
+					gc.stop();
+				}
+				if (pool != null) {
+					pool.dispose();
+				}
+			}
+		}
+
+		// write the stats into outputs[index] unless warming up
+		private void writeStats(Outputs outputs, int index) {
+			if (isWarmup) {
+				return;
+			}
+			runtimeStatsService.getStats(kieBase, statsType).setGc(gc);
+			JsonGenerator generator = null;
+			try {
+				generator = outputs.createGenerator(index);
+				runtimeStatsService.writeStats(mapper, generator, kieBase, statsType);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				closeQuietly(generator);
+			}
+		}
+	}
+
+	/*
+	 * execute a batch. the duration of the batch is recorded into NOOP stats,
+	 * and the fireAllRules commands are timed by RULE_CPU_TIME stats.
+	 * a fireAllRules command is appended for the stateful session
+	 * as the stateless session fires all rules after the batch without it.
+	 * the snapshot of the working memory is taken by the last command after the rules are fired.
+	 */
+	private ExecutionResults executeBatch(CommandExecutor kieSession, List<Command<?>> commands,
+			StatsType statsType, RuleNoOpStats stats, boolean snapshot) {
+		if (snapshot && kieSession instanceof StatelessKieSession &&
+				(commands.isEmpty() || !(commands.get(commands.size() - 1) instanceof FireAllRulesCommand))) {
+			// the stateless session would fire the rest of the rules after the snapshot
+			commands = new ArrayList<Command<?>>(commands);
+			commands.add(kcommands.newFireAllRules());
+		}
+		if (stats != null && statsType == StatsType.RULE_CPU_TIME) {
+			commands = ((RuleCpuTimeStats)stats).timeFireAllRules(commands);
+		} else if (kieSession instanceof KieSession && !hasFireAllRules(commands)) {
+			commands = new ArrayList<Command<?>>(commands);
+			commands.add(kcommands.newFireAllRules());
+		}
+		if (snapshot) {
+			// the objects in the working memory after all commands
+			commands = new ArrayList<Command<?>>(commands);
+			commands.add(kcommands.newGetObjects(WorkingMemorySnapshot.OBJECTS_IDENTIFIER));
+		}
+		long start = System.nanoTime();
+		ExecutionResults executionResults = kieSession.execute(kcommands.newBatchExecution(commands));
+		if (stats != null && statsType == StatsType.NOOP) {
+			stats.recordBatch(System.nanoTime() - start);
+		}
+		return executionResults;
+	}
+
+	private static boolean hasFireAllRules(List<Command<?>> commands) {
+		for (Command<?> command : commands) {
+			if (command instanceof FireAllRulesCommand) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// collect references of inserted objects
+	private static void collectFacts(Command<?> cmd, List<Object> facts, int maxFacts) {
+		if (cmd instanceof InsertObjectCommand) {
+			if (facts.size() < maxFacts) {
+				facts.add(((InsertObjectCommand)cmd).getObject());
+			}
+		} else if (cmd instanceof InsertElementsCommand) {
+			for (Object o : ((InsertElementsCommand)cmd).getObjects()) {
+				if (maxFacts <= facts.size()) {
+					break;
+				}
+				facts.add(o);
+			}
+		}
+	}
+
+	/*
+	 * Executes batches by worker threads, each collecting into its own stats.
+	 * The stats are merged into the stats of the service by finish()
+	 * in the order of the last batch executed by each worker.
+	 */
+	private class ShardedExecution {
+		private final KieBase kieBase;
+		private final StatsType statsType;
+		private final ResultFacts results;
+		private final KieSessionPool pool;
+		private final BlockingQueue<Batch> queue;
+		private final Worker[] workers;
+		private final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		private long batchNumber = 0;
+
+		private ShardedExecution(KieBase kieBase, StatsType statsType, int threads,
+				ResultFacts results, KieSessionPool pool) {
+			this.kieBase = kieBase;
+			this.statsType = statsType;
+			this.results = results;
+			this.pool = pool;
+			queue = new ArrayBlockingQueue<Batch>(threads * 2);
+			workers = new Worker[threads];
+			for (int i=0; i<threads; i++) {
+				workers[i] = new Worker(runtimeStatsService.createStats(kieBase, statsType));
+				futures.add(getWorkerExecutor().submit(workers[i]));
+			}
+		}
+
+		private void execute(List<Command<?>> commands, List<Object> facts) {
+			put(new Batch(batchNumber++, commands, facts));
+		}
+
+		private void finish() {
+			try {
+				mergeWorkers();
+			} finally {
+				// the stats of the workers are discarded after merged
+				for (Worker worker : workers) {
+					worker.stats.dispose();
+				}
+			}
+		}
+
+		private void mergeWorkers() {
+			for (int i=0; i<workers.length; i++) {
+				put(Batch.END);
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("interrupted while executing the rules", e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException)e.getCause();
 					}
+					throw new IllegalStateException(e.getCause());
 				}
 			}
-			for (Command<?> cmd : commandsFactory.getStaticLastCommands()) {
-				commands.add(cmd);
-				// collect references of inserted objects
-				if (!isWarmup) {
-					if (cmd instanceof InsertObjectCommand) {
-						if (facts.size() < maximumFactListSize) {
-							facts.add(((InsertObjectCommand)cmd).getObject());
-						}
-					} else if (cmd instanceof InsertElementsCommand) {
-						for (Object o : ((InsertElementsCommand)cmd).getObjects()) {
-							if (maximumFactListSize <= facts.size()) {
-								break;
+			Worker[] sorted = workers.clone();
+			Arrays.sort(sorted, new Comparator<Worker>() {
+				@Override
+				public int compare(Worker o1, Worker o2) {
+					return Long.compare(o1.lastBatchNumber, o2.lastBatchNumber);
+				}
+			});
+			RuleRuntimeStats stats = runtimeStatsService.getStats(kieBase, statsType);
+			for (Worker worker : sorted) {
+				if (worker.lastBatchNumber >= 0) {
+					stats.merge(worker.stats);
+				}
+			}
+		}
+
+		private void put(Batch batch) {
+			try {
+				queue.put(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while executing the rules", e);
+			}
+		}
+
+		private class Worker implements Callable<Void> {
+			private final RuleNoOpStats stats;
+			private long lastBatchNumber = -1;
+
+			private Worker(RuleNoOpStats stats) {
+				this.stats = stats;
+			}
+
+			@Override
+			public Void call() throws Exception {
+				RuntimeException failure = null;
+				while (true) {
+					Batch batch = queue.take();
+					if (batch == Batch.END) {
+						break;
+					}
+					// keep taking batches not to block the dispatcher
+					if (failure != null) {
+						continue;
+					}
+					try {
+						ExecutionResults executionResults;
+						if (pool != null) {
+							KieSession kieSession = pool.borrow(stats);
+							try {
+								executionResults = executeBatch(kieSession, batch.commands, statsType, stats, results.snapshot != null);
+							} finally {
+								pool.release(kieSession);
 							}
-							facts.add(o);
+						} else {
+							StatelessKieSession kieSession = kieBase.newStatelessKieSession();
+							stats.registerSession(kieSession);
+							executionResults = executeBatch(kieSession, batch.commands, statsType, stats, results.snapshot != null);
 						}
+						// the merged stats stop at the end of the last batch of the workers
+						stats.stop();
+						lastBatchNumber = batch.number;
+						results.addBatch(batch.number, batch.facts, executionResults);
+					} catch (RuntimeException e) {
+						failure = e;
 					}
 				}
-			}
-			StatelessKieSession kieSession = kieBase.newStatelessKieSession();
-			runtimeStatsService.registerSession(kieSession, statsType);
-			kieSession.execute(kcommands.newBatchExecution(commands));
-			if (ex != null) {
-				long c = ex.getCompletedTaskCount();
-				long a = ex.getActiveCount();
-				if (i < c) {
-					logger.trace("Warming Up Jitting Threads: {} completed, {} active.", c, a);
-					i = c;
+				if (failure != null) {
+					throw failure;
 				}
+				return null;
 			}
 		}
-		if (isWarmup) {
-			return null;
+	}
+
+	// commands of a body with the sequential number and the facts to be fingerprinted
+	private static class Batch {
+		// the workers stop at the END
+		private static final Batch END = new Batch(-1, null, null);
+		private final long number;
+		private final List<Command<?>> commands;
+		private final List<Object> facts;
+
+		private Batch(long number, List<Command<?>> commands, List<Object> facts) {
+			this.number = number;
+			this.commands = commands;
+			this.facts = facts;
 		}
-		StringWriter writer = new StringWriter();
-		runtimeStatsService.writeStats(mapper, writer, kieBase, statsType);
-		return writer.toString();
 	}
 
 	@Override
 	public String compareStats(String stats1, String stats2) {
-		LinkedHashMap<String, Object> retMap = new LinkedHashMap<String, Object>();
-		Map<String, Object> map1, map2;
-		try {
-			map1 = mapper.readValue(stats1,
-					new TypeReference<LinkedHashMap<String, Object>>() {});
-			map2 = mapper.readValue(stats2,
-					new TypeReference<LinkedHashMap<String, Object>>() {});
-			for (String key : map1.keySet()) {
-				if (key.equals("notExecutedRules")) {
-					// String list
-					@SuppressWarnings("unchecked")
-					Collection<Object> list1 = (Collection<Object>)(map1.get(key));
-					@SuppressWarnings("unchecked")
-					Collection<Object> list2 = (Collection<Object>)(map2.get(key));
-					if (!list1.equals(list2)) {
-						retMap.put(key, new DiffList(list1, list2));
-					} else {
-						retMap.put(key, SAME_ARRAY);
-					}
-				} else {
-					retMap.put(key, compareObj(map1.get(key), map2.get(key)));
-				}
-			}
-			StringWriter writer = new StringWriter();
-			mapper.writeValue(writer, retMap);
-			return writer.toString();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return "{}";
+		StringOutputs outputs = new StringOutputs();
+		outputs.strings[0] = stats1;
+		outputs.strings[1] = stats2;
+		outputs.compareStats(0, 1, 2);
+		return outputs.strings[2];
+	}
+
+	@Override
+	public void compareStats(File stats1, File stats2, File output) {
+		new FileOutputs(new File[] { stats1, stats2, output }).compareStats(0, 1, 2);
 	}
 	
 	@Override
@@ -305,6 +927,21 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 		return "{}";
 	}
 	
+	@Override
+	public void compareFacts(File facts1, File facts2, File output) {
+		FileOutputs outputs = new FileOutputs(new File[] { null, null, null, facts1, facts2, output });
+		try {
+			ArrayList<Object> list1 = mapper.readValue(facts1,
+					new TypeReference<ArrayList<Object>>() {});
+			ArrayList<Object> list2 = mapper.readValue(facts2,
+					new TypeReference<ArrayList<Object>>() {});
+			outputs.write(5, new DiffList(list1, list2));
+		} catch (IOException e) {
+			e.printStackTrace();
+			outputs.writeEmpty(5);
+		}
+	}
+	
 	private String compareFacts(ArrayList<Object> facts1, ArrayList<Object> facts2) {
 		try {
 			Object facts_diff = new DiffList(facts1, facts2);
@@ -318,7 +955,7 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 	}
 
 
-	private static Object compareObj(Object obj1, Object obj2) {
+	static Object compareObj(Object obj1, Object obj2) {
 		if (obj1 == null || obj2 == null) {
 			if (obj1 == obj2)
 				return getSameObj(obj1);
@@ -399,6 +1036,118 @@ public class RuleRuntimeCompareServiceBean implements RuleRuntimeCompareService
 		}
 	}
 	
+	private static void closeQuietly(JsonGenerator generator) {
+		if (generator == null) return;
+		try {
+			generator.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Destinations of [0] to [5] of compareExecution().
+	 */
+	private static abstract class Outputs {
+		abstract JsonGenerator createGenerator(int index) throws IOException;
+
+		abstract JsonParser createParser(int index) throws IOException;
+
+		// compare the stats of [index1] and [index2] into [output]. "{}" is written if failed.
+		void compareStats(int index1, int index2, int output) {
+			JsonGenerator generator = null;
+			try {
+				generator = createGenerator(output);
+				new StreamingJsonComparator(mapper).compare(
+						source(index1), source(index2), generator);
+			} catch (Exception e) {
+				e.printStackTrace();
+				closeQuietly(generator);
+				generator = null;
+				writeEmpty(output);
+			} finally {
+				closeQuietly(generator);
+			}
+		}
+
+		private StreamingJsonComparator.Source source(final int index) {
+			return new StreamingJsonComparator.Source() {
+				@Override
+				public JsonParser open() throws IOException {
+					return createParser(index);
+				}
+			};
+		}
+
+		// write the value into [index]. "{}" is written if failed.
+		void write(int index, Object value) {
+			JsonGenerator generator = null;
+			try {
+				generator = createGenerator(index);
+				mapper.writeValue(generator, value);
+			} catch (Exception e) {
+				e.printStackTrace();
+				closeQuietly(generator);
+				generator = null;
+				writeEmpty(index);
+			} finally {
+				closeQuietly(generator);
+			}
+		}
+
+		void writeEmpty(int index) {
+			JsonGenerator generator = null;
+			try {
+				generator = createGenerator(index);
+				generator.writeRaw("{}");
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				closeQuietly(generator);
+			}
+		}
+	}
+
+	// results in Strings
+	private static class StringOutputs extends Outputs {
+		private final String[] strings = new String[6];
+
+		@Override
+		JsonGenerator createGenerator(final int index) throws IOException {
+			StringWriter writer = new StringWriter() {
+				@Override
+				public void close() throws IOException {
+					strings[index] = toString();
+				}
+			};
+			return mapper.getFactory().createGenerator(writer);
+		}
+
+		@Override
+		JsonParser createParser(int index) throws IOException {
+			return mapper.getFactory().createParser(strings[index]);
+		}
+	}
+
+	// results in files written through the buffer of the JsonGenerator
+	private static class FileOutputs extends Outputs {
+		private final File[] files;
+
+		private FileOutputs(File[] files) {
+			this.files = files;
+		}
+
+		@Override
+		JsonGenerator createGenerator(int index) throws IOException {
+			return mapper.getFactory().createGenerator(files[index], JsonEncoding.UTF8);
+		}
+
+		@Override
+		JsonParser createParser(int index) throws IOException {
+			return mapper.getFactory().createParser(files[index]);
+		}
+	}
+
 	/*
 	 * 
 	 */
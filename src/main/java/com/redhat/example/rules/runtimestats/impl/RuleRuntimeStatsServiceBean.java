@@ -16,6 +16,7 @@
 
 package com.redhat.example.rules.runtimestats.impl;
 
+import java.io.File;
 import java.io.Writer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,6 +27,7 @@ import org.kie.api.event.KieRuntimeEventManager;
 import org.kie.api.runtime.KieSession;
 import org.kie.api.runtime.StatelessKieSession;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStats;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService;
@@ -38,9 +40,41 @@ import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService;
 public class RuleRuntimeStatsServiceBean
 implements RuleRuntimeStatsService
 {
-	private Map<String, Map<StatsType, RuleRuntimeStats>> kieBaseToStatsMap =
-			new ConcurrentHashMap<String, Map<StatsType, RuleRuntimeStats>>();
+	private Map<String, Map<StatsType, RuleNoOpStats>> kieBaseToStatsMap =
+			new ConcurrentHashMap<String, Map<StatsType, RuleNoOpStats>>();
 	
+	private volatile boolean ruleIndexed = false;
+	private volatile File sequenceSpillDir = null;
+	private volatile long sequenceSpillThreshold = 0;
+
+	@Override
+	public void setRuleIndexed(boolean ruleIndexed) {
+		if (this.ruleIndexed == ruleIndexed) return;
+		this.ruleIndexed = ruleIndexed;
+		// discard the stats to be created again with the new setting
+		for (Map<StatsType, RuleNoOpStats> statsMap : kieBaseToStatsMap.values()) {
+			for (StatsType statsType : new StatsType[] { EXECUTION_COUNT, ACTIVATION }) {
+				RuleNoOpStats stats = statsMap.remove(statsType);
+				if (stats != null) {
+					stats.unregisterAllSessions();
+					stats.dispose();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void setSequenceSpill(String spillDir, long threshold) {
+		sequenceSpillDir = spillDir == null ? null : new File(spillDir);
+		sequenceSpillThreshold = threshold;
+		for (Map<StatsType, RuleNoOpStats> statsMap : kieBaseToStatsMap.values()) {
+			RuleRuntimeStats stats = statsMap.get(EXECUTION_SEQUENCE);
+			if (stats != null) {
+				((RuleExecutionSequenceStats)stats).setSpill(sequenceSpillDir, sequenceSpillThreshold);
+			}
+		}
+	}
+
 	@Override
 	public void registerSession(KieRuntimeEventManager session, StatsType statsType) {
 		if (session == null) return;
@@ -48,27 +82,59 @@ implements RuleRuntimeStatsService
 		KieBase kieBase = getKieBase(session);
 		String kieBaseID = getKieBaseID(kieBase);
 		if (kieBaseID == null) return;
-		Map<StatsType, RuleRuntimeStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
+		RuleRuntimeStats stats = getStats(kieBase, statsType);
+		stats.registerSession(session);
+	}
+	
+	/**
+	 * get the stats of the KieBase. the stats is created if not exists.
+	 * @param kieBase
+	 * @param statsType
+	 * @return the stats
+	 */
+	RuleNoOpStats getStats(KieBase kieBase, StatsType statsType) {
+		String kieBaseID = getKieBaseID(kieBase);
+		Map<StatsType, RuleNoOpStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
 		if (statsMap == null) {
-			statsMap = new ConcurrentHashMap<StatsType, RuleRuntimeStats>();
+			statsMap = new ConcurrentHashMap<StatsType, RuleNoOpStats>();
 			kieBaseToStatsMap.put(kieBaseID, statsMap);
 		}
-		RuleRuntimeStats stats = statsMap.get(statsType);
+		RuleNoOpStats stats = statsMap.get(statsType);
 		if (stats == null) {
-			if (statsType == EXECUTION_COUNT) {
-				stats = new RuleExecutionStats(kieBase);
-			} else if (statsType == ACTIVATION) {
-				stats = new RuleActivationStats(kieBase);
-			} else if (statsType == EXECUTION_SEQUENCE) {
-				stats = new RuleExecutionSequenceStats(kieBase);
-			} else if (statsType == NOOP) {
-				stats = new RuleNoOpStats(kieBase);
-			}
+			stats = createStats(kieBase, statsType);
 			statsMap.put(statsType, stats);
 		}
-		stats.registerSession(session);
+		return stats;
 	}
-	
+
+	/**
+	 * create new stats of the KieBase with the current settings.<BR>
+	 * the stats is not managed by this service.
+	 * @param kieBase
+	 * @param statsType
+	 * @return new stats
+	 */
+	RuleNoOpStats createStats(KieBase kieBase, StatsType statsType) {
+		RuleNoOpStats stats = null;
+		if (statsType == EXECUTION_COUNT) {
+			stats = new RuleExecutionStats(kieBase, ruleIndexed);
+		} else if (statsType == ACTIVATION) {
+			stats = new RuleActivationStats(kieBase, ruleIndexed);
+		} else if (statsType == EXECUTION_SEQUENCE) {
+			stats = new RuleExecutionSequenceStats(kieBase);
+			((RuleExecutionSequenceStats)stats).setSpill(sequenceSpillDir, sequenceSpillThreshold);
+		} else if (statsType == RULE_LATENCY) {
+			stats = new RuleLatencyStats(kieBase);
+		} else if (statsType == RULE_ALLOCATION) {
+			stats = new RuleAllocationStats(kieBase);
+		} else if (statsType == RULE_CPU_TIME) {
+			stats = new RuleCpuTimeStats(kieBase);
+		} else if (statsType == NOOP) {
+			stats = new RuleNoOpStats(kieBase);
+		}
+		return stats;
+	}
+
 	@Override
 	public void unregisterSession(KieRuntimeEventManager session, StatsType statsType) {
 		if (session == null) return;
@@ -76,7 +142,7 @@ implements RuleRuntimeStatsService
 		KieBase kieBase = getKieBase(session);
 		String kieBaseID = getKieBaseID(kieBase);
 		if (kieBaseID == null) return;
-		Map<StatsType, RuleRuntimeStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
+		Map<StatsType, RuleNoOpStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
 		if (statsMap == null) return;
 		RuleRuntimeStats stats = statsMap.get(statsType);
 		if (stats != null)
@@ -87,19 +153,30 @@ implements RuleRuntimeStatsService
 	public void writeStats(ObjectMapper mapper, Writer writer, KieBase kieBase, StatsType statsType) {
 		String kieBaseID = getKieBaseID(kieBase);
 		if (kieBaseID == null) return;
-		Map<StatsType, RuleRuntimeStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
+		Map<StatsType, RuleNoOpStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
 		if (statsMap == null) return;
 		RuleRuntimeStats stats = statsMap.get(statsType);
 		if (stats == null) return;
 		stats.writeStats(mapper, writer);
 	}
 
+	@Override
+	public void writeStats(ObjectMapper mapper, JsonGenerator generator, KieBase kieBase, StatsType statsType) {
+		String kieBaseID = getKieBaseID(kieBase);
+		if (kieBaseID == null) return;
+		Map<StatsType, RuleNoOpStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
+		if (statsMap == null) return;
+		RuleRuntimeStats stats = statsMap.get(statsType);
+		if (stats == null) return;
+		stats.writeStats(mapper, generator);
+	}
+
 	@Override
 	public void clearStats(KieBase kieBase, StatsType statsType) {
 		String kieBaseID = getKieBaseID(kieBase);
 		if (kieBaseID == null) return;
 		if (statsType == null) return;
-		Map<StatsType, RuleRuntimeStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
+		Map<StatsType, RuleNoOpStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
 		if (statsMap == null) return;
 		RuleRuntimeStats stats = statsMap.get(statsType);
 		if (stats == null) return;
@@ -108,7 +185,7 @@ implements RuleRuntimeStatsService
 	
 	@Override
 	public void clearAllStats() {
-		for (Map<StatsType, RuleRuntimeStats> statsMap : kieBaseToStatsMap.values()) {
+		for (Map<StatsType, RuleNoOpStats> statsMap : kieBaseToStatsMap.values()) {
 			for (RuleRuntimeStats stats : statsMap.values()) {
 				stats.clearStats();
 			}
@@ -117,7 +194,7 @@ implements RuleRuntimeStatsService
 
 	@Override
 	public void clearAllStats(StatsType statsType) {
-		for (Map<StatsType, RuleRuntimeStats> statsMap : kieBaseToStatsMap.values()) {
+		for (Map<StatsType, RuleNoOpStats> statsMap : kieBaseToStatsMap.values()) {
 			RuleRuntimeStats stats = statsMap.get(statsType);
 			if (stats != null) {
 				stats.clearStats();
@@ -129,7 +206,7 @@ implements RuleRuntimeStatsService
 	public void clearAllStats(KieBase kieBase) {
 		String kieBaseID = getKieBaseID(kieBase);
 		if (kieBaseID == null) return;
-		Map<StatsType, RuleRuntimeStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
+		Map<StatsType, RuleNoOpStats> statsMap = kieBaseToStatsMap.get(kieBaseID);
 		if (statsMap == null) return;
 		for (RuleRuntimeStats stats : statsMap.values()) {
 			stats.clearStats();
@@ -139,7 +216,7 @@ implements RuleRuntimeStatsService
 	@Override
 	public void unregisterAllSessions(StatsType statsType) {
 		if (statsType == null) return;
-		for (Map<StatsType, RuleRuntimeStats> statsMap : kieBaseToStatsMap.values()) {
+		for (Map<StatsType, RuleNoOpStats> statsMap : kieBaseToStatsMap.values()) {
 			RuleRuntimeStats stats = statsMap.get(statsType);
 			if (stats != null) {
 				stats.unregisterAllSessions();
@@ -149,7 +226,7 @@ implements RuleRuntimeStatsService
 
 	@Override
 	public void unregisterAllSessions() {
-		for (Map<StatsType, RuleRuntimeStats> statsMap : kieBaseToStatsMap.values()) {
+		for (Map<StatsType, RuleNoOpStats> statsMap : kieBaseToStatsMap.values()) {
 			for (RuleRuntimeStats stats : statsMap.values()) {
 				stats.unregisterAllSessions();
 			}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.kie.api.KieBase;
+import org.kie.api.definition.rule.Rule;
+
+/**
+ * Append only sequence of fired rules.<BR>
+ * Each rule is stored as the int id of {@link RuleIndex} in chunks of primitive arrays,
+ * char[] (2 bytes per entry) if the KieBase has less than 65535 rules, otherwise int[].
+ * The append path reserves the position by an AtomicLong, so it is safe for
+ * multi-threaded sessions without locks. Each chunk counts its written entries,
+ * and a chunk is complete when all entries are written.
+ * The rule names are decoded only by {@link #iterator()}.<BR>
+ * If the spill is set, the older complete chunks are moved to a memory-mapped file
+ * when the rules in the heap exceed the threshold. The incomplete chunks are spilled later.
+ *
+ * @author okuniyas
+ */
+public class RuleSequenceBuffer implements Iterable<String> {
+	static final int CHUNK_BITS = 13;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	// 0 means "not written yet", so id + 1 is stored
+	private static final int CHAR_OVERFLOW = Character.MAX_VALUE;
+	private static final int UNWRITTEN = -1;
+	// size of a mapped region of the spill file
+	static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+	private final RuleIndex ruleIndex;
+	private final boolean charEncoded;
+	// names of rules which are not in the RuleIndex
+	private final Map<String, Integer> extraNameToId = new ConcurrentHashMap<String, Integer>();
+	private final List<String> extraNames = new ArrayList<String>();
+	// ids which can not be encoded by char
+	private final Map<Long, Integer> overflowIds = new ConcurrentHashMap<Long, Integer>();
+
+	private final AtomicLong size = new AtomicLong();
+	private volatile AtomicReferenceArray<Object> chunks = new AtomicReferenceArray<Object>(16);
+
+	// spill to the file. chunks before spilledChunks are in the file.
+	private final Object spillLock = new Object();
+	private volatile long spillThreshold = 0;
+	private File spillDir = null;
+	private File spillFile = null;
+	private FileChannel spillChannel = null;
+	private MappedByteBuffer spillWindow = null;
+	private long spillWindowStart = -1;
+	private volatile int spilledChunks = 0;
+
+	public RuleSequenceBuffer(KieBase kieBase) {
+		ruleIndex = new RuleIndex(kieBase);
+		charEncoded = ruleIndex.size() < CHAR_OVERFLOW - 1;
+	}
+
+	/**
+	 * set the spill to the file
+	 * @param dir directory of the spill file
+	 * @param threshold number of rules kept in the heap. 0 or less disables the spill.
+	 */
+	public void setSpill(File dir, long threshold) {
+		synchronized (spillLock) {
+			spillDir = dir;
+			spillThreshold = dir == null ? 0 : threshold;
+			// the file is created again in the new dir, or kept until clear() if rules are in it
+			if (spilledChunks == 0 && !isSpillFileReusable()) {
+				closeSpillFile();
+			}
+		}
+	}
+
+	/**
+	 * number of rules in the spill file
+	 */
+	public long spilledSize() {
+		return (long)spilledChunks << CHUNK_BITS;
+	}
+
+	/**
+	 * append the rule
+	 * @param rule fired rule
+	 */
+	public void add(Rule rule) {
+		int id = ruleIndex.indexOf(rule);
+		if (id == RuleIndex.UNKNOWN) {
+			id = internExtraName(rule.getName());
+		}
+		addId(id);
+	}
+
+	/**
+	 * append all rules of the other buffer of the same KieBase
+	 * @param other
+	 */
+	public void appendAll(RuleSequenceBuffer other) {
+		IdIterator it = other.new IdIterator();
+		while (it.hasNext()) {
+			int otherId = it.nextId();
+			if (otherId == UNWRITTEN) {
+				continue;
+			}
+			int id = otherId < other.ruleIndex.size() ?
+					ruleIndex.indexOf(other.ruleIndex.getRule(otherId)) : RuleIndex.UNKNOWN;
+			if (id == RuleIndex.UNKNOWN) {
+				id = internExtraName(other.decode(otherId));
+			}
+			addId(id);
+		}
+	}
+
+	private void addId(int id) {
+		long position = size.getAndIncrement();
+		int chunkIndex = (int)(position >>> CHUNK_BITS);
+		int offset = (int)(position & CHUNK_MASK);
+		Chunk chunk = getChunk(chunkIndex);
+		if (charEncoded) {
+			if (id + 1 < CHAR_OVERFLOW) {
+				((char[])chunk.data)[offset] = (char)(id + 1);
+			} else {
+				overflowIds.put(position, id);
+				((char[])chunk.data)[offset] = (char)CHAR_OVERFLOW;
+			}
+		} else {
+			((int[])chunk.data)[offset] = id + 1;
+		}
+		// publish the entry, and spill after the chunk is complete
+		if (chunk.written.incrementAndGet() == CHUNK_SIZE && spillThreshold > 0) {
+			spill();
+		}
+	}
+
+	/**
+	 * number of appended rules
+	 */
+	public long size() {
+		return size.get();
+	}
+
+	/**
+	 * remove all rules. the first chunk and the spill file are kept to be reused,
+	 * the spill file is truncated.
+	 */
+	public void clear() {
+		synchronized (spillLock) {
+			synchronized (this) {
+				long used = size.get();
+				Chunk firstChunk = spilledChunks == 0 ? (Chunk)chunks.get(0) : null;
+				chunks = new AtomicReferenceArray<Object>(16);
+				if (firstChunk != null) {
+					int length = (int)Math.min(used, CHUNK_SIZE);
+					if (charEncoded) {
+						Arrays.fill((char[])firstChunk.data, 0, length, (char)0);
+					} else {
+						Arrays.fill((int[])firstChunk.data, 0, length, 0);
+					}
+					firstChunk.written.set(0);
+					chunks.set(0, firstChunk);
+				}
+				overflowIds.clear();
+				size.set(0);
+			}
+			if (isSpillFileReusable()) {
+				truncateSpillFile();
+			} else {
+				closeSpillFile();
+			}
+		}
+	}
+
+	/**
+	 * delete the spill file. the buffer can be used again, the file is created when spilled.
+	 */
+	public void dispose() {
+		synchronized (spillLock) {
+			closeSpillFile();
+		}
+	}
+
+	/**
+	 * iterate the names of the appended rules
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		final IdIterator it = new IdIterator();
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public String next() {
+				int id = it.nextId();
+				// the position reserved by a session which is still writing
+				return id == UNWRITTEN ? "" : decode(id);
+			}
+		};
+	}
+
+	// iterate the ids of the appended rules
+	private class IdIterator {
+		private final long end = size.get();
+		private long position = 0;
+		private ByteBuffer window = null;
+		private long windowStart = -1;
+		private AtomicReferenceArray<Object> iteratedChunks = chunks;
+
+		private boolean hasNext() {
+			return position < end;
+		}
+
+		private int nextId() {
+			if (!hasNext()) throw new NoSuchElementException();
+			long p = position++;
+			int chunkIndex = (int)(p >>> CHUNK_BITS);
+			Chunk chunk = chunkOf(chunkIndex);
+			int offset = (int)(p & CHUNK_MASK);
+			int stored;
+			if (chunkIndex < spilledChunks) {
+				stored = readSpilled(p);
+			} else if (chunk == null) {
+				stored = 0;
+			} else {
+				// the entries of an incomplete chunk are read as written or not written yet
+				chunk.written.get();
+				stored = charEncoded ? ((char[])chunk.data)[offset] : ((int[])chunk.data)[offset];
+			}
+			if (charEncoded && stored == CHAR_OVERFLOW) {
+				Integer id = overflowIds.get(p);
+				return id == null ? UNWRITTEN : id;
+			}
+			return stored - 1;
+		}
+
+		// the size counts the reserved positions, so the chunk may not be allocated yet
+		private Chunk chunkOf(int chunkIndex) {
+			AtomicReferenceArray<Object> current = iteratedChunks;
+			Chunk chunk = chunkIndex < current.length() ? (Chunk)current.get(chunkIndex) : null;
+			if (chunk == null) {
+				// the directory may have been grown
+				synchronized (RuleSequenceBuffer.this) {
+					current = chunks;
+				}
+				iteratedChunks = current;
+				chunk = chunkIndex < current.length() ? (Chunk)current.get(chunkIndex) : null;
+			}
+			return chunk;
+		}
+
+		// read the rule from the spill file through the mapped region
+		private int readSpilled(long p) {
+			long byteOffset = p * entryBytes();
+			long start = byteOffset - byteOffset % WINDOW_BYTES;
+			if (start != windowStart) {
+				window = mapSpillFile(start);
+				windowStart = start;
+			}
+			int offsetInWindow = (int)(byteOffset - start);
+			return charEncoded ? window.getChar(offsetInWindow) : window.getInt(offsetInWindow);
+		}
+	}
+
+	private int entryBytes() {
+		return charEncoded ? 2 : 4;
+	}
+
+	/*
+	 * move the complete chunks to the spill file in order, keeping the last chunk in the heap.
+	 * a chunk still written by other sessions is not waited for,
+	 * it is spilled by the session which completes it.
+	 */
+	private void spill() {
+		synchronized (spillLock) {
+			long threshold = spillThreshold;
+			int chunkIndex = (int)((size.get() - 1) >>> CHUNK_BITS);
+			while (threshold > 0 && spilledChunks < chunkIndex - 1 &&
+					((long)(chunkIndex - spilledChunks) << CHUNK_BITS) > threshold) {
+				int index = spilledChunks;
+				Chunk chunk = getChunk(index);
+				if (chunk.written.get() < CHUNK_SIZE) {
+					return;
+				}
+				try {
+					writeSpillFile(index, chunk.data);
+				} catch (IOException e) {
+					e.printStackTrace();
+					spillThreshold = 0;
+					return;
+				}
+				spilledChunks = index + 1;
+				synchronized (this) {
+					chunks.set(index, null);
+				}
+			}
+		}
+	}
+
+	private void writeSpillFile(int index, Object chunk) throws IOException {
+		if (spillChannel == null) {
+			spillFile = File.createTempFile("execution_sequence_", ".seq", spillDir);
+			spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+		}
+		long byteOffset = ((long)index << CHUNK_BITS) * entryBytes();
+		long start = byteOffset - byteOffset % WINDOW_BYTES;
+		if (start != spillWindowStart) {
+			spillWindow = spillChannel.map(FileChannel.MapMode.READ_WRITE, start, WINDOW_BYTES);
+			spillWindowStart = start;
+		}
+		ByteBuffer buffer = spillWindow.duplicate();
+		buffer.position((int)(byteOffset - start));
+		if (charEncoded) {
+			buffer.asCharBuffer().put((char[])chunk);
+		} else {
+			buffer.asIntBuffer().put((int[])chunk);
+		}
+	}
+
+	private ByteBuffer mapSpillFile(long start) {
+		synchronized (spillLock) {
+			if (start == spillWindowStart) {
+				return spillWindow.duplicate();
+			}
+			try {
+				return spillChannel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(WINDOW_BYTES, spillChannel.size() - start));
+			} catch (IOException e) {
+				throw new IllegalStateException("can not read the spill file " + spillFile, e);
+			}
+		}
+	}
+
+	private boolean isSpillFileReusable() {
+		return spillChannel != null && spillThreshold > 0 &&
+				spillFile.getAbsoluteFile().getParentFile().equals(spillDir.getAbsoluteFile());
+	}
+
+	// drop the mapped windows and empty the file. the windows are mapped again when spilled.
+	private void truncateSpillFile() {
+		spilledChunks = 0;
+		spillWindow = null;
+		spillWindowStart = -1;
+		try {
+			spillChannel.truncate(0);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeSpillFile();
+		}
+	}
+
+	private void closeSpillFile() {
+		spilledChunks = 0;
+		spillWindow = null;
+		spillWindowStart = -1;
+		if (spillChannel != null) {
+			try {
+				spillChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			spillChannel = null;
+			spillFile.delete();
+			spillFile = null;
+		}
+	}
+
+	private String decode(int id) {
+		if (id < ruleIndex.size()) {
+			return ruleIndex.getRule(id).getName();
+		}
+		synchronized (extraNames) {
+			return extraNames.get(id - ruleIndex.size());
+		}
+	}
+
+	private int internExtraName(String name) {
+		Integer id = extraNameToId.get(name);
+		if (id != null) {
+			return id;
+		}
+		synchronized (extraNames) {
+			id = extraNameToId.get(name);
+			if (id == null) {
+				id = ruleIndex.size() + extraNames.size();
+				extraNames.add(name);
+				extraNameToId.put(name, id);
+			}
+			return id;
+		}
+	}
+
+	private Chunk getChunk(int index) {
+		AtomicReferenceArray<Object> current = chunks;
+		if (index < current.length()) {
+			Chunk chunk = (Chunk)current.get(index);
+			if (chunk != null) {
+				return chunk;
+			}
+		}
+		return allocateChunk(index);
+	}
+
+	// chunks are allocated and the directory is replaced only in this lock
+	private synchronized Chunk allocateChunk(int index) {
+		AtomicReferenceArray<Object> current = chunks;
+		if (index >= current.length()) {
+			int length = current.length();
+			while (length <= index) {
+				length *= 2;
+			}
+			AtomicReferenceArray<Object> grown = new AtomicReferenceArray<Object>(length);
+			for (int i=0; i<current.length(); i++) {
+				grown.set(i, current.get(i));
+			}
+			chunks = grown;
+			current = grown;
+		}
+		Chunk chunk = (Chunk)current.get(index);
+		if (chunk == null) {
+			chunk = new Chunk(charEncoded ? new char[CHUNK_SIZE] : new int[CHUNK_SIZE]);
+			current.set(index, chunk);
+		}
+		return chunk;
+	}
+
+	// entries and the count of the written entries, which publishes them to the other threads
+	private static class Chunk {
+		private final Object data;
+		private final AtomicInteger written = new AtomicInteger();
+
+		private Chunk(Object data) {
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService;
+
+/**
+ * Compares two JSON documents token by token and writes the
+ * "= "/"! " comparison through a JsonGenerator.<BR>
+ * The first pass walks both documents in lockstep and records whether each
+ * pair of objects or arrays is equal, the second pass writes the comparison,
+ * so the documents are never loaded as a whole. Only the rest of an object
+ * whose keys are not in the same order is read into a Map.
+ *
+ * @author okuniyas
+ */
+class StreamingJsonComparator {
+
+	/**
+	 * reopens the same JSON document for each pass
+	 */
+	interface Source {
+		JsonParser open() throws IOException;
+	}
+
+	private final ObjectMapper mapper;
+
+	// equality of object/array pairs numbered in the order the second pass visits them
+	private final BitSet equals = new BitSet();
+	private int nextId;
+
+	StreamingJsonComparator(ObjectMapper mapper) {
+		this.mapper = mapper;
+	}
+
+	/**
+	 * write the comparison of the two documents.<BR>
+	 * the root object or array is always compared item by item.
+	 * @param source1
+	 * @param source2
+	 * @param generator
+	 * @throws IOException if a document is empty or invalid
+	 */
+	void compare(Source source1, Source source2, JsonGenerator generator) throws IOException {
+		equals.clear();
+		nextId = 0;
+		JsonParser p1 = null, p2 = null;
+		try {
+			p1 = open(source1);
+			p2 = open(source2);
+			scanValue(p1, p2, true);
+		} finally {
+			close(p1);
+			close(p2);
+		}
+
+		if (mapper.isEnabled(SerializationFeature.INDENT_OUTPUT) && generator.getPrettyPrinter() == null) {
+			generator.useDefaultPrettyPrinter();
+		}
+		nextId = 0;
+		try {
+			p1 = open(source1);
+			p2 = open(source2);
+			writeValue(p1, p2, generator, true);
+		} finally {
+			close(p1);
+			close(p2);
+		}
+		generator.flush();
+	}
+
+	private static JsonParser open(Source source) throws IOException {
+		JsonParser parser = source.open();
+		if (parser.nextToken() == null) {
+			parser.close();
+			throw new IOException("no JSON content");
+		}
+		return parser;
+	}
+
+	private static void close(JsonParser parser) {
+		if (parser == null) return;
+		try {
+			parser.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * 1st pass: both parsers are at the current value and are moved to its end.
+	 */
+	private boolean scanValue(JsonParser p1, JsonParser p2, boolean root) throws IOException {
+		JsonToken t1 = p1.getCurrentToken();
+		JsonToken t2 = p2.getCurrentToken();
+		if (t1.isStructStart() && t1 == t2) {
+			int id = nextId++;
+			boolean eq = t1 == JsonToken.START_OBJECT ? scanObject(p1, p2) : scanArray(p1, p2);
+			if (eq && !root) {
+				// the 2nd pass does not visit the children of the same values
+				equals.clear(id + 1, nextId);
+				nextId = id + 1;
+				equals.set(id);
+			}
+			return eq;
+		}
+		if (t1.isStructStart() || t2.isStructStart()) {
+			p1.skipChildren();
+			p2.skipChildren();
+			return false;
+		}
+		Object v1 = scalarValue(p1);
+		Object v2 = scalarValue(p2);
+		return v1 == null ? v2 == null : v1.equals(v2);
+	}
+
+	private boolean scanObject(JsonParser p1, JsonParser p2) throws IOException {
+		boolean eq = true;
+		while (true) {
+			JsonToken k1 = p1.nextToken();
+			JsonToken k2 = p2.nextToken();
+			if (k1 == JsonToken.END_OBJECT || k2 == JsonToken.END_OBJECT) {
+				boolean bothEnd = k1 == k2;
+				skipRestOfObject(p1, k1);
+				skipRestOfObject(p2, k2);
+				return eq && bothEnd;
+			}
+			String name1 = p1.getCurrentName();
+			String name2 = p2.getCurrentName();
+			p1.nextToken();
+			p2.nextToken();
+			if (!name1.equals(name2)) {
+				// keys are not in the same order
+				return eq && readRestOfObject(p1, name1).equals(readRestOfObject(p2, name2));
+			}
+			if (!scanValue(p1, p2, false)) {
+				eq = false;
+			}
+		}
+	}
+
+	private boolean scanArray(JsonParser p1, JsonParser p2) throws IOException {
+		boolean eq = true;
+		while (true) {
+			JsonToken t1 = p1.nextToken();
+			JsonToken t2 = p2.nextToken();
+			if (t1 == JsonToken.END_ARRAY || t2 == JsonToken.END_ARRAY) {
+				boolean bothEnd = t1 == t2;
+				skipRestOfArray(p1, t1);
+				skipRestOfArray(p2, t2);
+				return eq && bothEnd;
+			}
+			if (!scanValue(p1, p2, false)) {
+				eq = false;
+			}
+		}
+	}
+
+	/*
+	 * 2nd pass: write the comparison of the current values.
+	 */
+	private void writeValue(JsonParser p1, JsonParser p2, JsonGenerator g, boolean root) throws IOException {
+		JsonToken t1 = p1.getCurrentToken();
+		JsonToken t2 = p2.getCurrentToken();
+		if (t1.isStructStart() && t1 == t2) {
+			int id = nextId++;
+			boolean isObject = t1 == JsonToken.START_OBJECT;
+			if (!root && equals.get(id)) {
+				p1.skipChildren();
+				p2.skipChildren();
+				g.writeString(isObject ?
+						RuleRuntimeCompareService.SAME_MAP : RuleRuntimeCompareService.SAME_ARRAY);
+			} else if (isObject) {
+				writeObject(p1, p2, g);
+			} else {
+				writeArray(p1, p2, g);
+			}
+			return;
+		}
+		Object v1 = readValue(p1);
+		Object v2 = readValue(p2);
+		if (t1.isStructStart() || t2.isStructStart()) {
+			// an object or an array is not compared with another kind of value
+			g.writeString(RuleRuntimeCompareService.DIFF_HEADER + v1 + " -> " + v2);
+		} else {
+			writeComparison(g, RuleRuntimeCompareServiceBean.compareObj(v1, v2));
+		}
+	}
+
+	private void writeObject(JsonParser p1, JsonParser p2, JsonGenerator g) throws IOException {
+		g.writeStartObject();
+		while (true) {
+			JsonToken k1 = p1.nextToken();
+			if (k1 == JsonToken.END_OBJECT) {
+				// the keys only in the 2nd object are not written
+				skipRestOfObject(p2, p2.nextToken());
+				break;
+			}
+			JsonToken k2 = p2.nextToken();
+			String name1 = p1.getCurrentName();
+			p1.nextToken();
+			if (k2 == JsonToken.END_OBJECT) {
+				writeRest(readRestOfObject(p1, name1), new LinkedHashMap<String, Object>(), g);
+				break;
+			}
+			String name2 = p2.getCurrentName();
+			p2.nextToken();
+			if (!name1.equals(name2)) {
+				writeRest(readRestOfObject(p1, name1), readRestOfObject(p2, name2), g);
+				break;
+			}
+			g.writeFieldName(name1);
+			writeValue(p1, p2, g, false);
+		}
+		g.writeEndObject();
+	}
+
+	private void writeRest(Map<String, Object> rest1, Map<String, Object> rest2, JsonGenerator g)
+			throws IOException {
+		for (Map.Entry<String, Object> entry : rest1.entrySet()) {
+			g.writeFieldName(entry.getKey());
+			writeComparison(g, RuleRuntimeCompareServiceBean.compareObj(
+					entry.getValue(), rest2.get(entry.getKey())));
+		}
+	}
+
+	private void writeArray(JsonParser p1, JsonParser p2, JsonGenerator g) throws IOException {
+		g.writeStartArray();
+		boolean end1 = false, end2 = false;
+		while (true) {
+			if (!end1 && p1.nextToken() == JsonToken.END_ARRAY) {
+				end1 = true;
+			}
+			if (!end2 && p2.nextToken() == JsonToken.END_ARRAY) {
+				end2 = true;
+			}
+			if (end1 && end2) {
+				break;
+			} else if (end1) {
+				writeComparison(g, RuleRuntimeCompareServiceBean.compareObj(null, readValue(p2)));
+			} else if (end2) {
+				writeComparison(g, RuleRuntimeCompareServiceBean.compareObj(readValue(p1), null));
+			} else {
+				writeValue(p1, p2, g, false);
+			}
+		}
+		g.writeEndArray();
+	}
+
+	// most comparisons are Strings, write them without the flush of ObjectMapper
+	private void writeComparison(JsonGenerator g, Object comparison) throws IOException {
+		if (comparison instanceof String) {
+			g.writeString((String)comparison);
+		} else {
+			mapper.writeValue(g, comparison);
+		}
+	}
+
+	// values as deserialized into Object by Jackson
+	private static Object scalarValue(JsonParser p) throws IOException {
+		switch (p.getCurrentToken()) {
+		case VALUE_STRING:
+			return p.getText();
+		case VALUE_NUMBER_INT:
+			return p.getNumberValue();
+		case VALUE_NUMBER_FLOAT:
+			return p.getDoubleValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		default:
+			return null;
+		}
+	}
+
+	private Object readValue(JsonParser p) throws IOException {
+		if (p.getCurrentToken().isStructStart()) {
+			return mapper.readValue(p, Object.class);
+		}
+		return scalarValue(p);
+	}
+
+	// the parser is at the value of the name
+	private Map<String, Object> readRestOfObject(JsonParser p, String name) throws IOException {
+		Map<String, Object> rest = new LinkedHashMap<String, Object>();
+		while (true) {
+			rest.put(name, readValue(p));
+			if (p.nextToken() == JsonToken.END_OBJECT) {
+				return rest;
+			}
+			name = p.getCurrentName();
+			p.nextToken();
+		}
+	}
+
+	// the parser is at the token, FIELD_NAME or END_OBJECT
+	private static void skipRestOfObject(JsonParser p, JsonToken token) throws IOException {
+		while (token != JsonToken.END_OBJECT) {
+			p.nextToken();
+			p.skipChildren();
+			token = p.nextToken();
+		}
+	}
+
+	// the parser is at the token, a value or END_ARRAY
+	private static void skipRestOfArray(JsonParser p, JsonToken token) throws IOException {
+		while (token != JsonToken.END_ARRAY) {
+			p.skipChildren();
+			token = p.nextToken();
+		}
+	}
+}
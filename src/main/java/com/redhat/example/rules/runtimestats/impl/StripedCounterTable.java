@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.util.Arrays;
+
+/**
+ * Counters keyed by a non-negative long (e.g. a pair of rule ids).<BR>
+ * Keys are spread over lock striped open addressing tables of primitive arrays,
+ * so no object is allocated to count up an existing key.
+ *
+ * @author okuniyas
+ */
+public class StripedCounterTable {
+	private static final int STRIPES = 16;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public StripedCounterTable() {
+		for (int i=0; i<STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * increment the counter of the key
+	 * @param key non-negative value
+	 */
+	public void increment(long key) {
+		add(key, 1);
+	}
+
+	/**
+	 * add the delta to the counter of the key
+	 * @param key non-negative value
+	 * @param delta
+	 */
+	public void add(long key, long delta) {
+		long h = mix(key);
+		Stripe stripe = stripes[(int)(h >>> 60) & (STRIPES - 1)];
+		synchronized (stripe) {
+			stripe.add(key, (int)h, delta);
+		}
+	}
+
+	/**
+	 * get all keys and counts sorted by the key
+	 * @return [0] keys, [1] counts
+	 */
+	public long[][] toSortedArrays() {
+		int size = 0;
+		long[][] entries = new long[STRIPES][];
+		for (int i=0; i<STRIPES; i++) {
+			synchronized (stripes[i]) {
+				entries[i] = stripes[i].packEntries();
+			}
+			size += entries[i].length / 2;
+		}
+		// sort by key with the position of the entry
+		long[] keys = new long[size];
+		int n = 0;
+		for (long[] packed : entries) {
+			for (int j=0; j<packed.length; j+=2) {
+				keys[n++] = packed[j];
+			}
+		}
+		Arrays.sort(keys);
+		long[] counts = new long[size];
+		for (long[] packed : entries) {
+			for (int j=0; j<packed.length; j+=2) {
+				counts[Arrays.binarySearch(keys, packed[j])] = packed[j+1];
+			}
+		}
+		return new long[][] { keys, counts };
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	private static long mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+
+	private static class Stripe {
+		// key + 1 is stored to use 0 as the empty slot
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private long[] counts = new long[INITIAL_CAPACITY];
+		private int size = 0;
+
+		private void add(long key, int hash, long delta) {
+			long storedKey = key + 1;
+			int mask = keys.length - 1;
+			int i = hash & mask;
+			while (keys[i] != 0) {
+				if (keys[i] == storedKey) {
+					counts[i] += delta;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = storedKey;
+			counts[i] = delta;
+			if (++size * 2 > keys.length) {
+				rehash();
+			}
+		}
+
+		private void rehash() {
+			long[] oldKeys = keys;
+			long[] oldCounts = counts;
+			keys = new long[oldKeys.length * 2];
+			counts = new long[oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int j=0; j<oldKeys.length; j++) {
+				if (oldKeys[j] != 0) {
+					int i = (int)mix(oldKeys[j] - 1) & mask;
+					while (keys[i] != 0) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					counts[i] = oldCounts[j];
+				}
+			}
+		}
+
+		private long[] packEntries() {
+			long[] packed = new long[size * 2];
+			int n = 0;
+			for (int j=0; j<keys.length; j++) {
+				if (keys[j] != 0) {
+					packed[n++] = keys[j] - 1;
+					packed[n++] = counts[j];
+				}
+			}
+			return packed;
+		}
+
+		private void clear() {
+			keys = new long[INITIAL_CAPACITY];
+			counts = new long[INITIAL_CAPACITY];
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+/**
+ * Map from a non-negative long (e.g. an activation number) to an int (e.g. a rule id).<BR>
+ * Keys are spread over lock striped open addressing tables of primitive arrays.
+ * Removed entries are filled by shifting the following entries back, so
+ * put and remove allocate nothing once the tables have grown enough.
+ *
+ * @author okuniyas
+ */
+public class StripedLongIntMap {
+	public static final int MISSING = Integer.MIN_VALUE;
+
+	private static final int STRIPES = 16;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	public StripedLongIntMap() {
+		for (int i=0; i<STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * put the value of the key
+	 * @param key non-negative value
+	 * @param value
+	 */
+	public void put(long key, int value) {
+		long h = mix(key);
+		Stripe stripe = stripes[(int)(h >>> 60) & (STRIPES - 1)];
+		synchronized (stripe) {
+			stripe.put(key + 1, value);
+		}
+	}
+
+	/**
+	 * get the value of the key
+	 * @param key non-negative value
+	 * @return the value or {@link #MISSING}
+	 */
+	public int get(long key) {
+		long h = mix(key);
+		Stripe stripe = stripes[(int)(h >>> 60) & (STRIPES - 1)];
+		synchronized (stripe) {
+			int i = stripe.find(key + 1);
+			return i < 0 ? MISSING : stripe.values[i];
+		}
+	}
+
+	/**
+	 * remove the key
+	 * @param key non-negative value
+	 * @return the removed value or {@link #MISSING}
+	 */
+	public int remove(long key) {
+		long h = mix(key);
+		Stripe stripe = stripes[(int)(h >>> 60) & (STRIPES - 1)];
+		synchronized (stripe) {
+			return stripe.remove(key + 1);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	private static long mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+
+	private static class Stripe {
+		// key + 1 is stored to use 0 as the empty slot
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private int[] values = new int[INITIAL_CAPACITY];
+		private int size = 0;
+
+		private int slot(long storedKey) {
+			return (int)mix(storedKey - 1) & (keys.length - 1);
+		}
+
+		private int find(long storedKey) {
+			int mask = keys.length - 1;
+			int i = slot(storedKey);
+			while (keys[i] != 0) {
+				if (keys[i] == storedKey) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return -1;
+		}
+
+		private void put(long storedKey, int value) {
+			int mask = keys.length - 1;
+			int i = slot(storedKey);
+			while (keys[i] != 0) {
+				if (keys[i] == storedKey) {
+					values[i] = value;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = storedKey;
+			values[i] = value;
+			if (++size * 2 > keys.length) {
+				rehash();
+			}
+		}
+
+		private int remove(long storedKey) {
+			int i = find(storedKey);
+			if (i < 0) {
+				return MISSING;
+			}
+			int value = values[i];
+			// shift back the following entries of the same cluster
+			int mask = keys.length - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (keys[j] == 0) {
+					break;
+				}
+				int k = slot(keys[j]);
+				boolean stay = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+				if (!stay) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = 0;
+			size--;
+			return value;
+		}
+
+		private void rehash() {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[oldKeys.length * 2];
+			values = new int[oldKeys.length * 2];
+			int mask = keys.length - 1;
+			for (int j=0; j<oldKeys.length; j++) {
+				if (oldKeys[j] != 0) {
+					int i = slot(oldKeys[j]);
+					while (keys[i] != 0) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+		}
+
+		private void clear() {
+			keys = new long[INITIAL_CAPACITY];
+			values = new int[INITIAL_CAPACITY];
+			size = 0;
+		}
+	}
+}
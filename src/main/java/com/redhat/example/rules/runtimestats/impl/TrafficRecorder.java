@@ -0,0 +1,509 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.drools.core.command.runtime.BatchExecutionCommandImpl;
+import org.drools.core.command.runtime.rule.InsertElementsCommand;
+import org.drools.core.command.runtime.rule.InsertObjectCommand;
+import org.kie.api.command.Command;
+import org.kie.api.runtime.CommandExecutor;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.StatelessKieSession;
+
+import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService.CommandsFactory;
+
+/**
+ * Recorder of the batches executed by the sessions of an application.<BR>
+ * The sessions are wrapped by wrap(), and the commands given to execute() are
+ * deep copied by the calling thread into the slot claimed in a lock-free ring buffer,
+ * so the batches dropped by the full buffer are not copied.
+ * A daemon thread writes them into the GZIP compressed segment files of the directory
+ * in the same record format as CommandLog, numbered after the segments recorded before.
+ * A new segment is started when the records of a segment exceed the segment size,
+ * and the oldest segments, including the segments recorded before, are deleted
+ * when the total size of the files exceeds the budget.
+ * The batches are dropped instead of blocking the application when the buffer is full,
+ * and the batches failed to be copied or written are counted without failing the application.
+ * replay() returns a CommandsFactory iterating the batches of the segments.
+ * The inserted facts must be Serializable.
+ *
+ * @author okuniyas
+ */
+public class TrafficRecorder implements Closeable {
+	public static final String SEGMENT_EXTENSION = "seg.gz";
+	// bit of the tail set by close(), so no slot is claimed after the final tail
+	private static final long CLOSED = 1L << 62;
+	// published into the claimed slot if the batch failed to be copied
+	private static final List<Command<?>> FAILED = new ArrayList<Command<?>>(0);
+	private static final Pattern SEGMENT_NUMBER = Pattern.compile("-(\\d{6,})\\." + Pattern.quote(SEGMENT_EXTENSION));
+
+	private final File dir;
+	private final String prefix;
+	private final AtomicReferenceArray<List<Command<?>>> ring;
+	private final int mask;
+	// next slot to claim by the sessions, and next slot to write by the writer thread
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;
+	private volatile boolean closed = false;
+	private final Thread writer;
+
+	private volatile double samplingRate = 1.0;
+	private volatile long maxSegmentBytes = 64L * 1024 * 1024;
+	private volatile long maxTotalBytes = 1024L * 1024 * 1024;
+
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	// used by the writer thread only
+	private final Deque<File> segments = new ArrayDeque<File>();
+	private long totalBytes = 0;
+	private int segmentNumber = 0;
+	private long segmentRecordBytes = 0;
+	private DataOutputStream segment = null;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	/**
+	 * start to record into the directory
+	 * @param dir directory of the segments
+	 * @param prefix name of the segments
+	 * @param bufferSize number of the batches buffered, rounded up to a power of 2
+	 */
+	public TrafficRecorder(File dir, String prefix, int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("can not create " + dir);
+		}
+		this.dir = dir;
+		this.prefix = prefix;
+		// the segments recorded before are kept in the budget, and the numbers follow them
+		for (File file : getSegments(dir, prefix)) {
+			segmentNumber = Math.max(segmentNumber, segmentNumber(file.getName(), prefix));
+			segments.addLast(file);
+			totalBytes += file.length();
+		}
+		int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+		capacity = capacity <= 0 ? 1 : capacity;
+		ring = new AtomicReferenceArray<List<Command<?>>>(capacity);
+		mask = capacity - 1;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "rules-traffic-recorder-" + prefix);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param samplingRate ratio of the batches to record. the default is 1.0.
+	 */
+	public void setSamplingRate(double samplingRate) {
+		this.samplingRate = samplingRate;
+	}
+
+	/**
+	 * @param maxSegmentBytes bytes of the records of a segment before compression to start a new segment
+	 */
+	public void setMaxSegmentBytes(long maxSegmentBytes) {
+		this.maxSegmentBytes = maxSegmentBytes;
+	}
+
+	/**
+	 * @param maxTotalBytes compressed bytes of all segments to delete the oldest segments
+	 */
+	public void setMaxTotalBytes(long maxTotalBytes) {
+		this.maxTotalBytes = maxTotalBytes;
+	}
+
+	/**
+	 * @return number of the batches written
+	 */
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	/**
+	 * @return number of the batches dropped by the full buffer or after close()
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of the batches failed to be copied or written
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * record the batches executed by the session
+	 * @param session
+	 * @return the session recording the batches
+	 */
+	public StatelessKieSession wrap(StatelessKieSession session) {
+		return wrap(session, StatelessKieSession.class);
+	}
+
+	/**
+	 * record the batches executed by the session.
+	 * the commands given to execute() are recorded, but the direct calls like insert() are not.
+	 * @param session
+	 * @return the session recording the batches
+	 */
+	public KieSession wrap(KieSession session) {
+		return wrap(session, KieSession.class);
+	}
+
+	private <T extends CommandExecutor> T wrap(final T session, Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				// record() does not throw, so the session always executes the batch
+				if (method.getName().equals("execute") && args != null && args.length == 1) {
+					record(args[0]);
+				}
+				try {
+					return method.invoke(session, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		}));
+	}
+
+	/**
+	 * record the argument of execute() of a session.
+	 * the failure to copy the batch is counted and not thrown to the application.
+	 * @param executed a command, a fact or the facts
+	 * @return true if the batch is buffered to be written, even if close() is called
+	 */
+	public boolean record(Object executed) {
+		if (closed || executed == null) {
+			return false;
+		}
+		double rate = samplingRate;
+		if (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate) {
+			return false;
+		}
+		long slot = claim();
+		if (slot < 0) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		List<Command<?>> commands = FAILED;
+		try {
+			commands = copy(executed);
+		} catch (Throwable t) {
+			// e.g. a fact which can not be copied
+			failed.incrementAndGet();
+		} finally {
+			// the writer waits for the claimed slot to be published
+			ring.set((int)(slot & mask), commands);
+		}
+		return commands != FAILED;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Command<?>> copy(Object executed) {
+		List<Command<?>> commands = new ArrayList<Command<?>>();
+		if (executed instanceof BatchExecutionCommandImpl) {
+			commands.addAll(((BatchExecutionCommandImpl)executed).getCommands());
+		} else if (executed instanceof Command) {
+			commands.add((Command<?>)executed);
+		} else if (executed instanceof Iterable) {
+			List<Object> objects = new ArrayList<Object>();
+			for (Object o : (Iterable<Object>)executed) {
+				objects.add(o);
+			}
+			commands.add(new InsertElementsCommand(objects));
+		} else {
+			commands.add(new InsertObjectCommand(executed));
+		}
+		// the rules modify the facts after this, so the copies are recorded
+		DeepCloner cloner = new DeepCloner();
+		for (int i=0; i<commands.size(); i++) {
+			commands.set(i, cloner.copyCommand(commands.get(i)));
+		}
+		return commands;
+	}
+
+	// claim a slot if the buffer is not full and not closed
+	// @return the claimed slot, or -1 if not claimed
+	private long claim() {
+		while (true) {
+			long t = tail.get();
+			if ((t & CLOSED) != 0 || t - head > mask) {
+				return -1;
+			}
+			if (tail.compareAndSet(t, t + 1)) {
+				return t;
+			}
+		}
+	}
+
+	/**
+	 * write the buffered batches and close the segment
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		// the slots claimed before are written by the writer
+		long t;
+		do {
+			t = tail.get();
+		} while ((t & CLOSED) == 0 && !tail.compareAndSet(t, t | CLOSED));
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				long h = head;
+				int index = (int)(h & mask);
+				List<Command<?>> commands = ring.get(index);
+				if (commands == null) {
+					// the claimed slot may be published later
+					long t = tail.get();
+					if ((t & CLOSED) != 0 && h == (t & ~CLOSED)) {
+						break;
+					}
+					LockSupport.parkNanos(1000000L);
+					continue;
+				}
+				ring.set(index, null);
+				head = h + 1;
+				if (commands == FAILED) {
+					// counted by the session
+					continue;
+				}
+				try {
+					writeBatch(commands);
+					recorded.incrementAndGet();
+				} catch (IOException | RuntimeException e) {
+					failed.incrementAndGet();
+				}
+			}
+		} finally {
+			try {
+				closeSegment();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void writeBatch(List<Command<?>> commands) throws IOException {
+		if (segment == null) {
+			File file = new File(dir, String.format("%s-%06d.%s", prefix, ++segmentNumber, SEGMENT_EXTENSION));
+			segment = new DataOutputStream(new BufferedOutputStream(
+					new GZIPOutputStream(new FileOutputStream(file), 64 * 1024)));
+			segments.addLast(file);
+		}
+		CommandLog.writeRecord(segment, buffer, commands);
+		// the compressed bytes are not written until the deflater fills its buffer
+		segmentRecordBytes += 4 + buffer.size();
+		if (segmentRecordBytes >= maxSegmentBytes) {
+			closeSegment();
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		if (segment == null) {
+			return;
+		}
+		segment.close();
+		totalBytes += segments.getLast().length();
+		segment = null;
+		segmentRecordBytes = 0;
+		// keep the latest segments within the budget
+		while (totalBytes > maxTotalBytes && segments.size() > 1) {
+			File oldest = segments.removeFirst();
+			totalBytes -= oldest.length();
+			if (!oldest.delete()) {
+				System.err.println("WARNING: can not delete " + oldest);
+			}
+		}
+	}
+
+	/**
+	 * @param dir directory of the segments
+	 * @param prefix name of the segments
+	 * @return segments in the recorded order
+	 */
+	public static File[] getSegments(File dir, final String prefix) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return segmentNumber(name, prefix) >= 0;
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return Integer.compare(segmentNumber(o1.getName(), prefix), segmentNumber(o2.getName(), prefix));
+			}
+		});
+		return files;
+	}
+
+	// the number of the segment named prefix-NNNNNN.seg.gz, or -1 if not a segment of the prefix
+	private static int segmentNumber(String name, String prefix) {
+		if (!name.startsWith(prefix)) {
+			return -1;
+		}
+		Matcher matcher = SEGMENT_NUMBER.matcher(name);
+		if (!matcher.region(prefix.length(), name.length()).matches()) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(matcher.group(1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * replay the recorded batches. the segments are read whenever they are iterated.
+	 * @param dir directory of the segments
+	 * @param prefix name of the segments
+	 * @return CommandsFactory of the batches without the static commands
+	 */
+	public static CommandsFactory replay(File dir, String prefix) {
+		final File[] files = getSegments(dir, prefix);
+		return new CommandsFactory() {
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return new ArrayList<Command<?>>();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				return new SegmentIterator(files);
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				return new ArrayList<Command<?>>();
+			}
+		};
+	}
+
+	// reads the records of the segments one by one
+	private static class SegmentIterator implements Iterator<List<Command<?>>> {
+		private final File[] files;
+		private int nextFile = 0;
+		private DataInputStream in = null;
+		private List<Command<?>> next = null;
+
+		private SegmentIterator(File[] files) {
+			this.files = files;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				next = readNext();
+			}
+			return next != null;
+		}
+
+		@Override
+		public List<Command<?>> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			List<Command<?>> ret = next;
+			next = null;
+			return ret;
+		}
+
+		private List<Command<?>> readNext() {
+			try {
+				while (true) {
+					if (in == null) {
+						if (nextFile >= files.length) {
+							return null;
+						}
+						in = new DataInputStream(new BufferedInputStream(
+								new GZIPInputStream(new FileInputStream(files[nextFile++]))));
+					}
+					int length;
+					try {
+						length = in.readInt();
+					} catch (EOFException e) {
+						in.close();
+						in = null;
+						continue;
+					}
+					byte[] record = new byte[length];
+					in.readFully(record);
+					return CommandLog.readCommands(new ByteArrayInputStream(record));
+				}
+			} catch (IOException | ClassNotFoundException e) {
+				throw new IllegalStateException("can not read " + files[nextFile - 1], e);
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Statistics of the NOOP stats of repeated comparisons (trials).<BR>
+ * The elapsed time of each trial and the durations of the batches of all trials
+ * are compared between the base and the working rules by the mean, the standard deviation,
+ * the 95% confidence interval and Welch's t-test. The elapsed times are also compared
+ * by a bootstrap test, which does not assume the normal distribution.
+ *
+ * @author okuniyas
+ */
+public class TrialComparison {
+	private static final int BOOTSTRAP_RESAMPLES = 10000;
+	// fixed seed for the same report from the same trials
+	private static final long BOOTSTRAP_SEED = 0;
+
+	private final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+	// [0] base, [1] working
+	private final List<List<Double>> elapsed =
+			Arrays.<List<Double>>asList(new ArrayList<Double>(), new ArrayList<Double>());
+	// count, mean and variance of the batches of all trials
+	private final double[][] batches = new double[2][3];
+
+	/**
+	 * add the NOOP stats of a trial
+	 * @param baseStats NOOP stats of the base rules
+	 * @param workingStats NOOP stats of the working rules
+	 * @throws IOException if the stats can not be read
+	 */
+	public void addTrial(File baseStats, File workingStats) throws IOException {
+		addTrial(0, read(baseStats));
+		addTrial(1, read(workingStats));
+	}
+
+	public int getTrials() {
+		return elapsed.get(0).size();
+	}
+
+	private Map<String, Object> read(File stats) throws IOException {
+		return mapper.readValue(stats, new TypeReference<LinkedHashMap<String, Object>>() {});
+	}
+
+	private void addTrial(int side, Map<String, Object> stats) {
+		elapsed.get(side).add(((Number)stats.get("elapsedMilliseconds")).doubleValue());
+		Map<?, ?> batch = (Map<?, ?>)stats.get("batchMilliseconds");
+		if (batch == null) {
+			return;
+		}
+		double n = ((Number)batch.get("count")).doubleValue();
+		double mean = ((Number)batch.get("mean")).doubleValue();
+		double sd = ((Number)batch.get("stddev")).doubleValue();
+		// combine the trials by the parallel variance
+		double[] total = batches[side];
+		double count = total[0] + n;
+		double delta = mean - total[1];
+		double m2 = total[2] * Math.max(total[0] - 1, 0) + sd * sd * Math.max(n - 1, 0) +
+				delta * delta * total[0] * n / count;
+		total[1] += delta * n / count;
+		total[0] = count;
+		total[2] = count < 2 ? 0 : m2 / (count - 1);
+	}
+
+	/**
+	 * @return "count", "elapsedMilliseconds" and "batchMilliseconds" comparisons
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> getComparison() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("count", getTrials());
+
+		double[] base = toArray(elapsed.get(0));
+		double[] working = toArray(elapsed.get(1));
+		Map<String, Object> elapsedMap = compare(
+				base.length, mean(base), variance(base), working.length, mean(working), variance(working));
+		((Map<String, Object>)elapsedMap.get("base")).put("samples", elapsed.get(0));
+		((Map<String, Object>)elapsedMap.get("working")).put("samples", elapsed.get(1));
+		elapsedMap.put("bootstrapPValue", number(bootstrapPValue(base, working)));
+		ret.put("elapsedMilliseconds", elapsedMap);
+
+		if (batches[0][0] > 0 && batches[1][0] > 0) {
+			ret.put("batchMilliseconds", compare(
+					(long)batches[0][0], batches[0][1], batches[0][2],
+					(long)batches[1][0], batches[1][1], batches[1][2]));
+		}
+		return ret;
+	}
+
+	/**
+	 * put the comparison into "trials" of the NOOP stats comparison file
+	 * @param comparison
+	 * @throws IOException
+	 */
+	public void writeInto(File comparison) throws IOException {
+		Map<String, Object> map = read(comparison);
+		map.put("trials", getComparison());
+		mapper.writeValue(comparison, map);
+	}
+
+	private static Map<String, Object> compare(long n1, double mean1, double var1,
+			long n2, double mean2, double var2) {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("base", summary(n1, mean1, var1));
+		ret.put("working", summary(n2, mean2, var2));
+
+		Map<String, Object> difference = new LinkedHashMap<String, Object>();
+		double diff = mean2 - mean1;
+		double se1 = var1 / n1, se2 = var2 / n2;
+		double se = Math.sqrt(se1 + se2);
+		// Welch-Satterthwaite degrees of freedom
+		double df = (se1 + se2) * (se1 + se2) /
+				(se1 * se1 / Math.max(n1 - 1, 1) + se2 * se2 / Math.max(n2 - 1, 1));
+		difference.put("mean", number(diff));
+		difference.put("percent", number(mean1 == 0 ? Double.NaN : diff * 100 / mean1));
+		if (se > 0) {
+			double q = studentTQuantile(0.975, df);
+			difference.put("ci95", Arrays.asList(number(diff - q * se), number(diff + q * se)));
+		}
+		ret.put("difference", difference);
+
+		if (se > 0) {
+			double t = diff / se;
+			ret.put("welchT", number(t));
+			ret.put("degreesOfFreedom", number(df));
+			ret.put("pValue", number(studentTTwoSidedPValue(t, df)));
+		} else {
+			// no variance, the means are equal or different for sure
+			ret.put("pValue", diff == 0 ? 1.0 : 0.0);
+		}
+		return ret;
+	}
+
+	private static Map<String, Object> summary(long n, double mean, double var) {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("count", n);
+		ret.put("mean", number(mean));
+		double sd = Math.sqrt(var);
+		ret.put("stddev", number(sd));
+		if (n > 1) {
+			double h = studentTQuantile(0.975, n - 1) * sd / Math.sqrt(n);
+			ret.put("ci95", Arrays.asList(number(mean - h), number(mean + h)));
+		}
+		return ret;
+	}
+
+	/*
+	 * the bootstrap test of the equal means: both samples are shifted to the pooled mean,
+	 * and the Welch t of the resamples is compared with the observed t.
+	 */
+	static double bootstrapPValue(double[] x, double[] y) {
+		if (x.length < 2 || y.length < 2) {
+			return Double.NaN;
+		}
+		double observed = welchT(x, y);
+		if (Double.isNaN(observed)) {
+			return Double.NaN;
+		}
+		double pooled = (mean(x) * x.length + mean(y) * y.length) / (x.length + y.length);
+		double[] x0 = shift(x, pooled - mean(x));
+		double[] y0 = shift(y, pooled - mean(y));
+		Random random = new Random(BOOTSTRAP_SEED);
+		double[] xs = new double[x.length];
+		double[] ys = new double[y.length];
+		int extreme = 0;
+		for (int b=0; b<BOOTSTRAP_RESAMPLES; b++) {
+			for (int i=0; i<xs.length; i++) {
+				xs[i] = x0[random.nextInt(x0.length)];
+			}
+			for (int i=0; i<ys.length; i++) {
+				ys[i] = y0[random.nextInt(y0.length)];
+			}
+			double t = welchT(xs, ys);
+			if (Double.isNaN(t) ? observed == 0 : Math.abs(t) >= Math.abs(observed)) {
+				extreme++;
+			}
+		}
+		return (extreme + 1.0) / (BOOTSTRAP_RESAMPLES + 1.0);
+	}
+
+	private static double welchT(double[] x, double[] y) {
+		double se = Math.sqrt(variance(x) / x.length + variance(y) / y.length);
+		double diff = mean(y) - mean(x);
+		if (se == 0) {
+			return diff == 0 ? Double.NaN : Math.copySign(Double.POSITIVE_INFINITY, diff);
+		}
+		return diff / se;
+	}
+
+	private static double[] shift(double[] x, double delta) {
+		double[] ret = new double[x.length];
+		for (int i=0; i<x.length; i++) {
+			ret[i] = x[i] + delta;
+		}
+		return ret;
+	}
+
+	private static double[] toArray(List<Double> list) {
+		double[] ret = new double[list.size()];
+		for (int i=0; i<ret.length; i++) {
+			ret[i] = list.get(i);
+		}
+		return ret;
+	}
+
+	private static double mean(double[] x) {
+		double sum = 0;
+		for (double v : x) {
+			sum += v;
+		}
+		return x.length == 0 ? 0 : sum / x.length;
+	}
+
+	private static double variance(double[] x) {
+		if (x.length < 2) {
+			return 0;
+		}
+		double mean = mean(x);
+		double sum = 0;
+		for (double v : x) {
+			sum += (v - mean) * (v - mean);
+		}
+		return sum / (x.length - 1);
+	}
+
+	// JSON has no NaN nor Infinity
+	private static Double number(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+	}
+
+	/**
+	 * two sided p-value of Student's t distribution
+	 */
+	static double studentTTwoSidedPValue(double t, double df) {
+		if (Double.isInfinite(t)) {
+			return 0;
+		}
+		return regularizedIncompleteBeta(df / (df + t * t), df / 2, 0.5);
+	}
+
+	/**
+	 * quantile of Student's t distribution by the bisection of the p-value
+	 */
+	static double studentTQuantile(double p, double df) {
+		double target = 2 * (1 - p);
+		double lo = 0, hi = 1;
+		while (studentTTwoSidedPValue(hi, df) > target) {
+			hi *= 2;
+		}
+		for (int i=0; i<100 && hi - lo > 1e-12 * hi; i++) {
+			double mid = (lo + hi) / 2;
+			if (studentTTwoSidedPValue(mid, df) > target) {
+				lo = mid;
+			} else {
+				hi = mid;
+			}
+		}
+		return (lo + hi) / 2;
+	}
+
+	// I_x(a, b) by the continued fraction (Numerical Recipes 6.4)
+	private static double regularizedIncompleteBeta(double x, double a, double b) {
+		if (x <= 0) {
+			return 0;
+		}
+		if (x >= 1) {
+			return 1;
+		}
+		double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) +
+				a * Math.log(x) + b * Math.log(1 - x));
+		if (x < (a + 1) / (a + b + 2)) {
+			return front * betaContinuedFraction(x, a, b) / a;
+		}
+		return 1 - front * betaContinuedFraction(1 - x, b, a) / b;
+	}
+
+	private static double betaContinuedFraction(double x, double a, double b) {
+		final double tiny = 1e-300;
+		double qab = a + b, qap = a + 1, qam = a - 1;
+		double c = 1, d = 1 - qab * x / qap;
+		if (Math.abs(d) < tiny) d = tiny;
+		d = 1 / d;
+		double h = d;
+		for (int m=1; m<=300; m++) {
+			int m2 = 2 * m;
+			double aa = m * (b - m) * x / ((qam + m2) * (a + m2));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny) d = tiny;
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny) c = tiny;
+			d = 1 / d;
+			h *= d * c;
+			aa = -(a + m) * (qab + m) * x / ((a + m2) * (qap + m2));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny) d = tiny;
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny) c = tiny;
+			d = 1 / d;
+			double del = d * c;
+			h *= del;
+			if (Math.abs(del - 1) < 1e-15) {
+				break;
+			}
+		}
+		return h;
+	}
+
+	// Lanczos approximation
+	private static double logGamma(double x) {
+		double[] coefficients = { 76.18009172947146, -86.50532032941677, 24.01409824083091,
+				-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5 };
+		double y = x, tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double series = 1.000000000190015;
+		for (double coefficient : coefficients) {
+			series += coefficient / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * series / x);
+	}
+}
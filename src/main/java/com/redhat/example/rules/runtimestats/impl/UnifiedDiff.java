@@ -0,0 +1,453 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+
+/**
+ * Unified diff (same as "diff -u") of two text files in Java.<BR>
+ * Lines are compared by 64 bit hashes, so only the hashes of the lines
+ * are kept in the heap and the lines are copied from the files when the hunks are written.
+ * The differences are found by the linear space Myers algorithm
+ * with the same cut off of too expensive searches as GNU diff.
+ *
+ * @author okuniyas
+ */
+public class UnifiedDiff {
+	private static final int CONTEXT = 3;
+	private static final byte[] NO_NEWLINE = "\\ No newline at end of file\n".getBytes();
+
+	private final Lines lines1;
+	private final Lines lines2;
+	// changed lines, deleted from file1 and inserted into file2
+	private final BitSet deleted = new BitSet();
+	private final BitSet inserted = new BitSet();
+	private final int tooExpensive;
+	private int[] fd;
+	private int[] bd;
+
+	private UnifiedDiff(Lines lines1, Lines lines2) {
+		this.lines1 = lines1;
+		this.lines2 = lines2;
+		long diags = (long)lines1.size + lines2.size + 3;
+		int expensive = 1;
+		for (; diags != 0; diags >>= 2) {
+			expensive <<= 1;
+		}
+		tooExpensive = Math.max(4096, expensive);
+	}
+
+	/**
+	 * write the unified diff of file1 and file2 into the output.<BR>
+	 * nothing is written if both files are the same.
+	 * @param file1 original file
+	 * @param file2 new file
+	 * @param output diff file
+	 * @throws IOException
+	 */
+	public static void diff(File file1, File file2, File output) throws IOException {
+		UnifiedDiff diff = new UnifiedDiff(Lines.hash(file1), Lines.hash(file2));
+		diff.compare();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16);
+		try {
+			diff.writeHunks(file1, file2, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void compare() {
+		long[] a = lines1.hashes;
+		long[] b = lines2.hashes;
+		fd = new int[lines1.size + lines2.size + 3];
+		bd = new int[fd.length];
+		int[] part = new int[2];
+		ArrayDeque<int[]> ranges = new ArrayDeque<int[]>();
+		ranges.push(new int[] { 0, lines1.size, 0, lines2.size });
+		while (!ranges.isEmpty()) {
+			int[] range = ranges.pop();
+			int xoff = range[0], xlim = range[1], yoff = range[2], ylim = range[3];
+			// skip the same lines at the both ends
+			while (xoff < xlim && yoff < ylim && a[xoff] == b[yoff]) {
+				xoff++;
+				yoff++;
+			}
+			while (xoff < xlim && yoff < ylim && a[xlim - 1] == b[ylim - 1]) {
+				xlim--;
+				ylim--;
+			}
+			if (xoff == xlim) {
+				inserted.set(yoff, ylim);
+			} else if (yoff == ylim) {
+				deleted.set(xoff, xlim);
+			} else {
+				diag(xoff, xlim, yoff, ylim, a, b, part);
+				if ((part[0] == xoff && part[1] == yoff) || (part[0] == xlim && part[1] == ylim)) {
+					// no progress
+					deleted.set(xoff, xlim);
+					inserted.set(yoff, ylim);
+				} else {
+					ranges.push(new int[] { part[0], xlim, part[1], ylim });
+					ranges.push(new int[] { xoff, part[0], yoff, part[1] });
+				}
+			}
+		}
+		fd = null;
+		bd = null;
+	}
+
+	/*
+	 * find the midpoint of the shortest edit script in the range,
+	 * or a good enough point if it is too expensive.
+	 */
+	private void diag(int xoff, int xlim, int yoff, int ylim, long[] a, long[] b, int[] part) {
+		int offset = lines2.size + 1;
+		int dmin = xoff - ylim;
+		int dmax = xlim - yoff;
+		int fmid = xoff - yoff;
+		int bmid = xlim - ylim;
+		int fmin = fmid, fmax = fmid;
+		int bmin = bmid, bmax = bmid;
+		boolean odd = ((fmid - bmid) & 1) != 0;
+		fd[offset + fmid] = xoff;
+		bd[offset + bmid] = xlim;
+
+		for (int c = 1;; c++) {
+			// forward
+			if (fmin > dmin) {
+				fd[offset + --fmin - 1] = -1;
+			} else {
+				++fmin;
+			}
+			if (fmax < dmax) {
+				fd[offset + ++fmax + 1] = -1;
+			} else {
+				--fmax;
+			}
+			for (int d = fmax; d >= fmin; d -= 2) {
+				int tlo = fd[offset + d - 1];
+				int thi = fd[offset + d + 1];
+				int x = tlo >= thi ? tlo + 1 : thi;
+				int y = x - d;
+				while (x < xlim && y < ylim && a[x] == b[y]) {
+					x++;
+					y++;
+				}
+				fd[offset + d] = x;
+				if (odd && bmin <= d && d <= bmax && bd[offset + d] <= x) {
+					part[0] = x;
+					part[1] = y;
+					return;
+				}
+			}
+			// backward
+			if (bmin > dmin) {
+				bd[offset + --bmin - 1] = Integer.MAX_VALUE;
+			} else {
+				++bmin;
+			}
+			if (bmax < dmax) {
+				bd[offset + ++bmax + 1] = Integer.MAX_VALUE;
+			} else {
+				--bmax;
+			}
+			for (int d = bmax; d >= bmin; d -= 2) {
+				int tlo = bd[offset + d - 1];
+				int thi = bd[offset + d + 1];
+				int x = tlo < thi ? tlo : thi - 1;
+				int y = x - d;
+				while (x > xoff && y > yoff && a[x - 1] == b[y - 1]) {
+					x--;
+					y--;
+				}
+				bd[offset + d] = x;
+				if (!odd && fmin <= d && d <= fmax && x <= fd[offset + d]) {
+					part[0] = x;
+					part[1] = y;
+					return;
+				}
+			}
+
+			if (c >= tooExpensive) {
+				// take the furthest point reached forward or backward
+				long fxybest = -1;
+				int fxbest = xoff;
+				for (int d = fmax; d >= fmin; d -= 2) {
+					int x = Math.min(fd[offset + d], xlim);
+					int y = x - d;
+					if (ylim < y) {
+						x = ylim + d;
+						y = ylim;
+					}
+					if (fxybest < (long)x + y) {
+						fxybest = (long)x + y;
+						fxbest = x;
+					}
+				}
+				long bxybest = Long.MAX_VALUE;
+				int bxbest = xlim;
+				for (int d = bmax; d >= bmin; d -= 2) {
+					int x = Math.max(xoff, bd[offset + d]);
+					int y = x - d;
+					if (y < yoff) {
+						x = yoff + d;
+						y = yoff;
+					}
+					if ((long)x + y < bxybest) {
+						bxybest = (long)x + y;
+						bxbest = x;
+					}
+				}
+				if (((long)xlim + ylim) - bxybest < fxybest - ((long)xoff + yoff)) {
+					part[0] = fxbest;
+					part[1] = (int)(fxybest - fxbest);
+				} else {
+					part[0] = bxbest;
+					part[1] = (int)(bxybest - bxbest);
+				}
+				return;
+			}
+		}
+	}
+
+	/*
+	 * write hunks with 3 lines of context while reading both files once.
+	 */
+	private void writeHunks(File file1, File file2, OutputStream out) throws IOException {
+		if (deleted.isEmpty() && inserted.isEmpty()) {
+			return; // same
+		}
+		int n1 = lines1.size, n2 = lines2.size;
+		LineReader reader1 = new LineReader(file1);
+		LineReader reader2 = new LineReader(file2);
+		try {
+			writeHeader(out, "--- ", file1);
+			writeHeader(out, "+++ ", file2);
+			int[] change = nextChange(0, 0);
+			while (change[0] < n1 || change[1] < n2) {
+				// the first change of the hunk
+				int start1 = Math.max(0, change[0] - CONTEXT);
+				int start2 = change[1] - (change[0] - start1);
+				// extend the hunk while the next change is close enough
+				int end1 = change[2], end2 = change[3];
+				int[] next = nextChange(end1, end2);
+				while ((next[0] < n1 || next[1] < n2) && next[0] - end1 <= 2 * CONTEXT) {
+					end1 = next[2];
+					end2 = next[3];
+					next = nextChange(end1, end2);
+				}
+				int context = Math.min(CONTEXT, Math.min(n1 - end1, n2 - end2));
+				end1 += context;
+				end2 += context;
+
+				out.write(("@@ -" + range(start1, end1) + " +" + range(start2, end2) + " @@\n").getBytes());
+				reader1.skipTo(start1);
+				reader2.skipTo(start2);
+				int x = start1, y = start2;
+				while (x < end1 || y < end2) {
+					if (x < end1 && deleted.get(x)) {
+						while (x < end1 && deleted.get(x)) {
+							reader1.copyLine(out, '-');
+							x++;
+						}
+					} else if (y < end2 && inserted.get(y)) {
+						while (y < end2 && inserted.get(y)) {
+							reader2.copyLine(out, '+');
+							y++;
+						}
+					} else {
+						reader1.copyLine(out, ' ');
+						reader2.skipLine();
+						x++;
+						y++;
+					}
+				}
+				change = next;
+			}
+		} finally {
+			reader1.close();
+			reader2.close();
+		}
+	}
+
+	/*
+	 * find the next change from the same lines (x, y)
+	 * @return {start1, start2, end1, end2}
+	 */
+	private int[] nextChange(int x, int y) {
+		int n1 = lines1.size, n2 = lines2.size;
+		while (x < n1 && y < n2 && !deleted.get(x) && !inserted.get(y)) {
+			x++;
+			y++;
+		}
+		int start1 = x, start2 = y;
+		while (x < n1 && deleted.get(x)) {
+			x++;
+		}
+		while (y < n2 && inserted.get(y)) {
+			y++;
+		}
+		return new int[] { start1, start2, x, y };
+	}
+
+	// 1 origin, "first,count" or "first" if one line, "line before,0" if empty
+	private static String range(int start, int end) {
+		int count = end - start;
+		if (count == 1) {
+			return Integer.toString(start + 1);
+		}
+		return (count == 0 ? start : start + 1) + "," + count;
+	}
+
+	private static void writeHeader(OutputStream out, String prefix, File file) throws IOException {
+		String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS Z").format(new Date(file.lastModified()));
+		out.write((prefix + file.getName() + "\t" + time + "\n").getBytes());
+	}
+
+	/*
+	 * hashes of all lines in a file
+	 */
+	private static class Lines {
+		private long[] hashes = new long[1024];
+		private int size = 0;
+
+		private static Lines hash(File file) throws IOException {
+			Lines lines = new Lines();
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buf = new byte[1 << 16];
+				long h = 0;
+				boolean inLine = false;
+				int n;
+				while ((n = in.read(buf)) >= 0) {
+					for (int i=0; i<n; i++) {
+						byte c = buf[i];
+						h = (h ^ (c & 0xFF)) * 0x100000001B3L;
+						inLine = true;
+						if (c == '\n') {
+							lines.add(h);
+							h = 0;
+							inLine = false;
+						}
+					}
+				}
+				if (inLine) {
+					// the last line without newline is not the same as the one with newline
+					lines.add(h ^ 0x9E3779B97F4A7C15L);
+				}
+			} finally {
+				in.close();
+			}
+			return lines;
+		}
+
+		private void add(long h) {
+			if (size == hashes.length) {
+				if (size == Integer.MAX_VALUE - 8) {
+					throw new IllegalStateException("too many lines");
+				}
+				hashes = Arrays.copyOf(hashes, (int)Math.min(Integer.MAX_VALUE - 8, size * 2L));
+			}
+			// spread the bits of FNV-1a
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			hashes[size++] = h;
+		}
+	}
+
+	/*
+	 * reads the lines of a file forward only.
+	 */
+	private static class LineReader {
+		private final InputStream in;
+		private final byte[] buf = new byte[1 << 16];
+		private int pos = 0;
+		private int limit = 0;
+		private int line = 0;
+
+		private LineReader(File file) throws IOException {
+			in = new FileInputStream(file);
+		}
+
+		private void skipTo(int target) throws IOException {
+			while (line < target) {
+				skipLine();
+			}
+		}
+
+		private void skipLine() throws IOException {
+			copyLine(null, ' ');
+		}
+
+		// copy the line with the prefix, or skip it if out is null
+		private void copyLine(OutputStream out, char prefix) throws IOException {
+			if (out != null) {
+				out.write(prefix);
+			}
+			line++;
+			while (fill()) {
+				int start = pos;
+				while (pos < limit && buf[pos] != '\n') {
+					pos++;
+				}
+				boolean newline = pos < limit;
+				if (newline) {
+					pos++;
+				}
+				if (out != null) {
+					out.write(buf, start, pos - start);
+				}
+				if (newline) {
+					return;
+				}
+			}
+			if (out != null) {
+				out.write('\n');
+				out.write(NO_NEWLINE);
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if (pos < limit) {
+				return true;
+			}
+			pos = 0;
+			limit = Math.max(0, in.read(buf));
+			return limit > 0;
+		}
+
+		private void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
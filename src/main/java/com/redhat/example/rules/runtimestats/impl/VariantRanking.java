@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService;
+import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+
+/**
+ * Matrix of the variants (candidate KieBases) against the baseline.<BR>
+ * Each variant has the throughput of the NOOP stats, the firings of the EXECUTION_COUNT stats,
+ * the activations of the ACTIVATION stats, the elapsed time of each stats type,
+ * their changes from the baseline in percent, and the number of the differences
+ * in the comparisons with the baseline. The variants are ranked by each of the metrics
+ * which are taken from all variants.
+ *
+ * @author okuniyas
+ */
+public class VariantRanking {
+	public static final String EXECUTIONS_PER_SECOND = "executionsPerSecond";
+	public static final String FIRINGS = "firings";
+	public static final String ACTIVATIONS = "activations";
+	// higher is better for the throughput, lower is better for the others
+	private static final String[] METRICS = { EXECUTIONS_PER_SECOND, FIRINGS, ACTIVATIONS };
+
+	private final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+	private final String baseline;
+	private final Map<String, Map<String, Object>> variants = new LinkedHashMap<String, Map<String, Object>>();
+
+	/**
+	 * @param baseline name of the baseline
+	 */
+	public VariantRanking(String baseline) {
+		this.baseline = baseline;
+		getVariant(baseline);
+	}
+
+	/**
+	 * add the stats of a variant or the baseline
+	 * @param name name of the variant
+	 * @param statsType
+	 * @param stats stats of the variant
+	 * @param comparison comparison of the stats with the baseline, or null for the baseline
+	 * @throws IOException if the files can not be read
+	 */
+	@SuppressWarnings("unchecked")
+	public void addStats(String name, StatsType statsType, File stats, File comparison) throws IOException {
+		Map<String, Object> variant = getVariant(name);
+		Map<String, Object> map = mapper.readValue(stats, new TypeReference<LinkedHashMap<String, Object>>() {});
+		String statsName = statsType.toString().toLowerCase();
+		((Map<String, Object>)variant.get("elapsedMilliseconds")).put(statsName, map.get("elapsedMilliseconds"));
+		if (statsType == StatsType.NOOP && map.get(EXECUTIONS_PER_SECOND) != null) {
+			variant.put(EXECUTIONS_PER_SECOND, map.get(EXECUTIONS_PER_SECOND));
+		} else if (statsType == StatsType.EXECUTION_COUNT) {
+			variant.put(FIRINGS, sumOfSizes(map.get("children")));
+		} else if (statsType == StatsType.ACTIVATION) {
+			variant.put(ACTIVATIONS, sumOfSizes(map.get("children")));
+		}
+		if (comparison != null) {
+			((Map<String, Object>)variant.get("differences")).put(statsName, countDifferences(comparison));
+		}
+	}
+
+	/**
+	 * add the comparison of the result facts of a variant with the baseline
+	 * @param name name of the variant
+	 * @param comparison
+	 * @throws IOException if the file can not be read
+	 */
+	@SuppressWarnings("unchecked")
+	public void addFactsComparison(String name, File comparison) throws IOException {
+		((Map<String, Object>)getVariant(name).get("differences")).put("result_facts", countDifferences(comparison));
+	}
+
+	/**
+	 * @return "baseline", "variants" and "rankings"
+	 */
+	public Map<String, Object> getMatrix() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("baseline", baseline);
+		Map<String, Object> base = variants.get(baseline);
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		for (Map<String, Object> variant : variants.values()) {
+			Map<String, Object> row = new LinkedHashMap<String, Object>(variant);
+			if (variant != base) {
+				Map<String, Object> change = new LinkedHashMap<String, Object>();
+				for (String metric : METRICS) {
+					Number value = (Number)variant.get(metric);
+					Number baseValue = (Number)base.get(metric);
+					if (value != null && baseValue != null && baseValue.doubleValue() != 0) {
+						change.put(metric, Math.round(
+								(value.doubleValue() / baseValue.doubleValue() - 1) * 1000) / 10.0);
+					}
+				}
+				row.put("changePercent", change);
+			}
+			list.add(row);
+		}
+		ret.put("variants", list);
+		Map<String, Object> rankings = new LinkedHashMap<String, Object>();
+		for (String metric : METRICS) {
+			List<String> ranking = rank(metric, metric.equals(EXECUTIONS_PER_SECOND));
+			if (ranking != null) {
+				rankings.put(metric, ranking);
+			}
+		}
+		ret.put("rankings", rankings);
+		return ret;
+	}
+
+	/**
+	 * write the matrix
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTo(File file) throws IOException {
+		mapper.writeValue(file, getMatrix());
+	}
+
+	private Map<String, Object> getVariant(String name) {
+		Map<String, Object> variant = variants.get(name);
+		if (variant == null) {
+			variant = new LinkedHashMap<String, Object>();
+			variant.put("name", name);
+			variant.put("elapsedMilliseconds", new LinkedHashMap<String, Object>());
+			if (!name.equals(baseline)) {
+				variant.put("differences", new LinkedHashMap<String, Object>());
+			}
+			variants.put(name, variant);
+		}
+		return variant;
+	}
+
+	// names of the variants from the best, or null if a variant does not have the metric
+	private List<String> rank(final String metric, final boolean descending) {
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(variants.values());
+		for (Map<String, Object> variant : list) {
+			if (variant.get(metric) == null) {
+				return null;
+			}
+		}
+		Collections.sort(list, new Comparator<Map<String, Object>>() {
+			@Override
+			public int compare(Map<String, Object> o1, Map<String, Object> o2) {
+				int c = Double.compare(((Number)o1.get(metric)).doubleValue(),
+						((Number)o2.get(metric)).doubleValue());
+				return descending ? -c : c;
+			}
+		});
+		List<String> ret = new ArrayList<String>();
+		for (Map<String, Object> variant : list) {
+			ret.add((String)variant.get("name"));
+		}
+		return ret;
+	}
+
+	private static long sumOfSizes(Object children) {
+		long sum = 0;
+		if (children instanceof List) {
+			for (Object child : (List<?>)children) {
+				Object size = child instanceof Map ? ((Map<?, ?>)child).get("size") : null;
+				if (size instanceof Number) {
+					sum += ((Number)size).longValue();
+				}
+			}
+		}
+		return sum;
+	}
+
+	// count the values marked as different by the comparison
+	private long countDifferences(File comparison) throws IOException {
+		long count = 0;
+		JsonParser parser = mapper.getFactory().createParser(comparison);
+		try {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+				if (token == JsonToken.VALUE_STRING &&
+						parser.getText().startsWith(RuleRuntimeCompareService.DIFF_HEADER)) {
+					count++;
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return count;
+	}
+}
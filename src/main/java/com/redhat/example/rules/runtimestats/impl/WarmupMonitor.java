@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.kie.internal.concurrent.ExecutorProviderFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Detection of the steady state of the warm up.<BR>
+ * The warm up is steady when the coefficient of variation of the durations of
+ * the last iterations, the ratio of the JIT compilation time to the elapsed time
+ * of the iterations and the jitting tasks of Drools in the iterations are below the thresholds.
+ * Every iteration is kept as the warm up curve.
+ *
+ * @author okuniyas
+ */
+public class WarmupMonitor {
+	private final int window;
+	private final double maxCoefficientOfVariation;
+	private final double maxCompilationRatio;
+
+	private final CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+	private final ThreadPoolExecutor jitting;
+
+	private final long startTime = System.nanoTime();
+	private long lastTime = startTime;
+	private final List<Map<String, Object>> curve = new ArrayList<Map<String, Object>>();
+	// per iteration values for the window
+	private final List<Double> durations = new ArrayList<Double>();
+	private final List<Long> compilationTimes = new ArrayList<Long>();
+	private final List<Long> jittingTasks = new ArrayList<Long>();
+	private boolean steady = false;
+
+	/**
+	 * @param window number of the last iterations to check
+	 * @param maxCoefficientOfVariation threshold of the stddev / mean of the durations
+	 * @param maxCompilationRatio threshold of the JIT compilation time / the elapsed time
+	 */
+	public WarmupMonitor(int window, double maxCoefficientOfVariation, double maxCompilationRatio) {
+		this.window = Math.max(window, 2);
+		this.maxCoefficientOfVariation = maxCoefficientOfVariation;
+		this.maxCompilationRatio = maxCompilationRatio;
+		// the executor of the constraint jitting of Drools
+		Executor executor = ExecutorProviderFactory.getExecutorProvider().getExecutor();
+		this.jitting = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor)executor : null;
+		compilationTimes.add(getCompilationTime());
+		jittingTasks.add(getJittingTasks());
+	}
+
+	/**
+	 * record the end of an iteration
+	 * @return true if the warm up is steady
+	 */
+	public boolean iterationDone() {
+		long now = System.nanoTime();
+		double duration = (now - lastTime) / 1000000.0;
+		lastTime = now;
+		durations.add(duration);
+		compilationTimes.add(getCompilationTime());
+		jittingTasks.add(getJittingTasks());
+
+		Map<String, Object> point = new LinkedHashMap<String, Object>();
+		point.put("iteration", durations.size());
+		point.put("elapsedMilliseconds", (now - startTime) / 1000000);
+		point.put("durationMilliseconds", duration);
+		point.put("compilationMilliseconds", compilationTimes.get(compilationTimes.size() - 1));
+		point.put("jittingTasks", jittingTasks.get(jittingTasks.size() - 1));
+		if (durations.size() >= window) {
+			int from = durations.size() - window;
+			double cov = coefficientOfVariation(durations.subList(from, durations.size()));
+			double windowTime = 0;
+			for (double d : durations.subList(from, durations.size())) {
+				windowTime += d;
+			}
+			// compilation times and jitting tasks have the value before the first iteration
+			double compilationRatio =
+					(compilationTimes.get(durations.size()) - compilationTimes.get(from)) / windowTime;
+			long tasks = jittingTasks.get(durations.size()) - jittingTasks.get(from);
+			point.put("coefficientOfVariation", cov);
+			point.put("compilationRatio", compilationRatio);
+			steady = cov <= maxCoefficientOfVariation && compilationRatio <= maxCompilationRatio &&
+					tasks == 0 && (jitting == null || jitting.getQueue().isEmpty());
+			point.put("steady", steady);
+		}
+		curve.add(point);
+		return steady;
+	}
+
+	public boolean isSteady() {
+		return steady;
+	}
+
+	public List<Map<String, Object>> getCurve() {
+		return curve;
+	}
+
+	/**
+	 * write the thresholds and the warm up curve
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTo(File file) throws IOException {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("window", window);
+		map.put("maxCoefficientOfVariation", maxCoefficientOfVariation);
+		map.put("maxCompilationRatio", maxCompilationRatio);
+		map.put("steady", steady);
+		map.put("elapsedMilliseconds", (lastTime - startTime) / 1000000);
+		map.put("iterations", curve);
+		new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, map);
+	}
+
+	private long getCompilationTime() {
+		return compilation != null && compilation.isCompilationTimeMonitoringSupported() ?
+				compilation.getTotalCompilationTime() : 0;
+	}
+
+	private long getJittingTasks() {
+		return jitting == null ? 0 : jitting.getCompletedTaskCount();
+	}
+
+	private static double coefficientOfVariation(List<Double> values) {
+		double mean = 0;
+		for (double v : values) {
+			mean += v;
+		}
+		mean /= values.size();
+		double m2 = 0;
+		for (double v : values) {
+			m2 += (v - mean) * (v - mean);
+		}
+		return mean == 0 ? 0 : Math.sqrt(m2 / (values.size() - 1)) / mean;
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2015 JBoss Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.redhat.example.rules.runtimestats.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.kie.api.runtime.ExecutionResults;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Snapshot of the working memory at the end of each batch.<BR>
+ * The objects returned by the GetObjects command are serialized with the properties sorted
+ * by the executing thread, so the objects shared between batches (e.g. the facts of the static commands)
+ * are not changed by the later batches before they are serialized.
+ * The serialized objects are handed to a writer thread which appends them to a gzipped file,
+ * so the execution is not stalled by the I/O.
+ * The objects of a batch are sorted by the class and the serialized form,
+ * as the order of the working memory is not stable between executions.
+ *
+ * <pre>
+ * file   := MAGIC batch* END
+ * batch  := number(long) count(int) object*
+ * object := classIndex(int) [className(UTF) if new class] length(int) canonical JSON(bytes)
+ * </pre>
+ *
+ * @author okuniyas
+ */
+public class WorkingMemorySnapshot implements Closeable {
+	/**
+	 * out identifier of the GetObjects command of the snapshot
+	 */
+	static final String OBJECTS_IDENTIFIER = "workingMemorySnapshot";
+
+	private static final int MAGIC = 0x574d5331; // "WMS1"
+	private static final long END = -1;
+	// batches waiting for the writer. the execution waits when the writer is behind.
+	private static final int QUEUE_SIZE = 64;
+	private static final Object[] END_BATCH = new Object[0];
+
+	private static final Comparator<Object[]> RECORD_ORDER = new Comparator<Object[]>() {
+		@Override
+		public int compare(Object[] o1, Object[] o2) {
+			int c = ((String)o1[0]).compareTo((String)o2[0]);
+			if (c != 0) {
+				return c;
+			}
+			byte[] b1 = (byte[])o1[1];
+			byte[] b2 = (byte[])o2[1];
+			for (int i=0; i<b1.length && i<b2.length; i++) {
+				if (b1[i] != b2[i]) {
+					return (b1[i] & 0xff) - (b2[i] & 0xff);
+				}
+			}
+			return b1.length - b2.length;
+		}
+	};
+
+	private final File file;
+	private final ObjectMapper canonicalMapper;
+	private final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<Object[]>(QUEUE_SIZE);
+	private final Thread writer;
+	private volatile Throwable failure = null;
+	private boolean finished = false;
+
+	// used only by the writer thread
+	private DataOutputStream out;
+	private final Map<String, Integer> classIndexes = new HashMap<String, Integer>();
+	private final TreeMap<Long, Object[][]> pendingBatches = new TreeMap<Long, Object[][]>();
+	private long nextBatch = 0;
+
+	/**
+	 * create the file and start the writer thread
+	 * @param mapper mapper of the reports
+	 * @param file snapshot file
+	 */
+	WorkingMemorySnapshot(ObjectMapper mapper, File file) {
+		this.file = file;
+		canonicalMapper = FactFingerprints.canonicalMapper(mapper);
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new GZIPOutputStream(new FileOutputStream(file), 64 * 1024)));
+			out.writeInt(MAGIC);
+		} catch (IOException e) {
+			throw new IllegalStateException("can not create the snapshot file " + file, e);
+		}
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "rules-snapshot-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * serialize and add the objects of the batch. may be called by the worker threads in any order.
+	 * @param number sequential number of the batch from 0
+	 * @param executionResults results of the batch with the objects of the GetObjects command
+	 * @see #OBJECTS_IDENTIFIER
+	 */
+	void add(long number, ExecutionResults executionResults) {
+		Collection<?> objects = (Collection<?>)executionResults.getValue(OBJECTS_IDENTIFIER);
+		Object[][] records = new Object[objects.size()][];
+		int n = 0;
+		for (Object object : objects) {
+			records[n++] = new Object[] {
+					object.getClass().getName(),
+					FactFingerprints.serialize(canonicalMapper, object) };
+		}
+		Arrays.sort(records, RECORD_ORDER);
+		put(new Object[] { number, records });
+	}
+
+	/**
+	 * wait until all batches are written and close the file
+	 * @throws IllegalStateException if the writer failed
+	 */
+	void finish() {
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+		}
+		put(END_BATCH);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while writing the snapshot", e);
+		}
+		if (failure != null) {
+			throw new IllegalStateException("can not write the snapshot file " + file, failure);
+		}
+	}
+
+	/**
+	 * stop the writer if it is running, e.g. when the execution failed
+	 */
+	@Override
+	public void close() {
+		try {
+			finish();
+		} catch (IllegalStateException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void put(Object[] batch) {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while writing the snapshot", e);
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				Object[] batch = queue.take();
+				if (batch == END_BATCH) {
+					break;
+				}
+				// keep taking batches not to block the execution
+				if (failure != null) {
+					continue;
+				}
+				try {
+					pendingBatches.put((Long)batch[0], (Object[][])batch[1]);
+					Object[][] next;
+					while ((next = pendingBatches.remove(nextBatch)) != null) {
+						writeBatch(nextBatch++, next);
+					}
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+			out.writeLong(END);
+		} catch (Throwable t) {
+			if (failure == null) {
+				failure = t;
+			}
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+	// the records of the class names and the serialized objects
+	private void writeBatch(long number, Object[][] records) throws IOException {
+		out.writeLong(number);
+		out.writeInt(records.length);
+		for (Object[] record : records) {
+			String className = (String)record[0];
+			Integer index = classIndexes.get(className);
+			if (index == null) {
+				index = classIndexes.size();
+				classIndexes.put(className, index);
+				out.writeInt(index);
+				out.writeUTF(className);
+			} else {
+				out.writeInt(index);
+			}
+			byte[] json = (byte[])record[1];
+			out.writeInt(json.length);
+			out.write(json);
+		}
+	}
+
+	/**
+	 * read the snapshot file batch by batch
+	 * @param file snapshot file
+	 * @param mapper mapper to read the objects as Maps
+	 * @return the objects of each batch in the order of the batch number
+	 * @throws IOException if the file is not a snapshot
+	 */
+	public static Reader read(File file, ObjectMapper mapper) throws IOException {
+		return new Reader(file, mapper);
+	}
+
+	/**
+	 * Iterates the objects of the batches. The objects are deserialized as Maps
+	 * with the class name under the key "@class".
+	 */
+	public static class Reader implements Iterator<List<Map<String, Object>>>, Closeable {
+		private final DataInputStream in;
+		private final ObjectMapper mapper;
+		private final List<String> classNames = new ArrayList<String>();
+		private long nextNumber;
+
+		private Reader(File file, ObjectMapper mapper) throws IOException {
+			this.mapper = mapper;
+			in = new DataInputStream(new BufferedInputStream(
+					new GZIPInputStream(new FileInputStream(file), 64 * 1024)));
+			if (in.readInt() != MAGIC) {
+				in.close();
+				throw new IOException("not a snapshot file " + file);
+			}
+			nextNumber = in.readLong();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextNumber != END;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public List<Map<String, Object>> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			try {
+				int count = in.readInt();
+				List<Map<String, Object>> objects = new ArrayList<Map<String, Object>>(count);
+				for (int i=0; i<count; i++) {
+					int index = in.readInt();
+					if (index == classNames.size()) {
+						classNames.add(in.readUTF());
+					}
+					byte[] json = new byte[in.readInt()];
+					in.readFully(json);
+					Object value = mapper.readValue(json, Object.class);
+					Map<String, Object> object;
+					if (value instanceof Map) {
+						object = (Map<String, Object>)value;
+					} else {
+						object = new HashMap<String, Object>();
+						object.put("value", value);
+					}
+					object.put("@class", classNames.get(index));
+					objects.add(object);
+				}
+				nextNumber = in.readLong();
+				return objects;
+			} catch (EOFException e) {
+				throw new IllegalStateException("the snapshot file is truncated", e);
+			} catch (IOException e) {
+				throw new IllegalStateException("can not read the snapshot file", e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
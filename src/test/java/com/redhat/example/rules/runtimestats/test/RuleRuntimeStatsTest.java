@@ -16,25 +16,40 @@
 
 package com.redhat.example.rules.runtimestats.test;
 
+import java.io.File;
 import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.kie.api.KieBase;
+import org.kie.api.io.ResourceType;
 import org.kie.api.KieServices;
 import org.kie.api.command.Command;
 import org.kie.api.command.KieCommands;
+import org.kie.api.definition.KiePackage;
+import org.kie.api.definition.rule.Rule;
 import org.kie.api.runtime.KieContainer;
 import org.kie.api.runtime.KieSession;
 import org.kie.api.runtime.StatelessKieSession;
+import org.kie.internal.KnowledgeBase;
+import org.kie.internal.builder.KnowledgeBuilder;
+import org.kie.internal.builder.KnowledgeBuilderFactory;
+import org.kie.internal.io.ResourceFactory;
+import org.kie.internal.utils.KieHelper;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -42,6 +57,9 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.redhat.example.rules.fact.Message;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+import com.redhat.example.rules.runtimestats.impl.RuleNoOpStats;
+import com.redhat.example.rules.runtimestats.impl.RuleSequenceBuffer;
+import com.redhat.example.rules.runtimestats.impl.StripedLongIntMap;
 
 import static org.junit.Assert.*;
 import static org.hamcrest.Matchers.*;
@@ -101,6 +119,56 @@ public class RuleRuntimeStatsTest {
 		System.out.println(statsResultJson);
 	}
 
+	@Test
+	public void test_stats_noop_stopped() throws InterruptedException {
+		
+		RuleNoOpStats stats = new RuleNoOpStats(kieBase);
+		RuleNoOpStats worker = new RuleNoOpStats(kieBase);
+		stats.recordBatch(1000000);
+		worker.recordBatch(1000000);
+		stats.stop();
+		Thread.sleep(20);
+		worker.stop();
+		Thread.sleep(20);
+		
+		// the work after the batches is not charged to the executions
+		long elapsed = stats.getElapsedMilliseconds();
+		double executionsPerSecond = stats.getExecutionsPerSecond();
+		Thread.sleep(20);
+		assertThat(stats.getElapsedMilliseconds(), is(elapsed));
+		assertThat(stats.getExecutionsPerSecond(), is(executionsPerSecond));
+		
+		// the merged stats stop at the later stop
+		stats.merge(worker);
+		assertThat(stats.getElapsedMilliseconds(), is(greaterThanOrEqualTo(elapsed + 20)));
+		assertThat(stats.getExecutionsPerSecond(), is(lessThan(executionsPerSecond * 2)));
+		
+		// the clock runs again after cleared
+		stats.clearStats();
+		Thread.sleep(20);
+		assertThat(stats.getElapsedMilliseconds(), is(greaterThanOrEqualTo(20L)));
+	}
+
+	@Test
+	public void test_stats_noop_excluded() throws InterruptedException {
+		
+		RuleNoOpStats stats = new RuleNoOpStats(kieBase);
+		stats.recordBatch(1000000);
+		// the work between the batches
+		long start = System.nanoTime();
+		Thread.sleep(100);
+		stats.exclude(System.nanoTime() - start);
+		stats.stop();
+		
+		assertThat(stats.getElapsedMilliseconds(), is(lessThan(100L)));
+		assertThat(stats.getExecutionsPerSecond(), is(greaterThan(10.0)));
+		
+		// the excluded work is cleared
+		stats.clearStats();
+		Thread.sleep(20);
+		assertThat(stats.getElapsedMilliseconds(), is(greaterThanOrEqualTo(20L)));
+	}
+
 	@Test
 	public void test_stats_execution_count() {
 
@@ -188,6 +256,520 @@ public class RuleRuntimeStatsTest {
 		}
 	}
 
+	@Test
+	public void test_stats_rule_latency() {
+		
+		StatsType statsType = RuleRuntimeStatsService.RULE_LATENCY;
+
+		execute(true, statsType);
+
+		// output stats result
+		System.out.println(statsType + " " + kieBaseName + ":");
+		System.out.println(statsResultJson);
+
+		try {
+			Map<String, Object> map =
+					mapper.readValue(statsResultJson,
+							new TypeReference<LinkedHashMap<String, Object>>() {});
+			
+			// verify rule execution count
+			Integer ruleExecutionCount = (Integer) map.get("ruleExecutionCount");
+			assertThat(ruleExecutionCount, is(numMessages*3/2));
+			
+			// verify latency of each rules
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> children = (List<Map<String,Object>>) map.get("children");
+			assertThat(children.size(), is(3));
+			for (Map<String, Object> child : children) {
+				long p50 = ((Number)child.get("p50Nanos")).longValue();
+				long p99 = ((Number)child.get("p99Nanos")).longValue();
+				long max = ((Number)child.get("maxNanos")).longValue();
+				assertThat(p50, is(lessThanOrEqualTo(p99)));
+				assertThat(p99, is(lessThanOrEqualTo(max)));
+			}
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+
+	@Test
+	public void test_stats_rule_indexed() {
+		
+		for (StatsType statsType : new StatsType[] {
+				RuleRuntimeStatsService.EXECUTION_COUNT,
+				RuleRuntimeStatsService.ACTIVATION }) {
+			try {
+				statsService.setRuleIndexed(false);
+				execute(true, statsType);
+				String expected = withoutTime(statsResultJson);
+				statsService.setRuleIndexed(true);
+				execute(true, statsType);
+				String actual = withoutTime(statsResultJson);
+				
+				// output stats result
+				System.out.println(statsType + " " + kieBaseName + " (rule indexed):");
+				System.out.println(statsResultJson);
+				
+				// verify the same stats as the map of rules
+				assertThat(actual, is(expected));
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("JSON or The runtime stats is invalid.");
+			} finally {
+				statsService.setRuleIndexed(false);
+			}
+		}
+	}
+
+	@Test
+	public void test_stats_rule_indexed_added_rules() {
+		
+		for (StatsType statsType : new StatsType[] {
+				RuleRuntimeStatsService.EXECUTION_COUNT,
+				RuleRuntimeStatsService.ACTIVATION }) {
+			try {
+				statsService.setRuleIndexed(false);
+				String json = executeWithAddedRules(statsType);
+				String expected = withoutTime(json);
+				statsService.setRuleIndexed(true);
+				json = executeWithAddedRules(statsType);
+				String actual = withoutTime(json);
+				
+				// output stats result
+				System.out.println(statsType + " added rules (rule indexed):");
+				System.out.println(json);
+				
+				// the rules out of the index are counted as the map of rules
+				assertThat(json, containsString("Added GoodBye"));
+				assertThat(actual, is(expected));
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("JSON or The runtime stats is invalid.");
+			} finally {
+				statsService.setRuleIndexed(false);
+			}
+		}
+	}
+
+	// execute a KieBase with a rule added after the stats are created
+	private String executeWithAddedRules(StatsType statsType) {
+		String header = "package com.redhat.example.rules.added\n" +
+				"import com.redhat.example.rules.fact.Message;\n";
+		KieBase kieBase = new KieHelper().addContent(header +
+				"rule \"Hello World\" when m : Message( status == Message.HELLO ) " +
+				"then m.setStatus( Message.GOODBYE ); update( m ); end\n" +
+				"rule \"After Added\" when m : Message( status == 2 ) then end\n",
+				ResourceType.DRL).build();
+		// the stats are created with the index of the rules above
+		StatelessKieSession kieSession = kieBase.newStatelessKieSession();
+		statsService.registerSession(kieSession, statsType);
+		KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+		kbuilder.add(ResourceFactory.newByteArrayResource((header +
+				"rule \"Added GoodBye\" when m : Message( status == Message.GOODBYE ) " +
+				"then m.setStatus( 2 ); update( m ); end\n").getBytes()), ResourceType.DRL);
+		assertThat(kbuilder.getErrors().toString(), kbuilder.hasErrors(), is(false));
+		((KnowledgeBase)kieBase).addKnowledgePackages(kbuilder.getKnowledgePackages());
+		List<Object> messages = new ArrayList<Object>();
+		for (int i=0; i<10; i++) {
+			Message message = new Message();
+			message.setMessage("Hello World " + i);
+			message.setStatus(Message.HELLO);
+			messages.add(message);
+		}
+		kieSession.execute(kieCommands.newInsertElements(messages));
+		StringWriter writer = new StringWriter();
+		statsService.writeStats(mapper, writer, kieBase, statsType);
+		statsService.clearAllStats(kieBase);
+		return writer.toString();
+	}
+
+	@Test
+	public void test_stats_rule_indexed_cleared() {
+		
+		StatsType statsType = RuleRuntimeStatsService.ACTIVATION;
+		try {
+			statsService.setRuleIndexed(false);
+			String json = executeClearedWithAddedRule(statsType);
+			String expected = withoutTime(json);
+			statsService.setRuleIndexed(true);
+			json = executeClearedWithAddedRule(statsType);
+			String actual = withoutTime(json);
+			
+			// output stats result
+			System.out.println(statsType + " cleared (rule indexed):");
+			System.out.println(json);
+			
+			// the first activation after the clear is created by the added rule executed last
+			assertThat(json, containsString("(ActBy)Added GoodBye"));
+			assertThat(actual, is(expected));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		} finally {
+			statsService.setRuleIndexed(false);
+		}
+	}
+
+	// execute a rule added after the stats are created as the last rule,
+	// then execute the session again after the stats are cleared
+	private String executeClearedWithAddedRule(StatsType statsType) {
+		String header = "package com.redhat.example.rules.added\n" +
+				"import com.redhat.example.rules.fact.Message;\n";
+		KieBase kieBase = new KieHelper().addContent(header +
+				"rule \"Hello World\" when m : Message( status == Message.HELLO ) " +
+				"then m.setStatus( Message.GOODBYE ); update( m ); end\n",
+				ResourceType.DRL).build();
+		StatelessKieSession kieSession = kieBase.newStatelessKieSession();
+		statsService.registerSession(kieSession, statsType);
+		KnowledgeBuilder kbuilder = KnowledgeBuilderFactory.newKnowledgeBuilder();
+		kbuilder.add(ResourceFactory.newByteArrayResource((header +
+				"rule \"Added GoodBye\" when m : Message( status == Message.GOODBYE ) " +
+				"then m.setStatus( 2 ); update( m ); end\n").getBytes()), ResourceType.DRL);
+		assertThat(kbuilder.getErrors().toString(), kbuilder.hasErrors(), is(false));
+		((KnowledgeBase)kieBase).addKnowledgePackages(kbuilder.getKnowledgePackages());
+		Message message = new Message();
+		message.setMessage("Hello World");
+		message.setStatus(Message.HELLO);
+		kieSession.execute(kieCommands.newInsert(message));
+		// the index of the stats is rebuilt with the added rule
+		statsService.clearAllStats(kieBase);
+		message.setStatus(Message.HELLO);
+		kieSession.execute(kieCommands.newInsert(message));
+		StringWriter writer = new StringWriter();
+		statsService.writeStats(mapper, writer, kieBase, statsType);
+		statsService.clearAllStats(kieBase);
+		return writer.toString();
+	}
+
+	@Test
+	public void test_stats_execution_sequence_spill() {
+		
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_SEQUENCE;
+		File spillDir = new File("target/sequence_spill");
+		spillDir.mkdirs();
+		for (File file : spillDir.listFiles()) {
+			file.delete();
+		}
+		
+		try {
+			// long enough sequence to spill some chunks
+			List<Command<?>> cmds = createCommands(numMessages*2);
+			StatelessKieSession kieSession = kieBase.newStatelessKieSession();
+			statsService.registerSession(kieSession, statsType);
+			kieSession.execute(kieCommands.newBatchExecution(cmds));
+			StringWriter writer = new StringWriter();
+			statsService.writeStats(mapper, writer, kieBase, statsType);
+			Map<String, Object> expected = mapper.readValue(writer.toString(),
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			
+			statsService.setSequenceSpill(spillDir.getPath(), 1);
+			cmds = createCommands(numMessages*2);
+			kieSession = kieBase.newStatelessKieSession();
+			statsService.registerSession(kieSession, statsType);
+			kieSession.execute(kieCommands.newBatchExecution(cmds));
+			
+			// verify the spill file
+			assertThat(spillDir.list().length, is(1));
+			
+			writer = new StringWriter();
+			statsService.writeStats(mapper, writer, kieBase, statsType);
+			Map<String, Object> actual = mapper.readValue(writer.toString(),
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			
+			// verify the same sequence as the sequence in the heap
+			assertThat(actual.get("ruleExecutionCount"), is((Object)(numMessages*3)));
+			assertThat(actual.get("ruleSequence"), is(expected.get("ruleSequence")));
+			
+			// verify the spill file is truncated by clearing the stats
+			File spillFile = spillDir.listFiles()[0];
+			statsService.clearStats(kieBase, statsType);
+			assertThat(spillDir.list().length, is(1));
+			assertThat(spillFile.length(), is(0L));
+			
+			// verify the same spill file is reused by the next executions
+			for (int i=0; i<3; i++) {
+				cmds = createCommands(numMessages*2);
+				kieSession = kieBase.newStatelessKieSession();
+				statsService.registerSession(kieSession, statsType);
+				kieSession.execute(kieCommands.newBatchExecution(cmds));
+			}
+			assertThat(spillDir.list().length, is(1));
+			assertThat(spillFile.exists(), is(true));
+			
+			writer = new StringWriter();
+			statsService.writeStats(mapper, writer, kieBase, statsType);
+			actual = mapper.readValue(writer.toString(),
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(actual.get("ruleSequence"), is(expected.get("ruleSequence")));
+			
+			// verify the spill file is deleted by disabling the spill
+			statsService.clearStats(kieBase, statsType);
+			statsService.setSequenceSpill(null, 0);
+			assertThat(spillDir.list().length, is(0));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		} finally {
+			statsService.setSequenceSpill(null, 0);
+		}
+	}
+
+	@Test
+	public void test_sequence_buffer_concurrent() {
+		// iterating while the sessions append rules and grow the chunks
+		appendConcurrently(null, 0);
+	}
+
+	@Test
+	public void test_sequence_buffer_concurrent_spill() {
+		// spilling the complete chunks while the sessions are still writing the others
+		File spillDir = new File("target/sequence_spill_concurrent");
+		spillDir.mkdirs();
+		appendConcurrently(spillDir, 1);
+		assertThat(spillDir.list().length, is(0));
+	}
+
+	@Test
+	public void test_striped_map() {
+		// dense keys collide in the small tables, and grow them
+		StripedLongIntMap map = new StripedLongIntMap();
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		Random random = new Random(1);
+		for (int i=0; i<200000; i++) {
+			long key = random.nextInt(5000);
+			if (random.nextInt(3) == 0) {
+				Integer removed = expected.remove(key);
+				assertThat(map.remove(key), is(removed == null ? StripedLongIntMap.MISSING : removed));
+			} else {
+				expected.put(key, i);
+				map.put(key, i);
+			}
+		}
+		assertThat(map.size(), is(expected.size()));
+		for (long key=0; key<5000; key++) {
+			Integer value = expected.get(key);
+			assertThat(map.get(key), is(value == null ? StripedLongIntMap.MISSING : value));
+		}
+		// the key 0 and the large keys
+		map.put(0, -1);
+		map.put(Long.MAX_VALUE - 1, 7);
+		assertThat(map.get(0), is(-1));
+		assertThat(map.get(Long.MAX_VALUE - 1), is(7));
+		map.clear();
+		assertThat(map.size(), is(0));
+		assertThat(map.get(0), is(StripedLongIntMap.MISSING));
+	}
+
+	@Test
+	public void test_striped_map_concurrent() {
+		// the sessions put and remove the incremented activation numbers
+		final int threads = 4;
+		final int perThread = 200000;
+		final StripedLongIntMap map = new StripedLongIntMap();
+		final AtomicLong activationNumber = new AtomicLong();
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> sessions = new ArrayList<Thread>();
+		for (int t=0; t<threads; t++) {
+			final int value = t;
+			sessions.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i=0; i<perThread; i++) {
+							long key = activationNumber.getAndIncrement();
+							map.put(key, value);
+							assertThat(map.get(key), is(value));
+							// keep the odd keys
+							if (key % 2 == 0) {
+								assertThat(map.remove(key), is(value));
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			}));
+		}
+		for (Thread session : sessions) {
+			session.start();
+		}
+		try {
+			for (Thread session : sessions) {
+				session.join(60000);
+			}
+		} catch (InterruptedException e) {
+			fail("interrupted");
+		}
+		assertThat(errors.toString(), errors.isEmpty(), is(true));
+		assertThat(map.size(), is(threads * perThread / 2));
+		for (long key=0; key<threads * perThread; key++) {
+			int value = map.get(key);
+			if (key % 2 == 0) {
+				assertThat(value, is(StripedLongIntMap.MISSING));
+			} else {
+				assertThat(value, is(both(greaterThanOrEqualTo(0)).and(lessThan(threads))));
+			}
+		}
+	}
+
+	// append the rules by the threads while iterating, and verify the counts of the rules
+	private void appendConcurrently(File spillDir, long threshold) {
+		final int threads = 4;
+		final int perThread = 200000;
+		final RuleSequenceBuffer buffer = new RuleSequenceBuffer(kieBase);
+		buffer.setSpill(spillDir, threshold);
+		final List<Rule> rules = new ArrayList<Rule>();
+		for (KiePackage kiePackage : kieBase.getKiePackages()) {
+			rules.addAll(kiePackage.getRules());
+		}
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final AtomicInteger running = new AtomicInteger(threads);
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t=0; t<threads; t++) {
+			writers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i=0; i<perThread; i++) {
+							buffer.add(rules.get(i % rules.size()));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			}));
+		}
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (running.get() > 0) {
+						for (String name : buffer) {
+							assertThat(name, is(notNullValue()));
+						}
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}
+		});
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		reader.start();
+		try {
+			for (Thread writer : writers) {
+				writer.join(60000);
+				assertThat("the writer is blocked", writer.isAlive(), is(false));
+			}
+			reader.join(60000);
+		} catch (InterruptedException e) {
+			fail("interrupted");
+		}
+		assertThat(errors.toString(), errors.isEmpty(), is(true));
+		assertThat(buffer.size(), is((long)threads * perThread));
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for (String name : buffer) {
+			Integer count = counts.get(name);
+			counts.put(name, count == null ? 1 : count + 1);
+		}
+		for (int r=0; r<rules.size(); r++) {
+			int expected = threads * (perThread / rules.size() + (r < perThread % rules.size() ? 1 : 0));
+			assertThat(rules.get(r).getName(), counts.get(rules.get(r).getName()), is(expected));
+		}
+		buffer.dispose();
+	}
+
+	// ignore the time and the KieBase to compare the JSON of the stats in the written order
+	private String withoutTime(String json) {
+		return json.replaceAll("(?m)^\\s*\"(lastReset|elapsedMilliseconds|kieBaseId)\" : .*\\r?\\n", "");
+	}
+
+	@Test
+	public void test_stats_rule_allocation() {
+		
+		StatsType statsType = RuleRuntimeStatsService.RULE_ALLOCATION;
+
+		execute(true, statsType);
+
+		// output stats result
+		System.out.println(statsType + " " + kieBaseName + ":");
+		System.out.println(statsResultJson);
+
+		try {
+			Map<String, Object> map =
+					mapper.readValue(statsResultJson,
+							new TypeReference<LinkedHashMap<String, Object>>() {});
+			
+			// verify rule execution count
+			Integer ruleExecutionCount = (Integer) map.get("ruleExecutionCount");
+			assertThat(ruleExecutionCount, is(numMessages*3/2));
+			
+			// verify allocation of each rules
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> children = (List<Map<String,Object>>) map.get("children");
+			assertThat(children.size(), is(3));
+			long total = 0;
+			for (Map<String, Object> child : children) {
+				long size = ((Number)child.get("size")).longValue();
+				long mean = ((Number)child.get("meanBytes")).longValue();
+				long max = ((Number)child.get("maxBytes")).longValue();
+				assertThat(mean, is(lessThanOrEqualTo(max)));
+				assertThat(max, is(lessThanOrEqualTo(size)));
+				total += size;
+			}
+			assertThat(((Number)map.get("allocatedBytes")).longValue(), is(total));
+			// the RHS of the rules modify the facts
+			assertThat(total, is(greaterThan(0L)));
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+
+	@Test
+	public void test_stats_rule_cpu_time() {
+		
+		StatsType statsType = RuleRuntimeStatsService.RULE_CPU_TIME;
+
+		execute(true, statsType);
+
+		// output stats result
+		System.out.println(statsType + " " + kieBaseName + ":");
+		System.out.println(statsResultJson);
+
+		try {
+			Map<String, Object> map =
+					mapper.readValue(statsResultJson,
+							new TypeReference<LinkedHashMap<String, Object>>() {});
+			
+			// verify rule execution count
+			Integer ruleExecutionCount = (Integer) map.get("ruleExecutionCount");
+			assertThat(ruleExecutionCount, is(numMessages*3/2));
+			
+			// verify CPU time of each rules
+			@SuppressWarnings("unchecked")
+			List<Map<String, Object>> children = (List<Map<String,Object>>) map.get("children");
+			assertThat(children.size(), is(3));
+			for (Map<String, Object> child : children) {
+				long mean = ((Number)child.get("meanCpuNanos")).longValue();
+				long max = ((Number)child.get("maxCpuNanos")).longValue();
+				double ratio = ((Number)child.get("cpuRatio")).doubleValue();
+				assertThat(mean, is(lessThanOrEqualTo(max)));
+				assertThat(ratio, is(both(greaterThanOrEqualTo(0.0)).and(lessThanOrEqualTo(1.0))));
+			}
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+
 	private void execute(boolean stateless, StatsType statsType) {
 		List<Command<?>> cmds = createCommands();
 		
@@ -211,6 +793,10 @@ public class RuleRuntimeStatsTest {
 	}
 	
 	private List<Command<?>> createCommands() {
+		return createCommands(numMessages);
+	}
+	
+	private List<Command<?>> createCommands(int numMessages) {
 		List<Message> messages = new ArrayList<Message>(numMessages);
 		for (int m=0; m < numMessages; m++) {
 			Message message = new Message();
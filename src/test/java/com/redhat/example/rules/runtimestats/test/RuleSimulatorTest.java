@@ -17,21 +17,37 @@
 package com.redhat.example.rules.runtimestats.test;
 
 import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import org.drools.core.command.runtime.rule.InsertElementsCommand;
+import org.drools.core.command.runtime.rule.InsertObjectCommand;
 import org.kie.api.KieServices;
 import org.kie.api.command.Command;
 import org.kie.api.command.KieCommands;
 import org.kie.api.runtime.KieContainer;
+import org.kie.api.runtime.StatelessKieSession;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -42,6 +58,11 @@ import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService;
 import com.redhat.example.rules.runtimestats.RuleRuntimeCompareService.CommandsFactory;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService;
 import com.redhat.example.rules.runtimestats.RuleRuntimeStatsService.StatsType;
+import com.redhat.example.rules.runtimestats.impl.CommandLog;
+import com.redhat.example.rules.runtimestats.impl.GcActivity;
+import com.redhat.example.rules.runtimestats.impl.TrafficRecorder;
+import com.redhat.example.rules.runtimestats.impl.UnifiedDiff;
+import com.redhat.example.rules.runtimestats.impl.WorkingMemorySnapshot;
 
 import static org.junit.Assert.*;
 import static org.hamcrest.Matchers.*;
@@ -176,6 +197,23 @@ public class RuleSimulatorTest {
 			Map<String, Object> map = mapper.readValue(stats[2],
 					new TypeReference<LinkedHashMap<String, Object>>() {});
 			assertThat((String)map.get("name"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			// the latency distribution of the batches is compared
+			assertThat(((Map<?, ?>)map.get("batchMilliseconds")).get("count"), is((Object)"= 200"));
+			assertThat(map.get("executionsPerSecond"), is(instanceOf(String.class)));
+			for (int i=0; i<2; i++) {
+				map = mapper.readValue(stats[i],
+						new TypeReference<LinkedHashMap<String, Object>>() {});
+				Map<?, ?> batches = (Map<?, ?>)map.get("batchMilliseconds");
+				double p50 = ((Number)batches.get("p50")).doubleValue();
+				double p99 = ((Number)batches.get("p99")).doubleValue();
+				double p999 = ((Number)batches.get("p999")).doubleValue();
+				double max = ((Number)batches.get("max")).doubleValue();
+				assertThat(p50, is(greaterThan(0.0)));
+				assertThat(p50, is(lessThanOrEqualTo(p99)));
+				assertThat(p99, is(lessThanOrEqualTo(p999)));
+				assertThat(p999, is(lessThanOrEqualTo(max)));
+				assertThat(((Number)map.get("executionsPerSecond")).doubleValue(), is(greaterThan(0.0)));
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			fail("JSON or The runtime stats is invalid.");
@@ -238,6 +276,1330 @@ public class RuleSimulatorTest {
 		}
 	}
 	
+	@Test
+	public void test_comparison_rule_latency() {
+		StatsType statsType = RuleRuntimeStatsService.RULE_LATENCY;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+				"/" + statsType.toString().toLowerCase());
+		String[] stats = ruleSimulator.execute(commandsFactory, statsType);
+		try {
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((String)map.get("name"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat((String)map.get("ruleExecutionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+	
+	@Test
+	public void test_comparison_rule_allocation() {
+		StatsType statsType = RuleRuntimeStatsService.RULE_ALLOCATION;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+				"/" + statsType.toString().toLowerCase());
+		String[] stats = ruleSimulator.execute(commandsFactory, statsType);
+		try {
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((String)map.get("name"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat((String)map.get("ruleExecutionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat(map.get("allocatedBytes"), is(instanceOf(String.class)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void test_comparison_rule_cpu_time() {
+		StatsType statsType = RuleRuntimeStatsService.RULE_CPU_TIME;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+				"/" + statsType.toString().toLowerCase());
+		String[] stats = ruleSimulator.execute(commandsFactory, statsType);
+		try {
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((String)map.get("name"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat((String)map.get("ruleExecutionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			// a fireAllRules command of each batch is timed
+			Map<String, Object> fireAllRules = (Map<String, Object>)map.get("fireAllRules");
+			assertThat(fireAllRules.get("count"), is((Object)"= 200"));
+			map = mapper.readValue(stats[0],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			fireAllRules = (Map<String, Object>)map.get("fireAllRules");
+			assertThat(((Number)fireAllRules.get("cpuNanos")).longValue(), is(greaterThan(0L)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+	
+	@Test
+	public void test_comparison_execution_to_files() {
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_SEQUENCE;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+				"_files/" + statsType.toString().toLowerCase());
+		ruleSimulator.setWarmupSeconds(0);
+		File[] files = ruleSimulator.executeToFiles(commandsFactory, statsType);
+		try {
+			assertThat(files.length, is(DefaultRuleSimulator.FILE_NAMES.length));
+			for (File file : files) {
+				assertThat("File(" + file.getPath() + ") does not exist.", file.isFile(), is(true));
+			}
+			Map<String, Object> map = mapper.readValue(files[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat(map.get("ruleSequence"), is((Object)RuleRuntimeCompareService.SAME_ARRAY));
+			map = mapper.readValue(files[0],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((List<?>)map.get("ruleSequence"), is(not(empty())));
+			assertThat(mapper.readValue(files[3], List.class).size(), is(1000));
+			assertThat(mapper.readValue(files[4], List.class).size(), is(1000));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+
+	@Test
+	public void test_compare_stats_streaming() {
+		String stats1 = "{\"name\":\"ACTIVATION\",\"executionCount\":200,\"ruleSequence\":[\"a\",\"b\",\"c\"]," +
+				"\"children\":{\"r1\":{\"count\":1,\"rules\":[\"x\"]},\"r2\":{\"count\":2}}}";
+		String stats2 = "{\"name\":\"ACTIVATION\",\"executionCount\":100,\"ruleSequence\":[\"a\",\"c\"]," +
+				"\"children\":{\"r2\":{\"count\":2},\"r1\":{\"rules\":[\"x\"],\"count\":1}}}";
+		RuleRuntimeCompareService ruleCompare = RuleRuntimeCompareService.Factory.get();
+		try {
+			Map<String, Object> map = mapper.readValue(ruleCompare.compareStats(stats1, stats2),
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((String)map.get("name"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.DIFF_HEADER)));
+			assertThat(map.get("ruleSequence"), is((Object)Arrays.asList("= a", "! b -> c", "! c -> null")));
+			// the same children in another order
+			assertThat(map.get("children"), is((Object)RuleRuntimeCompareService.SAME_MAP));
+
+			// the same comparison from files
+			File dir = new File("target/report/compare_stats_streaming");
+			dir.mkdirs();
+			File file1 = new File(dir, "stats1.json");
+			File file2 = new File(dir, "stats2.json");
+			File output = new File(dir, "comparison.json");
+			mapper.writeValue(file1, mapper.readValue(stats1, Map.class));
+			mapper.writeValue(file2, mapper.readValue(stats2, Map.class));
+			ruleCompare.compareStats(file1, file2, output);
+			assertThat(mapper.readValue(output, Map.class), is((Object)map));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+
+	@Test
+	public void test_unified_diff() {
+		File dir = new File("target/report/unified_diff");
+		dir.mkdirs();
+		File file1 = new File(dir, "file1.json");
+		File file2 = new File(dir, "file2.json");
+		File output = new File(dir, "file.diff");
+		try {
+			Files.write(file1.toPath(), "a\nb\nc\nd\ne\nf\ng\nh\ni\nj\nk\nl\nm".getBytes());
+			Files.write(file2.toPath(), "a\nB\nc\nd\ne\nf\ng\nh\ni\nj\nk\nl\nm\nn".getBytes());
+			UnifiedDiff.diff(file1, file2, output);
+			List<String> lines = Files.readAllLines(output.toPath());
+			assertThat(lines.get(0), startsWith("--- file1.json\t"));
+			assertThat(lines.get(1), startsWith("+++ file2.json\t"));
+			assertThat(lines.subList(2, lines.size()), is(Arrays.asList(
+					"@@ -1,5 +1,5 @@", " a", "-b", "+B", " c", " d", " e",
+					"@@ -10,4 +10,5 @@", " j", " k", " l", "-m", "\\ No newline at end of file", "+m", "+n",
+					"\\ No newline at end of file")));
+
+			// nothing is written for the same files
+			UnifiedDiff.diff(file1, file1, output);
+			assertThat(output.length(), is(0L));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The diff is invalid.");
+		}
+	}
+
+	@Test
+	public void test_comparison_keyed_facts() {
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_keyed_facts");
+		ruleSimulator.setWarmupSeconds(0);
+		ruleSimulator.registerFactIdentity(Message.class, new Function<Message, Object>() {
+			@Override
+			public Object apply(Message message) {
+				return message.getMessage();
+			}
+		});
+		try {
+			File[] files = ruleSimulator.executeToFiles(keyedFactsFactory(), statsType);
+			Map<String, Object> map = mapper.readValue(files[5],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(map.get("same"), is((Object)8));
+			List<?> changed = (List<?>)map.get("changed");
+			assertThat(changed.size(), is(1));
+			Map<?, ?> change = (Map<?, ?>)changed.get(0);
+			assertThat(change.get("key"), is((Object)"Message Message 5"));
+			Map<?, ?> fields = (Map<?, ?>)change.get("fields");
+			assertThat(fields.get("message"), is((Object)"= Message 5"));
+			assertThat(fields.get("status"), is((Object)"! 2 -> 3 (+1, +50.0%)"));
+			// the removed facts are written as JSON like the fingerprints
+			List<?> removed = (List<?>)map.get("removed");
+			assertThat(removed.size(), is(1));
+			assertThat(((Map<?, ?>)removed.get(0)).get("message"), is((Object)"Message 3"));
+			assertThat(((Map<?, ?>)removed.get(0)).get("status"), is((Object)2));
+			assertThat(map.get("added"), is((Object)RuleRuntimeCompareService.SAME_ARRAY));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The facts comparison is invalid.");
+		} finally {
+			ruleSimulator.registerFactIdentity(Message.class, null);
+		}
+	}
+
+	@Test
+	public void test_comparison_fact_fingerprint_keyed() {
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_fact_fingerprint_keyed");
+		ruleSimulator.setWarmupSeconds(0);
+		ruleSimulator.setFactFingerprint(true);
+		ruleSimulator.registerFactIdentity(Message.class, new Function<Message, Object>() {
+			@Override
+			public Object apply(Message message) {
+				return message.getMessage();
+			}
+		});
+		try {
+			// the fingerprints are joined by the identities, not shifted by the removed fact
+			File[] files = ruleSimulator.executeToFiles(keyedFactsFactory(), statsType);
+			Map<String, Object> map = mapper.readValue(files[5],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(map.get("same"), is((Object)8));
+			List<?> changed = (List<?>)map.get("changed");
+			assertThat(changed.size(), is(1));
+			Map<?, ?> change = (Map<?, ?>)changed.get(0);
+			assertThat(change.get("key"), is((Object)"Message Message 5"));
+			Map<?, ?> fields = (Map<?, ?>)change.get("fields");
+			assertThat(fields.get("message"), is((Object)"= Message 5"));
+			assertThat(fields.get("status"), is((Object)"! 2 -> 3 (+1, +50.0%)"));
+			List<?> removed = (List<?>)map.get("removed");
+			assertThat(removed.size(), is(1));
+			assertThat(((Map<?, ?>)removed.get(0)).get("message"), is((Object)"Message 3"));
+			assertThat(((Map<?, ?>)removed.get(0)).get("status"), is((Object)2));
+			assertThat(map.get("added"), is((Object)RuleRuntimeCompareService.SAME_ARRAY));
+			assertThat(map.containsKey("notKeyed"), is(false));
+			// the labels of the identities are not written with the facts
+			assertThat(mapper.readValue(files[4], List.class).size(), is(9));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The facts comparison is invalid.");
+		} finally {
+			ruleSimulator.registerFactIdentity(Message.class, null);
+			ruleSimulator.setFactFingerprint(false);
+		}
+	}
+
+	// the working rules get one fact less and one changed fact
+	private CommandsFactory keyedFactsFactory() {
+		return new CommandsFactory() {
+			int calls = 0;
+
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return commandsFactory.getStaticFirstCommands();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				calls++;
+				List<Message> messages = new ArrayList<Message>();
+				for (int m=0; m<10; m++) {
+					if (calls > 1 && m == 3) {
+						continue;
+					}
+					Message message = new Message();
+					message.setMessage("Message " + m);
+					message.setStatus(calls > 1 && m == 5 ? 3 : 2);
+					messages.add(message);
+				}
+				List<Command<?>> commands = new ArrayList<Command<?>>();
+				commands.add(kieCommands.newInsertElements(messages));
+				List<List<Command<?>>> batches = new ArrayList<List<Command<?>>>();
+				batches.add(commands);
+				return batches.iterator();
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				return commandsFactory.getStaticLastCommands();
+			}
+		};
+	}
+
+	@Test
+	public void test_comparison_fact_fingerprint() {
+		// 3000 facts over the maximum fact list size, one changed in the working rules
+		CommandsFactory changingFactory = new CommandsFactory() {
+			int calls = 0;
+
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return commandsFactory.getStaticFirstCommands();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				calls++;
+				List<List<Command<?>>> batches = new ArrayList<List<Command<?>>>();
+				for (int b=0; b<300; b++) {
+					List<Message> messages = new ArrayList<Message>();
+					for (int m=0; m<10; m++) {
+						Message message = new Message();
+						message.setMessage("Message " + b + "-" + m);
+						message.setStatus(calls > 1 && b == 250 && m == 5 ? 3 : 2);
+						messages.add(message);
+					}
+					List<Command<?>> commands = new ArrayList<Command<?>>();
+					commands.add(kieCommands.newInsertElements(messages));
+					batches.add(commands);
+				}
+				return batches.iterator();
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				return commandsFactory.getStaticLastCommands();
+			}
+		};
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_fact_fingerprint");
+		ruleSimulator.setWarmupSeconds(0);
+		ruleSimulator.setFactFingerprint(true);
+		// the batches are fingerprinted by the workers in any order
+		ruleSimulator.setExecutionThreads(2);
+		try {
+			File[] files = ruleSimulator.executeToFiles(changingFactory, statsType);
+			assertThat(mapper.readValue(files[3], List.class).size(), is(3000));
+			assertThat(mapper.readValue(files[4], List.class).size(), is(3000));
+			List<?> comparison = mapper.readValue(files[5], List.class);
+			assertThat(comparison.size(), is(3));
+			assertThat(comparison.get(0), is((Object)"= 2505 facts"));
+			Map<?, ?> diff = (Map<?, ?>)comparison.get(1);
+			assertThat(diff.get("fact"), is((Object)2505));
+			Map<?, ?> fields = (Map<?, ?>)diff.get("fields");
+			assertThat(fields.get("message"), is((Object)"= Message 250-5"));
+			assertThat(fields.get("status"), is((Object)"! 2 -> 3 (+1, +50.0%)"));
+			assertThat(comparison.get(2), is((Object)"= 494 facts"));
+			// no spill file is left
+			File[] spills = files[5].getParentFile().listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".spill");
+				}
+			});
+			assertThat(spills.length, is(0));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The facts comparison is invalid.");
+		} finally {
+			ruleSimulator.setFactFingerprint(false);
+			ruleSimulator.setExecutionThreads(1);
+		}
+	}
+
+	/**
+	 * a fact which takes 50 milliseconds to be serialized
+	 */
+	public static class SlowFact {
+		private final int id;
+
+		public SlowFact(int id) {
+			this.id = id;
+		}
+
+		public int getId() {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return id;
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void test_comparison_fact_fingerprint_not_timed() {
+		// 40 batches with a fact serialized for 2 seconds in total
+		CommandsFactory slowFactory = new CommandsFactory() {
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return commandsFactory.getStaticFirstCommands();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				List<List<Command<?>>> batches = new ArrayList<List<Command<?>>>();
+				for (int b=0; b<40; b++) {
+					List<Command<?>> commands = new ArrayList<Command<?>>();
+					commands.add(kieCommands.newInsert(new SlowFact(b)));
+					batches.add(commands);
+				}
+				return batches.iterator();
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				return commandsFactory.getStaticLastCommands();
+			}
+		};
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_fact_fingerprint_not_timed");
+		ruleSimulator.setWarmupSeconds(0);
+		ruleSimulator.setFactFingerprint(true);
+		try {
+			String[] stats = ruleSimulator.execute(slowFactory, statsType);
+			assertThat(mapper.readValue(stats[3], List.class).size(), is(40));
+			for (int i=0; i<2; i++) {
+				Map<String, Object> map = mapper.readValue(stats[i],
+						new TypeReference<LinkedHashMap<String, Object>>() {});
+				// the facts are fingerprinted out of the clock of the batches
+				assertThat(((Number)map.get("elapsedMilliseconds")).longValue(), is(lessThan(2000L)));
+				assertThat(((Number)map.get("executionsPerSecond")).doubleValue(), is(greaterThan(20.0)));
+				assertThat(((Map<String, Object>)map.get("batchMilliseconds")).get("count"), is((Object)40));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		} finally {
+			ruleSimulator.setFactFingerprint(false);
+		}
+	}
+
+	@Test
+	public void test_comparison_working_memory_snapshot() {
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_snapshot");
+		ruleSimulator.setWarmupSeconds(0);
+		ruleSimulator.setWorkingMemorySnapshot(true);
+		try {
+			File[] files = ruleSimulator.executeToFiles(commandsFactory, statsType);
+			File snapshot = new File(files[3].getParentFile(),
+					DefaultRuleSimulator.FILE_NAMES[3] + "." + DefaultRuleSimulator.SNAPSHOT_EXTENSION);
+			WorkingMemorySnapshot.Reader reader = WorkingMemorySnapshot.read(snapshot, mapper);
+			try {
+				// the message of the 1st batch is changed by the rules
+				List<Map<String, Object>> objects = reader.next();
+				assertThat(objects.size(), is(1));
+				assertThat(objects.get(0).get("@class"), is((Object)Message.class.getName()));
+				assertThat(objects.get(0).get("message"), is((Object)"Goodbye cruel world"));
+				assertThat(objects.get(0).get("status"), is((Object)Message.GOODBYE));
+				int batches = 1;
+				while (reader.hasNext()) {
+					reader.next();
+					batches++;
+				}
+				assertThat(batches, is(200));
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The working memory snapshot is invalid.");
+		} finally {
+			ruleSimulator.setWorkingMemorySnapshot(false);
+		}
+	}
+
+	@Test
+	public void test_comparison_working_memory_snapshot_without_fire() {
+		// the snapshot is taken after the rules are fired without fireAllRules in the commands
+		CommandsFactory notFiringFactory = new CommandsFactory() {
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return commandsFactory.getStaticFirstCommands();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				return commandsFactory.getBodyCommandsIterator();
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				List<Command<?>> commands = new ArrayList<Command<?>>();
+				commands.add(kieCommands.newStartProcess(processName));
+				return commands;
+			}
+		};
+		ruleSimulator.setWarmupSeconds(0);
+		ruleSimulator.setWorkingMemorySnapshot(true);
+		try {
+			// the rules retract the messages, so the snapshot before the rules fired differs
+			ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+					"_snapshot_without_fire/fired");
+			List<List<Map<String, Object>>> expected =
+					readSnapshot(ruleSimulator.executeToFiles(commandsFactory, RuleRuntimeStatsService.NOOP));
+			// stateless and stateful sessions, and fireAllRules timed by RULE_CPU_TIME
+			for (boolean pooled : new boolean[] { false, true }) {
+				for (StatsType statsType : new StatsType[] {
+						RuleRuntimeStatsService.NOOP, RuleRuntimeStatsService.RULE_CPU_TIME }) {
+					ruleSimulator.setPooledSessions(pooled);
+					ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+							"_snapshot_without_fire/" + statsType.toString().toLowerCase() + (pooled ? "_pooled" : ""));
+					List<List<Map<String, Object>>> snapshot =
+							readSnapshot(ruleSimulator.executeToFiles(notFiringFactory, statsType));
+					assertThat(statsType + " pooled=" + pooled, snapshot, is(expected));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The working memory snapshot is invalid.");
+		} finally {
+			ruleSimulator.setWorkingMemorySnapshot(false);
+			ruleSimulator.setPooledSessions(false);
+		}
+	}
+
+	// the objects of all batches in the snapshot of the base rules
+	private List<List<Map<String, Object>>> readSnapshot(File[] files) throws IOException {
+		File snapshot = new File(files[3].getParentFile(),
+				DefaultRuleSimulator.FILE_NAMES[3] + "." + DefaultRuleSimulator.SNAPSHOT_EXTENSION);
+		List<List<Map<String, Object>>> batches = new ArrayList<List<Map<String, Object>>>();
+		WorkingMemorySnapshot.Reader reader = WorkingMemorySnapshot.read(snapshot, mapper);
+		try {
+			while (reader.hasNext()) {
+				batches.add(reader.next());
+			}
+		} finally {
+			reader.close();
+		}
+		return batches;
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void test_comparison_trials() {
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_trials");
+		ruleSimulator.setWarmupSeconds(0);
+		ruleSimulator.setTrials(3);
+		try {
+			String[] stats = ruleSimulator.execute(commandsFactory, statsType);
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			Map<String, Object> trials = (Map<String, Object>)map.get("trials");
+			assertThat(trials.get("count"), is((Object)3));
+			Map<String, Object> elapsed = (Map<String, Object>)trials.get("elapsedMilliseconds");
+			assertThat(((List<?>)((Map<String, Object>)elapsed.get("base")).get("samples")).size(), is(3));
+			assertThat(((Number)elapsed.get("pValue")).doubleValue(), is(both(greaterThanOrEqualTo(0.0)).and(lessThanOrEqualTo(1.0))));
+			assertThat(((Number)elapsed.get("bootstrapPValue")).doubleValue(), is(both(greaterThan(0.0)).and(lessThanOrEqualTo(1.0))));
+			// 200 batches of each trial
+			Map<String, Object> batches = (Map<String, Object>)trials.get("batchMilliseconds");
+			assertThat(((Map<String, Object>)batches.get("base")).get("count"), is((Object)600));
+			assertThat(((Map<String, Object>)batches.get("working")).get("count"), is((Object)600));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The trials comparison is invalid.");
+		} finally {
+			ruleSimulator.setTrials(1);
+		}
+	}
+
+	@Test
+	public void test_adaptive_warmup() {
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_adaptive_warmup");
+		ruleSimulator.setWarmupSeconds(20);
+		ruleSimulator.setAdaptiveWarmup(true);
+		ruleSimulator.setWarmupWindow(5);
+		ruleSimulator.setWarmupCoefficientOfVariation(0.3);
+		try {
+			File[] files = ruleSimulator.executeToFiles(commandsFactory, statsType);
+			File warmup = new File(files[0].getParentFile(),
+					statsType.toString().toLowerCase() + "_" + DefaultRuleSimulator.WARMUP_NAME + "." +
+							DefaultRuleSimulator.EXTENSION);
+			Map<String, Object> map = mapper.readValue(warmup,
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			List<?> iterations = (List<?>)map.get("iterations");
+			assertThat(iterations.size(), is(greaterThan(0)));
+			// steady only after the window is filled
+			if (Boolean.TRUE.equals(map.get("steady"))) {
+				assertThat(iterations.size(), is(greaterThanOrEqualTo(5)));
+			}
+			// the cap of the warm up remains
+			assertThat(((Number)map.get("elapsedMilliseconds")).longValue(), is(lessThan(30000L)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The warm up curve is invalid.");
+		} finally {
+			ruleSimulator.setAdaptiveWarmup(false);
+			ruleSimulator.setWarmupWindow(10);
+			ruleSimulator.setWarmupCoefficientOfVariation(0.05);
+		}
+	}
+
+	@Test
+	public void test_adaptive_warmup_all_stats() {
+		String reportDir = "target/report/" + getKieBaseComparisonName() + "_adaptive_warmup_all_stats";
+		ruleSimulator.setReportDir(reportDir);
+		ruleSimulator.setWarmupSeconds(7);
+		ruleSimulator.setAdaptiveWarmup(true);
+		// never steady, so each stats type warms up until its share of the time
+		ruleSimulator.setWarmupCoefficientOfVariation(0);
+		try {
+			ruleSimulator.executeAllStats(commandsFactory);
+			long elapsed = 0;
+			for (StatsType statsType : StatsType.values()) {
+				File warmup = new File(reportDir,
+						statsType.toString().toLowerCase() + "_" + DefaultRuleSimulator.WARMUP_NAME + "." +
+								DefaultRuleSimulator.EXTENSION);
+				Map<String, Object> map = mapper.readValue(warmup,
+						new TypeReference<LinkedHashMap<String, Object>>() {});
+				elapsed += ((Number)map.get("elapsedMilliseconds")).longValue();
+			}
+			// the cap is the budget of all stats types
+			assertThat(elapsed, is(lessThan(8000L)));
+			assertThat(ruleSimulator.getWarmupSeconds(), is(7));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The warm up curve is invalid.");
+		} finally {
+			ruleSimulator.setAdaptiveWarmup(false);
+			ruleSimulator.setWarmupCoefficientOfVariation(0.05);
+		}
+	}
+
+	@Test
+	public void test_comparison_gc() {
+		StatsType statsType = RuleRuntimeStatsService.NOOP;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_gc");
+		ruleSimulator.setForceGc(true);
+		ruleSimulator.setGcSettleMillis(100);
+		try {
+			String[] stats = ruleSimulator.execute(commandsFactory, statsType);
+			for (int i=0; i<2; i++) {
+				Map<String, Object> map = mapper.readValue(stats[i],
+						new TypeReference<LinkedHashMap<String, Object>>() {});
+				Map<?, ?> gc = (Map<?, ?>)map.get("gc");
+				assertThat(((Number)gc.get("allocatedBytes")).longValue(), is(greaterThan(0L)));
+				// the collections are the sum of the collectors
+				long collections = 0;
+				for (Object collector : ((Map<?, ?>)gc.get("collectors")).values()) {
+					collections += ((Number)((Map<?, ?>)collector).get("count")).longValue();
+				}
+				assertThat(((Map<?, ?>)gc.get("collectors")).isEmpty(), is(false));
+				assertThat(((Number)gc.get("collections")).longValue(), is(collections));
+			}
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(map.get("gc"), is(instanceOf(Map.class)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The GC activity is invalid.");
+		} finally {
+			ruleSimulator.setForceGc(false);
+			ruleSimulator.setGcSettleMillis(1000);
+		}
+	}
+
+	@Test
+	public void test_gc_activity() {
+		// 64MB of garbage collected by the forced GC
+		GcActivity gc = GcActivity.start();
+		long allocated = 0;
+		byte[][] garbage = new byte[64][];
+		for (int i=0; i<garbage.length; i++) {
+			garbage[i] = new byte[1024 * 1024];
+			allocated += garbage[i].length;
+		}
+		assertThat(garbage[garbage.length - 1].length, is(1024 * 1024));
+		garbage = null;
+		GcActivity.forceGc(0);
+		gc.stop();
+		assertThat(gc.getCollections(), is(greaterThan(0L)));
+		// the notifications of the collections are not lost by stop()
+		assertThat(gc.getHeapUsedAfterGcBytes(), is(notNullValue()));
+		assertThat(gc.getAllocatedBytes(), is(greaterThanOrEqualTo(allocated)));
+		assertThat(gc.getAllocationMegaBytesPerSecond(), is(greaterThan(0.0)));
+	}
+
+	@Test
+	public void test_comparison_pooled_sessions() {
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_COUNT;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_pooled_sessions/" +
+				statsType.toString().toLowerCase());
+		ruleSimulator.setWarmupSeconds(0);
+		try {
+			String[] stateless = ruleSimulator.execute(commandsFactory, statsType);
+			ruleSimulator.setPooledSessions(true);
+			String[] stats = ruleSimulator.execute(commandsFactory, statsType);
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			assertThat(map.get("children"), is(RuleRuntimeCompareService.SAME_ARRAY));
+			for (int i=0; i<2; i++) {
+				map = mapper.readValue(stats[i],
+						new TypeReference<LinkedHashMap<String, Object>>() {});
+				assertThat(map.get("executionCount"), is((Object)200));
+			}
+			// the working memory is reset, so the rules fire as in the stateless sessions
+			assertThat(stats[3], is(stateless[3]));
+			assertThat(mapper.readValue(stats[3], List.class).size(), is(1000));
+			// each worker reuses its own sessions
+			ruleSimulator.setExecutionThreads(4);
+			stats = ruleSimulator.execute(commandsFactory, statsType);
+			map = mapper.readValue(stats[0],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(map.get("executionCount"), is((Object)200));
+			assertThat(stats[3], is(stateless[3]));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		} finally {
+			ruleSimulator.setPooledSessions(false);
+			ruleSimulator.setExecutionThreads(1);
+		}
+	}
+
+	@Test
+	public void test_comparison_pooled_sessions_stats() {
+		ruleSimulator.setWarmupSeconds(0);
+		for (StatsType statsType : new StatsType[] {
+				RuleRuntimeStatsService.ACTIVATION,
+				RuleRuntimeStatsService.EXECUTION_SEQUENCE }) {
+			ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+					"_pooled_sessions/" + statsType.toString().toLowerCase());
+			try {
+				String[] stateless = ruleSimulator.execute(commandsFactory, statsType);
+				ruleSimulator.setPooledSessions(true);
+				for (int threads : new int[] { 1, 4 }) {
+					ruleSimulator.setExecutionThreads(threads);
+					String[] pooled = ruleSimulator.execute(commandsFactory, statsType);
+					
+					// verify the listeners start each batch as in a new stateless session
+					Map<String, Object> map = mapper.readValue(
+							RuleRuntimeCompareService.Factory.get().compareStats(stateless[0], pooled[0]),
+							new TypeReference<LinkedHashMap<String, Object>>() {});
+					for (String key : new String[] { "notExecutedRules", "children", "ruleSequence" }) {
+						if (map.containsKey(key)) {
+							assertThat(threads + " " + key, map.get(key), is((Object)RuleRuntimeCompareService.SAME_ARRAY));
+						}
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("JSON or The runtime stats is invalid.");
+			} finally {
+				ruleSimulator.setPooledSessions(false);
+				ruleSimulator.setExecutionThreads(1);
+			}
+		}
+	}
+
+	@Test
+	public void test_comparison_command_log() {
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_COUNT;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_command_log/" +
+				statsType.toString().toLowerCase());
+		ruleSimulator.setWarmupSeconds(0);
+		try {
+			String[] live = ruleSimulator.execute(commandsFactory, statsType);
+			CommandsFactory replay = ruleSimulator.recordCommands(commandsFactory);
+			assertThat(replay, is(notNullValue()));
+			assertThat(((CommandLog)replay).size(), is(200));
+			String[] stats = ruleSimulator.execute(replay, statsType);
+			Map<String, Object> map = mapper.readValue(stats[0],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(map.get("executionCount"), is((Object)200));
+			// each pass decodes new facts, so the replays give the same results
+			assertThat(stats[3], is(live[3]));
+			assertThat(ruleSimulator.execute(replay, statsType)[3], is(live[3]));
+			((CommandLog)replay).close();
+			// the log is replayed later
+			File file = new File(ruleSimulator.getReportDir(),
+					DefaultRuleSimulator.COMMAND_LOG_NAME + "." + DefaultRuleSimulator.COMMAND_LOG_EXTENSION);
+			CommandLog log = CommandLog.open(file);
+			try {
+				assertThat(log.getStaticLastCommands().size(), is(2));
+				assertThat(ruleSimulator.execute(log, statsType)[3], is(live[3]));
+			} finally {
+				log.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+
+	@Test
+	public void test_command_log_insert() {
+		File file = new File("target/report/command_log_insert/commands.log");
+		file.getParentFile().mkdirs();
+		final Message message = new Message();
+		message.setMessage("disconnected");
+		try {
+			CommandLog log = CommandLog.record(new CommandsFactory() {
+				@Override
+				public List<Command<?>> getStaticFirstCommands() {
+					return new ArrayList<Command<?>>();
+				}
+
+				@Override
+				public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+					InsertObjectCommand disconnected = new InsertObjectCommand(message, true);
+					disconnected.setOutIdentifier("message");
+					List<Command<?>> commands = new ArrayList<Command<?>>();
+					commands.add(disconnected);
+					commands.add(kieCommands.newInsert(message, "connected"));
+					List<List<Command<?>>> batches = new ArrayList<List<Command<?>>>();
+					batches.add(commands);
+					return batches.iterator();
+				}
+
+				@Override
+				public List<Command<?>> getStaticLastCommands() {
+					return commandsFactory.getStaticLastCommands();
+				}
+			}, file);
+			try {
+				// the fields of the insert commands are restored
+				List<Command<?>> commands = log.getBodyCommandsIterator().next();
+				InsertObjectCommand disconnected = (InsertObjectCommand)commands.get(0);
+				assertThat(disconnected.isDisconnected(), is(true));
+				assertThat(disconnected.getOutIdentifier(), is("message"));
+				assertThat(((Message)disconnected.getObject()).getMessage(), is("disconnected"));
+				InsertObjectCommand connected = (InsertObjectCommand)commands.get(1);
+				assertThat(connected.isDisconnected(), is(false));
+				assertThat(connected.getOutIdentifier(), is("connected"));
+			} finally {
+				log.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("The commands are not recorded.");
+		}
+	}
+
+	@Test
+	public void test_comparison_input_isolation() {
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_COUNT;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_input_isolation/" +
+				statsType.toString().toLowerCase());
+		ruleSimulator.setWarmupSeconds(0);
+		// the same messages are returned in each iteration
+		final List<List<Command<?>>> batches = new ArrayList<List<Command<?>>>();
+		Iterator<List<Command<?>>> ite = commandsFactory.getBodyCommandsIterator();
+		while (ite.hasNext()) {
+			batches.add(ite.next());
+		}
+		CommandsFactory sameFacts = new CommandsFactory() {
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return commandsFactory.getStaticFirstCommands();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				return batches.iterator();
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				return commandsFactory.getStaticLastCommands();
+			}
+		};
+		try {
+			String[] live = ruleSimulator.execute(commandsFactory, statsType);
+			ruleSimulator.setInputIsolation(true);
+			String[] stats = ruleSimulator.execute(sameFacts, statsType);
+			// the working rules do not see the messages modified by the base rules
+			assertThat(stats[3], is(live[3]));
+			assertThat(stats[4], is(live[4]));
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(map.get("children"), is(RuleRuntimeCompareService.SAME_ARRAY));
+			InsertElementsCommand command = (InsertElementsCommand)batches.get(0).get(0);
+			for (Object message : command.getObjects()) {
+				assertThat(((Message)message).getStatus(), is(Message.HELLO));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		} finally {
+			ruleSimulator.setInputIsolation(false);
+		}
+	}
+
+	@Test
+	public void test_comparison_recorded_traffic() {
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_COUNT;
+		ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() + "_recorded_traffic/" +
+				statsType.toString().toLowerCase());
+		ruleSimulator.setWarmupSeconds(0);
+		File dir = new File(ruleSimulator.getReportDir(), "traffic");
+		for (File file : TrafficRecorder.getSegments(dir, "app")) {
+			file.delete();
+		}
+		try {
+			String[] live = ruleSimulator.execute(commandsFactory, statsType);
+			// the application executes the batches by its own sessions
+			TrafficRecorder recorder = new TrafficRecorder(dir, "app", 256);
+			recorder.setMaxSegmentBytes(16 * 1024);
+			StatelessKieSession session = recorder.wrap(
+					kieContainer.getKieBase(workingRules).newStatelessKieSession());
+			Iterator<List<Command<?>>> ite = commandsFactory.getBodyCommandsIterator();
+			while (ite.hasNext()) {
+				List<Command<?>> commands = new ArrayList<Command<?>>(commandsFactory.getStaticFirstCommands());
+				commands.addAll(ite.next());
+				commands.addAll(commandsFactory.getStaticLastCommands());
+				session.execute(kieCommands.newBatchExecution(commands));
+			}
+			recorder.close();
+			assertThat(recorder.getRecorded(), is(200L));
+			assertThat(recorder.getDropped(), is(0L));
+			assertThat(recorder.getFailed(), is(0L));
+			assertThat(TrafficRecorder.getSegments(dir, "app").length, is(greaterThan(1)));
+			// the facts are recorded before the rules modify them
+			String[] stats = ruleSimulator.execute(TrafficRecorder.replay(dir, "app"), statsType);
+			Map<String, Object> map = mapper.readValue(stats[0],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(map.get("executionCount"), is((Object)200));
+			assertThat(stats[3], is(live[3]));
+			assertThat(stats[4], is(live[4]));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		}
+	}
+
+	@Test
+	public void test_traffic_recorder_failures() {
+		File dir = new File("target/traffic_failures");
+		for (File file : TrafficRecorder.getSegments(dir, "app")) {
+			file.delete();
+		}
+		try {
+			TrafficRecorder recorder = new TrafficRecorder(dir, "app", 256);
+			recorder.setMaxSegmentBytes(1);
+			StatelessKieSession session = recorder.wrap(
+					kieContainer.getKieBase(workingRules).newStatelessKieSession());
+			// too deep to copy, and not Serializable to write
+			LinkedList<Integer> deep = new LinkedList<Integer>();
+			for (int i=0; i<1000000; i++) {
+				deep.add(i);
+			}
+			Object[] facts = { deep, new Object(), "recorded" };
+			List<Message> messages = new ArrayList<Message>();
+			for (Object fact : facts) {
+				Message message = new Message();
+				message.setStatus(Message.HELLO);
+				messages.add(message);
+				List<Command<?>> commands = new ArrayList<Command<?>>();
+				commands.add(kieCommands.newInsert(fact));
+				commands.add(kieCommands.newInsert(message));
+				commands.addAll(commandsFactory.getStaticLastCommands());
+				session.execute(kieCommands.newBatchExecution(commands));
+			}
+			recorder.close();
+			// the session executed the batches failed to be recorded
+			for (Message message : messages) {
+				assertThat(message.getStatus(), is(Message.GOODBYE));
+			}
+			assertThat(recorder.getRecorded(), is(1L));
+			assertThat(recorder.getFailed(), is(2L));
+			assertThat(recorder.getDropped(), is(0L));
+			int segments = TrafficRecorder.getSegments(dir, "app").length;
+			assertThat(segments, is(greaterThanOrEqualTo(1)));
+
+			// the segments recorded before are deleted within the budget
+			recorder = new TrafficRecorder(dir, "app", 256);
+			recorder.setMaxTotalBytes(1);
+			recorder.record(kieCommands.newInsert(new Message()));
+			recorder.close();
+			File[] files = TrafficRecorder.getSegments(dir, "app");
+			assertThat(files.length, is(1));
+			assertThat(files[0].getName(), is(String.format("app-%06d.%s", segments + 1, TrafficRecorder.SEGMENT_EXTENSION)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The traffic is not recorded.");
+		}
+	}
+
+	@Test
+	public void test_traffic_recorder_close() {
+		// every batch buffered while closing is written
+		File dir = new File("target/traffic_close");
+		for (File file : TrafficRecorder.getSegments(dir, "app")) {
+			file.delete();
+		}
+		for (int round=0; round<20; round++) {
+			final TrafficRecorder recorder = new TrafficRecorder(dir, "app", 64);
+			final int threads = 4;
+			final int perThread = 2000;
+			final AtomicLong buffered = new AtomicLong();
+			List<Thread> sessions = new ArrayList<Thread>();
+			for (int t=0; t<threads; t++) {
+				sessions.add(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int i=0; i<perThread; i++) {
+							if (recorder.record(kieCommands.newInsert(new Message()))) {
+								buffered.incrementAndGet();
+							}
+						}
+					}
+				}));
+			}
+			try {
+				for (Thread session : sessions) {
+					session.start();
+				}
+				Thread.sleep(round % 5);
+				recorder.close();
+				for (Thread session : sessions) {
+					session.join(60000);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("The traffic is not recorded.");
+			}
+			long written = 0;
+			Iterator<List<Command<?>>> ite = TrafficRecorder.replay(dir, "app").getBodyCommandsIterator();
+			while (ite.hasNext()) {
+				ite.next();
+				written++;
+			}
+			assertThat(recorder.getFailed(), is(0L));
+			assertThat(recorder.getRecorded(), is(buffered.get()));
+			assertThat(written, is(buffered.get()));
+			for (File file : TrafficRecorder.getSegments(dir, "app")) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * a key which counts the copies of the sets by the sessions,
+	 * and blocks the writer of the recorder until released
+	 */
+	public static class CopyProbe implements Serializable {
+		private static final long serialVersionUID = 1L;
+		static final AtomicInteger copies = new AtomicInteger();
+		static final CountDownLatch writing = new CountDownLatch(1);
+		static final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public int hashCode() {
+			// a copy of the set rebuilds it by the hash codes
+			if (!Thread.currentThread().getName().startsWith("rules-traffic-recorder")) {
+				copies.incrementAndGet();
+			}
+			return 1;
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			writing.countDown();
+			try {
+				release.await(60, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			out.defaultWriteObject();
+		}
+	}
+
+	@Test
+	public void test_traffic_recorder_full() {
+		File dir = new File("target/traffic_full");
+		for (File file : TrafficRecorder.getSegments(dir, "app")) {
+			file.delete();
+		}
+		try {
+			// a ring of 2 batches
+			TrafficRecorder recorder = new TrafficRecorder(dir, "app", 2);
+			HashSet<CopyProbe> fact = new HashSet<CopyProbe>();
+			fact.add(new CopyProbe());
+			CopyProbe.copies.set(0);
+			// the writer takes the first batch and blocks
+			assertThat(recorder.record(kieCommands.newInsert(fact)), is(true));
+			assertThat(CopyProbe.writing.await(60, TimeUnit.SECONDS), is(true));
+			// the ring is filled by 2 batches, and the rest are dropped
+			for (int i=0; i<10; i++) {
+				assertThat(recorder.record(kieCommands.newInsert(fact)), is(i < 2));
+			}
+			assertThat(recorder.getDropped(), is(8L));
+			// the dropped batches are not copied
+			assertThat(CopyProbe.copies.get(), is(3));
+			CopyProbe.release.countDown();
+			recorder.close();
+			assertThat(recorder.getRecorded(), is(3L));
+			assertThat(recorder.getFailed(), is(0L));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The traffic is not recorded.");
+		} finally {
+			CopyProbe.release.countDown();
+		}
+	}
+
+	@Test
+	public void test_traffic_recorder_prefix() {
+		// the segments of another recorder in the same directory
+		File dir = new File("target/traffic_prefix");
+		for (String prefix : new String[] { "app", "app-eu" }) {
+			for (File file : TrafficRecorder.getSegments(dir, prefix)) {
+				file.delete();
+			}
+		}
+		try {
+			TrafficRecorder eu = new TrafficRecorder(dir, "app-eu", 16);
+			eu.record(kieCommands.newInsert(new Message()));
+			eu.record(kieCommands.newInsert(new Message()));
+			eu.close();
+			TrafficRecorder app = new TrafficRecorder(dir, "app", 16);
+			app.record(kieCommands.newInsert(new Message()));
+			app.close();
+			File[] files = TrafficRecorder.getSegments(dir, "app");
+			assertThat(files.length, is(1));
+			assertThat(files[0].getName(), is(String.format("app-%06d.%s", 1, TrafficRecorder.SEGMENT_EXTENSION)));
+			// only the batches of the prefix are replayed
+			int batches = 0;
+			Iterator<List<Command<?>>> ite = TrafficRecorder.replay(dir, "app").getBodyCommandsIterator();
+			while (ite.hasNext()) {
+				ite.next();
+				batches++;
+			}
+			assertThat(batches, is(1));
+			assertThat(TrafficRecorder.getSegments(dir, "app-eu").length, is(1));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The traffic is not recorded.");
+		}
+	}
+
+	@Test
+	public void test_comparison_variants() {
+		String[] variants = { "rules_with_accumulate", "rules_with_right_salience",
+				"rules_with_accumulate_and_right_salience" };
+		ruleSimulator.setReportDir("target/report/rules_variants");
+		ruleSimulator.setWarmupSeconds(0);
+		for (String variant : variants) {
+			ruleSimulator.addVariantRules(variant, kieContainer.getKieBase(variant));
+		}
+		try {
+			File matrixFile = ruleSimulator.executeVariants(commandsFactory,
+					RuleRuntimeStatsService.NOOP,
+					RuleRuntimeStatsService.EXECUTION_COUNT,
+					RuleRuntimeStatsService.ACTIVATION);
+			Map<String, Object> matrix = mapper.readValue(matrixFile,
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat(matrix.get("baseline"), is((Object)DefaultRuleSimulator.BASE_NAME));
+			List<?> rows = (List<?>)matrix.get("variants");
+			assertThat(rows.size(), is(4));
+			for (int i=0; i<variants.length; i++) {
+				Map<?, ?> row = (Map<?, ?>)rows.get(i + 1);
+				assertThat(row.get("name"), is((Object)variants[i]));
+				Map<?, ?> differences = (Map<?, ?>)row.get("differences");
+				for (String key : new String[] { "noop", "execution_count", "activation", "result_facts" }) {
+					assertThat(differences.get(key), is(instanceOf(Number.class)));
+				}
+				// each variant has the report against the base rules
+				File dir = new File(matrixFile.getParentFile(), variants[i]);
+				assertThat(new File(dir, "report.html").isFile(), is(true));
+				assertThat(new File(dir, "noop_" + DefaultRuleSimulator.FILE_NAMES[0] + ".json").isFile(), is(true));
+				assertThat(new File(dir, "activation_" + DefaultRuleSimulator.FILE_NAMES[2] + ".json").isFile(), is(true));
+			}
+			// all metrics are ranked
+			Map<?, ?> rankings = (Map<?, ?>)matrix.get("rankings");
+			for (String metric : new String[] { "executionsPerSecond", "firings", "activations" }) {
+				assertThat(((List<?>)rankings.get(metric)).size(), is(4));
+			}
+			assertThat(((Number)((Map<?, ?>)rows.get(0)).get("firings")).longValue(), is(greaterThan(0L)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The matrix of the variants is invalid.");
+		} finally {
+			ruleSimulator.clearVariantRules();
+		}
+	}
+
+	@Test
+	public void test_comparison_variants_single_pass() {
+		String[] variants = { "rules_with_accumulate", "rules_with_right_salience" };
+		ruleSimulator.setReportDir("target/report/rules_variants_single_pass");
+		ruleSimulator.setWarmupSeconds(0);
+		for (String variant : variants) {
+			ruleSimulator.addVariantRules(variant, kieContainer.getKieBase(variant));
+		}
+		final AtomicInteger iterations = new AtomicInteger();
+		CommandsFactory countingFactory = new CommandsFactory() {
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return commandsFactory.getStaticFirstCommands();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				iterations.incrementAndGet();
+				return commandsFactory.getBodyCommandsIterator();
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				return commandsFactory.getStaticLastCommands();
+			}
+		};
+		try {
+			File matrixFile = ruleSimulator.executeVariants(countingFactory,
+					RuleRuntimeStatsService.NOOP,
+					RuleRuntimeStatsService.EXECUTION_COUNT);
+			// the input is taken once for all KieBases in each run
+			assertThat(iterations.get(), is(2));
+			for (String variant : variants) {
+				File dir = new File(matrixFile.getParentFile(), variant);
+				for (int i=0; i<2; i++) {
+					Map<String, Object> map = mapper.readValue(
+							new File(dir, "execution_count_" + DefaultRuleSimulator.FILE_NAMES[i] + ".json"),
+							new TypeReference<LinkedHashMap<String, Object>>() {});
+					assertThat(map.get("executionCount"), is((Object)200));
+				}
+				// each KieBase executes its own copy of the messages
+				List<?> facts = mapper.readValue(
+						new File(dir, DefaultRuleSimulator.FILE_NAMES[4] + ".json"), List.class);
+				assertThat(facts.size(), is(1000));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("The variants are not executed by a single pass.");
+		} finally {
+			ruleSimulator.clearVariantRules();
+		}
+	}
+
+	@Test
+	public void test_comparison_concurrent_execution() {
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_COUNT;
+		// the same KieBase is executed sequentially, so compare with another KieBase
+		ruleSimulator.setWorkingRules(kieContainer.getKieBase("rules_with_right_salience"));
+		ruleSimulator.setReportDir("target/report/rules_vs_rules_with_right_salience_concurrent/" +
+				statsType.toString().toLowerCase());
+		ruleSimulator.setWarmupSeconds(5);
+		ruleSimulator.setConcurrentExecution(true);
+		try {
+			String[] stats = ruleSimulator.execute(commandsFactory, statsType);
+			Map<String, Object> map = mapper.readValue(stats[2],
+					new TypeReference<LinkedHashMap<String, Object>>() {});
+			assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+			for (int i=0; i<2; i++) {
+				map = mapper.readValue(stats[i],
+						new TypeReference<LinkedHashMap<String, Object>>() {});
+				assertThat(map.get("executionCount"), is((Object)200));
+			}
+			// facts of both executions are collected
+			assertThat(mapper.readValue(stats[3], List.class).size(), is(1000));
+			assertThat(mapper.readValue(stats[4], List.class).size(), is(1000));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		} finally {
+			ruleSimulator.setConcurrentExecution(false);
+		}
+	}
+	
+	@Test
+	public void test_comparison_concurrent_input_isolation() {
+		StatsType statsType = RuleRuntimeStatsService.EXECUTION_COUNT;
+		ruleSimulator.setWorkingRules(kieContainer.getKieBase("rules_with_right_salience"));
+		ruleSimulator.setReportDir("target/report/rules_vs_rules_with_right_salience_concurrent_isolation/" +
+				statsType.toString().toLowerCase());
+		ruleSimulator.setWarmupSeconds(0);
+		// the same messages are returned in each iteration
+		final List<List<Command<?>>> batches = new ArrayList<List<Command<?>>>();
+		Iterator<List<Command<?>>> ite = commandsFactory.getBodyCommandsIterator();
+		while (ite.hasNext()) {
+			batches.add(ite.next());
+		}
+		final AtomicInteger iterations = new AtomicInteger();
+		CommandsFactory sameFacts = new CommandsFactory() {
+			@Override
+			public List<Command<?>> getStaticFirstCommands() {
+				return commandsFactory.getStaticFirstCommands();
+			}
+
+			@Override
+			public Iterator<List<Command<?>>> getBodyCommandsIterator() {
+				iterations.incrementAndGet();
+				return batches.iterator();
+			}
+
+			@Override
+			public List<Command<?>> getStaticLastCommands() {
+				return commandsFactory.getStaticLastCommands();
+			}
+		};
+		try {
+			String[] live = ruleSimulator.execute(commandsFactory, statsType);
+			ruleSimulator.setConcurrentExecution(true);
+			String[] stats = ruleSimulator.execute(sameFacts, statsType);
+			// the input is taken once for both KieBases
+			assertThat(iterations.get(), is(1));
+			// each KieBase executes its own copy of the messages
+			assertThat(stats[3], is(live[3]));
+			assertThat(stats[4], is(live[4]));
+			InsertElementsCommand command = (InsertElementsCommand)batches.get(batches.size() - 1).get(0);
+			for (Object message : command.getObjects()) {
+				assertThat(((Message)message).getStatus(), is(Message.HELLO));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("JSON or The runtime stats is invalid.");
+		} finally {
+			ruleSimulator.setConcurrentExecution(false);
+		}
+	}
+
+	@Test
+	public void test_comparison_parallel_execution() {
+		ruleSimulator.setWarmupSeconds(0);
+		for (StatsType statsType : new StatsType[] {
+				RuleRuntimeStatsService.EXECUTION_COUNT,
+				RuleRuntimeStatsService.ACTIVATION,
+				RuleRuntimeStatsService.EXECUTION_SEQUENCE }) {
+			ruleSimulator.setReportDir("target/report/" + getKieBaseComparisonName() +
+					"_parallel/" + statsType.toString().toLowerCase());
+			try {
+				String[] sequential = ruleSimulator.execute(commandsFactory, statsType);
+				ruleSimulator.setExecutionThreads(4);
+				String[] parallel = ruleSimulator.execute(commandsFactory, statsType);
+				
+				// verify the merged stats are the same as the sequential execution
+				Map<String, Object> map = mapper.readValue(
+						RuleRuntimeCompareService.Factory.get().compareStats(sequential[0], parallel[0]),
+						new TypeReference<LinkedHashMap<String, Object>>() {});
+				assertThat((String)map.get("executionCount"), is(startsWith(RuleRuntimeCompareService.SAME_HEADER)));
+				for (String key : new String[] { "notExecutedRules", "children", "ruleSequence" }) {
+					if (map.containsKey(key)) {
+						assertThat(key, map.get(key), is((Object)RuleRuntimeCompareService.SAME_ARRAY));
+					}
+				}
+				// verify the facts are collected in the order of the batches
+				assertThat(parallel[3], is(sequential[3]));
+			} catch (Exception e) {
+				e.printStackTrace();
+				fail("JSON or The runtime stats is invalid.");
+			} finally {
+				ruleSimulator.setExecutionThreads(1);
+			}
+		}
+	}
+	
 	@Test
 	public void test_aggregation() {
 		// 1